@@ -0,0 +1,336 @@
+package subdivider.ui;
+
+import java.nio.FloatBuffer;
+
+import subdivider.QuadSubdivider;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Checks the parts of the viewer that need no OpenGL or window, on a cube and its
+ * subdivided levels:
+ *
+ * MeshPacker, against values worked out by hand for the cube: every corner holds
+ * its position, the normal of the cube corner (all components 1 / sqrt(3)) and the
+ * colour at the offsets the Renderer draws from, and the first colours are the ones
+ * the viewer always had. Subdivided levels keep the layout, with unit normals pointing
+ * out of the mesh.
+ *
+ * LodSelector, the error of a level is at least how far its vertices are from the
+ * finest level, and shrinks with every level, and the level picked for a camera is the
+ * coarsest one within the allowed pixels, getting coarser as the camera moves away.
+ * Levels that are not available are never picked.
+ *
+ * FrameScheduler with a fake clock: the first frame is drawn at once, nothing is drawn
+ * without a request, requests are combined and kept the minimum interval apart, frames
+ * follow each other while animating, and the camera moves for the time since the last
+ * animating frame (never after being idle, and at most 100 ms).
+ *
+ * This is not part of the program, it is compiled next to it from the check directory,
+ * failures are printed and the exit code is 1 if there were any.
+ *
+ * Usage: javac -cp "lib/*" -d out $(find src check -name "*.java")
+ *        java -cp "out:lib/*" subdivider.ui.UiChecks
+ */
+public class UiChecks {
+
+	private static final int PACKED_LEVELS = 3;
+	private static final int LOD_LEVELS = 5;
+	private static final float MAX_PIXELS = 1;
+
+	private static final int FPS = 50;
+	private static final long INTERVAL = 1000000000L / FPS;
+	private static final long MS = 1000000L;
+
+	//corners of the cube in face order, see createCube
+	private static final float[][] CUBE_CORNERS = {
+		{ -1, -1, -1 }, { -1, 1, -1 }, { 1, 1, -1 }, { 1, -1, -1 },
+		{ -1, -1, 1 }, { 1, -1, 1 }, { 1, 1, 1 }, { -1, 1, 1 },
+		{ -1, -1, -1 }, { 1, -1, -1 }, { 1, -1, 1 }, { -1, -1, 1 },
+		{ -1, 1, -1 }, { -1, 1, 1 }, { 1, 1, 1 }, { 1, 1, -1 },
+		{ -1, -1, -1 }, { -1, -1, 1 }, { -1, 1, 1 }, { -1, 1, -1 },
+		{ 1, -1, -1 }, { 1, 1, -1 }, { 1, 1, 1 }, { 1, -1, 1 }
+	};
+	private static final float CORNER_NORMAL = 0.57735026f; //1 / sqrt(3)
+	//colours of the first two corners, the first values of Random(100)
+	private static final float[] FIRST_COLORS = { 0.7220096f, 0.7346627f, 0.19497603f, 0.7158033f, 0.66715956f, 0.027532041f };
+	private static final float EPSILON = 1e-6f;
+
+	private static int failures;
+
+	/**
+	 * Clock that only moves when it is told to
+	 */
+	private static class FakeClock implements FrameScheduler.Clock {
+		private volatile long now;
+
+		public long nanoTime() {
+			return now;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int failed = 0;
+		checkMeshPacker();
+		failed = report("MeshPacker", failed);
+		checkLodSelector();
+		failed = report("LodSelector", failed);
+		checkFrameScheduler();
+		failed = report("FrameScheduler", failed);
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * @param failed failures before the checks of the class
+	 * @return failures so far
+	 */
+	private static int report(String name, int failed) {
+		System.out.println(failures == failed ? name + ": all checks passed" : name + ": " + (failures - failed) + " checks failed");
+		return failures;
+	}
+
+	private static void checkMeshPacker() {
+		checkEquals(MeshPacker.FLOATS_PER_VERTEX, 9, "floats per corner");
+		checkEquals(MeshPacker.STRIDE, 36, "stride");
+		checkEquals(MeshPacker.NORMAL_OFFSET, 12, "normal offset");
+		checkEquals(MeshPacker.COLOR_OFFSET, 24, "colour offset");
+
+		QuadMesh cube = createCube();
+		FloatBuffer buffer = MeshPacker.pack(cube, QuadSubdivider.calculateNormals(cube));
+		checkEquals(buffer.position(), 0, "cube buffer is not at its start");
+		checkEquals(buffer.limit(), 24 * 9, "cube buffer size");
+		checkEquals(MeshPacker.getVertexCount(buffer), 24, "cube vertex count");
+		for (int c = 0;c < CUBE_CORNERS.length;c ++) {
+			for (int k = 0;k < 3;k ++) {
+				checkFloat(buffer.get(c * 9 + k), CUBE_CORNERS[c][k], "cube corner " + c + " position " + k);
+				checkFloat(buffer.get(c * 9 + 3 + k), CUBE_CORNERS[c][k] * CORNER_NORMAL, "cube corner " + c + " normal " + k);
+				float color = buffer.get(c * 9 + 6 + k);
+				check(color >= 0 && color < 1, "cube corner " + c + " colour " + k + " is " + color);
+			}
+		}
+		for (int k = 0;k < FIRST_COLORS.length;k ++)
+			checkFloat(buffer.get(k / 3 * 9 + 6 + k % 3), FIRST_COLORS[k], "cube colour " + k + " changed");
+
+		QuadMesh mesh = cube;
+		for (int level = 1;level <= PACKED_LEVELS;level ++) {
+			mesh = QuadSubdivider.subdivideMesh(mesh);
+			buffer = MeshPacker.pack(mesh, QuadSubdivider.calculateNormals(mesh));
+			checkPacked(mesh, buffer, "level " + level + ": ");
+			check(buffer.equals(MeshPacker.pack(mesh, QuadSubdivider.calculateNormals(mesh))),
+					"level " + level + " packs differently the second time");
+		}
+	}
+
+	/**
+	 * Every corner holds the position of its vertex, and a unit normal pointing
+	 * away from the center (the levels of the cube stay convex around it)
+	 */
+	private static void checkPacked(QuadMesh mesh, FloatBuffer buffer, String name) {
+		checkEquals(buffer.limit(), mesh.getFaceCount() * 4 * 9, name + "buffer size");
+		for (int f = 0;f < mesh.getFaceCount();f ++) {
+			for (int i = 0;i < 4;i ++) {
+				int v = mesh.getVertex(f, i);
+				int start = (f * 4 + i) * 9;
+				float x = buffer.get(start), y = buffer.get(start + 1), z = buffer.get(start + 2);
+				float nx = buffer.get(start + 3), ny = buffer.get(start + 4), nz = buffer.get(start + 5);
+				if (x != mesh.getX(v) || y != mesh.getY(v) || z != mesh.getZ(v)
+						|| Math.abs(nx * nx + ny * ny + nz * nz - 1) > 1e-5f || nx * x + ny * y + nz * z <= 0) {
+					check(false, name + "face " + f + " corner " + i + " has position " + x + ", " + y + ", " + z
+							+ " and normal " + nx + ", " + ny + ", " + nz + " for vertex " + v);
+					return;
+				}
+			}
+		}
+	}
+
+	private static void checkLodSelector() {
+		QuadMesh[] levels = new QuadMesh[LOD_LEVELS + 1];
+		levels[0] = createCube();
+		for (int l = 1;l <= LOD_LEVELS;l ++)
+			levels[l] = QuadSubdivider.subdivideMesh(levels[l - 1]);
+
+		LodSelector lod = new LodSelector(levels);
+		checkErrors(lod, levels);
+		checkSelection(lod, levels);
+		checkMissingLevels(levels);
+	}
+
+	private static void checkErrors(LodSelector lod, QuadMesh[] levels) {
+		QuadMesh finest = levels[LOD_LEVELS];
+		check(lod.getError(LOD_LEVELS) == 0, "the finest level has an error");
+		for (int l = 0;l < LOD_LEVELS;l ++) {
+			check(lod.getError(l) > lod.getError(l + 1), "error of level " + l + " is not larger than of level " + (l + 1));
+
+			//vertices keep their index in every later level
+			float distance = 0;
+			for (int v = 0;v < levels[l].getVertexCount();v ++) {
+				float dx = levels[l].getX(v) - finest.getX(v), dy = levels[l].getY(v) - finest.getY(v);
+				float dz = levels[l].getZ(v) - finest.getZ(v);
+				distance = Math.max(distance, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+			}
+			check(distance <= lod.getError(l) * (1 + 1e-5f), "level " + l + " has a vertex " + distance
+					+ " from the finest level, more than its error " + lod.getError(l));
+		}
+	}
+
+	/**
+	 * Moves the eye away along z, the level must be the coarsest within MAX_PIXELS
+	 */
+	private static void checkSelection(LodSelector lod, QuadMesh[] levels) {
+		float pixelScale = LodSelector.getPixelScale(600, Renderer.FIELD_OF_VIEW);
+		check(Math.abs(pixelScale - 600 / (2 * Math.tan(Math.toRadians(Renderer.FIELD_OF_VIEW) / 2))) < 1e-3,
+				"wrong pixel scale " + pixelScale);
+		float radius = getRadius(levels[LOD_LEVELS]);
+
+		check(lod.select(0, 0, 0, pixelScale, MAX_PIXELS) == LOD_LEVELS, "the finest level is not picked inside the mesh");
+		check(lod.select(0, 0, 1e7f, pixelScale, MAX_PIXELS) == 0, "the base mesh is not picked far away");
+
+		int previous = LOD_LEVELS;
+		for (float eye = radius * 1.01f;eye < 1e5f;eye *= 1.1f) {
+			int level = lod.select(0, 0, eye, pixelScale, MAX_PIXELS);
+			float distance = eye - radius;
+			check(level <= previous, "level " + level + " at " + eye + " is finer than level " + previous + " closer by");
+			check(level == LOD_LEVELS || lod.getError(level) * pixelScale / distance <= MAX_PIXELS * (1 + 1e-4f),
+					"level " + level + " at " + eye + " is more than " + MAX_PIXELS + " pixels off");
+			check(level == 0 || lod.getError(level - 1) * pixelScale / distance >= MAX_PIXELS * (1 - 1e-4f),
+					"level " + (level - 1) + " at " + eye + " would have been close enough");
+			previous = level;
+		}
+	}
+
+	/**
+	 * Levels before the first available one are never picked
+	 */
+	private static void checkMissingLevels(QuadMesh[] levels) {
+		QuadMesh[] available = levels.clone();
+		available[0] = available[1] = null;
+		LodSelector lod = new LodSelector(available);
+		check(Float.isInfinite(lod.getError(0)) && Float.isInfinite(lod.getError(1)), "missing levels have an error");
+		check(lod.select(0, 0, 1e7f, LodSelector.getPixelScale(600, Renderer.FIELD_OF_VIEW), MAX_PIXELS) == 2,
+				"the first available level is not picked far away");
+	}
+
+	/**
+	 * @return radius of the bounding sphere around the center of the bounding box, like LodSelector
+	 */
+	private static float getRadius(QuadMesh mesh) {
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int v = 0;v < mesh.getVertexCount();v ++) {
+			float[] p = { mesh.getX(v), mesh.getY(v), mesh.getZ(v) };
+			for (int k = 0;k < 3;k ++) {
+				min[k] = Math.min(min[k], p[k]);
+				max[k] = Math.max(max[k], p[k]);
+			}
+		}
+		float radius = 0;
+		for (int v = 0;v < mesh.getVertexCount();v ++) {
+			float dx = mesh.getX(v) - (min[0] + max[0]) / 2, dy = mesh.getY(v) - (min[1] + max[1]) / 2;
+			float dz = mesh.getZ(v) - (min[2] + max[2]) / 2;
+			radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+		}
+		return radius;
+	}
+
+	private static void checkFrameScheduler() throws InterruptedException {
+		FakeClock clock = new FakeClock();
+		FrameScheduler scheduler = new FrameScheduler(clock, FPS);
+
+		//first frame, then idle
+		checkEquals(scheduler.getDelay(0), 0, "first frame is not drawn at once");
+		checkEquals(scheduler.startFrame(0), 0, "first frame moves the camera");
+		checkEquals(scheduler.getDelay(5 * INTERVAL), -1, "a frame is drawn without a request");
+
+		//requests close together are one frame, the minimum interval after the last one
+		scheduler.requestFrame();
+		scheduler.requestFrame();
+		checkEquals(scheduler.getDelay(5 * MS), INTERVAL - 5 * MS, "request is not delayed to the minimum interval");
+		checkEquals(scheduler.getDelay(INTERVAL), 0, "request is not drawn after the minimum interval");
+		checkEquals(scheduler.startFrame(INTERVAL), 0, "requested frame moves the camera");
+		checkEquals(scheduler.getDelay(INTERVAL + MS), -1, "combined requests draw more than one frame");
+
+		//animating, the first frame does not move, the next ones move for the time between them
+		long now = 10 * INTERVAL;
+		scheduler.setAnimating(true);
+		checkEquals(scheduler.getDelay(now), 0, "animation does not start at once");
+		checkEquals(scheduler.startFrame(now), 0, "camera jumps after being idle");
+		checkEquals(scheduler.getDelay(now + MS), INTERVAL - MS, "animating frames are closer than the minimum interval");
+		checkEquals(scheduler.startFrame(now + INTERVAL), INTERVAL, "animating frame does not move for the time between frames");
+		checkEquals(scheduler.startFrame(now + INTERVAL + 500 * MS), 100 * MS, "slow frame is not limited to 100 ms");
+
+		//stopping, nothing is drawn until the next request
+		now += INTERVAL + 500 * MS;
+		scheduler.setAnimating(false);
+		checkEquals(scheduler.getDelay(now + INTERVAL), -1, "frames are drawn after the animation stopped");
+		scheduler.requestFrame();
+		checkEquals(scheduler.startFrame(now + INTERVAL), INTERVAL, "last animating frame is not finished");
+		scheduler.requestFrame();
+		checkEquals(scheduler.startFrame(now + 3 * INTERVAL), 0, "camera moves after the animation stopped");
+
+		checkAwait(clock, scheduler, now + 10 * INTERVAL);
+	}
+
+	/**
+	 * awaitFrame waits for a request from another thread, with the clock past the interval
+	 */
+	private static void checkAwait(FakeClock clock, final FrameScheduler scheduler, long now) throws InterruptedException {
+		clock.now = now;
+		final boolean[] drawn = new boolean[1];
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					scheduler.awaitFrame();
+					drawn[0] = true;
+				} catch (InterruptedException e) {
+					//not drawn
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(100);
+		check(!drawn[0] && thread.isAlive(), "awaitFrame returns without a request");
+
+		scheduler.requestFrame();
+		thread.join(5000);
+		check(!thread.isAlive() && drawn[0], "awaitFrame does not return after a request");
+		checkEquals(scheduler.getDelay(now), -1, "awaitFrame does not start the frame");
+	}
+
+	/**
+	 * @return closed cube from -1 to 1, every face wound counter clockwise seen from outside
+	 */
+	private static QuadMesh createCube() {
+		float[] positions = {
+			-1, -1, -1,  1, -1, -1,  1, 1, -1,  -1, 1, -1,
+			-1, -1, 1,  1, -1, 1,  1, 1, 1,  -1, 1, 1
+		};
+		int[] quads = {
+			0, 3, 2, 1, //back
+			4, 5, 6, 7, //front
+			0, 1, 5, 4, //bottom
+			3, 7, 6, 2, //top
+			0, 4, 7, 3, //left
+			1, 2, 6, 5 //right
+		};
+		return new QuadMesh(positions, 8, quads, 6);
+	}
+
+	private static void checkFloat(float actual, float expected, String message) {
+		check(Math.abs(actual - expected) <= EPSILON, message + " (" + actual + " instead of " + expected + ")");
+	}
+
+	private static void checkEquals(long actual, long expected, String message) {
+		check(actual == expected, message + " (" + actual + " instead of " + expected + ")");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			System.out.println("  " + message);
+			failures ++;
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package subdivider;
+
+import subdivider.util.FloatStore;
+import subdivider.util.IntStore;
+import subdivider.util.MeshStorage;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Provides the empty mesh each level is subdivided into.
+ *
+ * By default every level gets new arrays in the storage picked by
+ * QuadSubdivider.chooseStorage. After preallocate, the levels instead take turns
+ * using two sets of arrays that are allocated once: level 1 uses the first set,
+ * level 2 the second, level 3 the first again (level 1 is no longer needed then),
+ * and so on. The size of every level follows from the base mesh (F' = 4F,
+ * E' = 2E + 4F, V' = V + E + F), so each set is allocated at exactly the size of
+ * the largest level it holds, and a job that does not fit fails before any work
+ * is done (the sizes come from SubdivisionPlanner).
+ */
+public class LevelAllocator {
+
+	private MeshStorage storage;
+	private long memoryBudget;
+
+	//two sets of arrays, null if every level is allocated on its own
+	private FloatStore[] positions;
+	private IntStore[] quads;
+	private IntStore[] twins;
+	private IntStore[] edges;
+	private int nextSet;
+
+	/**
+	 * @param storage where the levels are kept
+	 * @param memoryBudget bytes the levels may use, Long.MAX_VALUE for no limit
+	 */
+	public LevelAllocator(MeshStorage storage, long memoryBudget) {
+		this.storage = storage;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Allocates the two sets of arrays for subdividing the mesh the given amount of
+	 * times. Levels beyond that, or of another mesh, must not be allocated after this.
+	 *
+	 * @param mesh the base mesh
+	 * @param levels
+	 * @throws IllegalArgumentException if the arrays would use more than the memory
+	 * 		budget, or can not be allocated
+	 */
+	public void preallocate(QuadMesh mesh, int levels) {
+		SubdivisionPlanner plan = new SubdivisionPlanner(mesh, levels);
+
+		//size of the largest level in each set, levels only grow so it is the last one
+		long[] vertexCounts = new long[2];
+		long[] faceCounts = new long[2];
+		for (int level = 1;level <= levels;level ++) {
+			QuadSubdivider.checkCounts(plan.getVertexCount(level), plan.getFaceCount(level),
+					plan.getFaceCount(level) * 4);
+			vertexCounts[(level - 1) & 1] = plan.getVertexCount(level);
+			faceCounts[(level - 1) & 1] = plan.getFaceCount(level);
+		}
+
+		//positions, faces and the twin and edge of every half edge
+		long size = 0;
+		for (int i = 0;i < 2;i ++)
+			size += vertexCounts[i] * 12 + faceCounts[i] * 16 * 3;
+		if (size > memoryBudget)
+			throw new IllegalArgumentException(levels + " subdivisions need " + (size >> 20)
+					+ "MB, more than the memory budget of " + (memoryBudget >> 20) + "MB");
+
+		positions = new FloatStore[2];
+		quads = new IntStore[2];
+		twins = new IntStore[2];
+		edges = new IntStore[2];
+		try {
+			for (int i = 0;i < 2;i ++) {
+				positions[i] = storage.createFloats(vertexCounts[i] * 3);
+				quads[i] = storage.createInts(faceCounts[i] * 4);
+				twins[i] = storage.createInts(faceCounts[i] * 4);
+				edges[i] = storage.createInts(faceCounts[i] * 4);
+			}
+		} catch (OutOfMemoryError e) { //fail now, instead of at the last level
+			positions = null;
+			quads = twins = edges = null;
+			throw new IllegalArgumentException(levels + " subdivisions need " + (size >> 20)
+					+ "MB, not enough memory");
+		}
+		nextSet = 0;
+	}
+
+	/**
+	 * @param mesh
+	 * @return the empty mesh to subdivide the given mesh into, see QuadSubdivider.createSubdivided
+	 * @throws IllegalArgumentException if the mesh is not closed, or the new mesh
+	 * 		does not fit in the storage
+	 */
+	public QuadMesh allocate(QuadMesh mesh) {
+		if (positions == null)
+			return QuadSubdivider.createSubdivided(mesh, QuadSubdivider.chooseStorage(mesh, storage, memoryBudget));
+
+		int set = nextSet;
+		nextSet ^= 1;
+		return QuadSubdivider.createSubdivided(mesh, positions[set], quads[set], twins[set], edges[set]);
+	}
+
+}
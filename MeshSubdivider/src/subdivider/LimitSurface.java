@@ -0,0 +1,843 @@
+package subdivider;
+
+import java.util.Arrays;
+
+import subdivider.util.MeshTopology;
+import subdivider.util.Parallel;
+import subdivider.util.QuadBVH;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * The smooth surface the subdivision converges to, for finding the point of it
+ * closest to any point (e.g. to snap points onto it, or to measure how far a scan
+ * is from it) without subdividing the whole mesh further.
+ *
+ * The vertex points are made from the average of the new edge points, not of the
+ * edge midpoints (see HalfEdge.updatePosition), so even where every vertex has 4
+ * edges the surface is not the bicubic B-spline of Catmull-Clark, and it has no
+ * closed form. Where each vertex ends up does, for a vertex of n edges it is
+ * (5 * n * n * vertex + 22 * edge neighbours + 7 * diagonal neighbours) / (n * (5 * n + 29))
+ * (the left eigenvector of one subdivision step around the vertex).
+ *
+ * The patch of a face only depends on the faces around its corners (its one-ring),
+ * and the one-rings of its 4 children are made from that one-ring alone. So the
+ * surface near a point of a face is found by subdividing a copy of the one-ring
+ * DEPTH times with the rules of QuadSubdivider, each time keeping the child that
+ * holds the point. On the last child the surface is taken as the biquadratic patch
+ * through 3 by 3 limit positions: of its corners, of the middles of its sides and
+ * of its center, the limit positions of the next subdivision. The points of the
+ * surface are within about 3e-7 of the size of the face (on a cube), 4 times less
+ * with each more subdivision, against 0.35 of the size of the face for the bilinear
+ * patch between the limit positions of the corners of the face.
+ *
+ * The face closest to a point is found with a QuadBVH over the bounds of the
+ * one-rings, which hold the patches as every rule is an average. First the face
+ * whose bilinear patch is closest is found, and the point is projected onto its
+ * surface. Then every face that may be closer is searched again, the surface of
+ * a face is not closer than the point is in front of its one-ring, seen from the
+ * bilinear patch, so most faces are left out without subdividing. On a face the
+ * closest point is found with Newton's method on the squared distance: on the
+ * bilinear patch from the closest of a few of its points, on the biquadratic patch
+ * of the whole face, then on the subdivided surface. The rings of the last point
+ * are kept, so the small steps at the end only subdivide the smallest ones again.
+ * The mesh is only read, so any amount of queries can run at once, the batch query
+ * runs on the shared thread pool (see Parallel).
+ */
+public class LimitSurface {
+
+	private static final int DEPTH = 8; //subdivisions of the one-ring around a point
+	private static final int CORNERS = -1; //subdivisions for the bilinear patch between the limit positions of the corners
+	private static final int START_POINTS = 5; //by 5 points of the face Newton's method starts from the closest of
+	private static final int MAX_ITERATIONS = 20;
+	private static final int MAX_HALVINGS = 8;
+	private static final double MIN_STEP = 1e-9; //of u or v, Newton's method stops after a smaller step
+	private static final int MAX_VALENCE = 1024; //rings of more edges are only walked on broken meshes
+
+	private QuadMesh mesh;
+	private MeshTopology topology;
+	private float[] limits; //limit position x, y, z of every vertex
+	private QuadBVH bvh;
+
+	/**
+	 * @param mesh closed mesh, its topology is built first if it does not have one
+	 * @param subdivisions how many times the mesh was subdivided from the base mesh (or any
+	 * earlier level), 0 for a mesh that was not subdivided, see QuadBVH
+	 * @throws IllegalArgumentException if the face count does not match the subdivisions,
+	 * or there are too many faces
+	 */
+	public LimitSurface(final QuadMesh mesh, int subdivisions) {
+		this.mesh = mesh;
+		topology = getTopology(mesh);
+		final int faceCount = mesh.getFaceCount();
+		limits = new float[mesh.getVertexCount() * 3];
+		final float[] faceBounds = new float[faceCount * 6];
+
+		//limit position of every vertex, by the lowest half edge leaving it
+		Parallel.forChunks(faceCount, Parallel.getChunkCount(faceCount), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (long h = first * 4L;h < last * 4L;h ++)
+					calculateLimit(h);
+			}
+		});
+
+		Parallel.forChunks(faceCount, Parallel.getChunkCount(faceCount), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int f = first;f < last;f ++)
+					calculateBounds(f, faceBounds);
+			}
+		});
+
+		bvh = new QuadBVH(mesh, subdivisions, faceBounds);
+	}
+
+	public QuadMesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * @param vertex
+	 * @param position where x, y, z of the limit position of the vertex are put
+	 */
+	public void getLimit(int vertex, float[] position) {
+		System.arraycopy(limits, vertex * 3, position, 0, 3);
+	}
+
+	/**
+	 * Point of the surface on the patch of a face, u goes from corner 0 to 1 and v from
+	 * corner 0 to 3
+	 *
+	 * @param face
+	 * @param u from 0 to 1
+	 * @param v from 0 to 1
+	 * @param position where x, y, z are put
+	 */
+	public void evaluate(int face, float u, float v, float[] position) {
+		Patch patch = new Patch();
+		double[] values = new double[18];
+		patch.setFace(face);
+		patch.evaluate(DEPTH, u, v, values);
+		for (int k = 0;k < 3;k ++)
+			position[k] = (float) values[k];
+	}
+
+	/**
+	 * Finds the closest point on the surface, it is on the surface within the error of
+	 * DEPTH subdivisions (see above)
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param maxDistance points of the surface further than this are ignored
+	 * @param result where x, y, z of the closest point and its u, v on the patch are put, may be null
+	 * @return the face whose patch the closest point is on, or -1 if the surface is further
+	 * than maxDistance
+	 */
+	public int project(float x, float y, float z, float maxDistance, float[] result) {
+		Projector projector = new Projector();
+		int face = projector.project(x, y, z, maxDistance);
+		if (face >= 0 && result != null)
+			System.arraycopy(projector.closest, 0, result, 0, 5);
+		return face;
+	}
+
+	/**
+	 * Finds the closest point on the surface of each point, in parallel
+	 *
+	 * @param points x, y, z of each point
+	 * @param count amount of points
+	 * @param maxDistance points of the surface further than this are ignored
+	 * @param faces filled with the face whose patch the closest point is on, or -1
+	 * @param closest filled with x, y, z of each closest point, may be null
+	 * @param uvs filled with u, v of each closest point on its patch, may be null
+	 */
+	public void project(final float[] points, int count, final float maxDistance, final int[] faces,
+			final float[] closest, final float[] uvs) {
+		Parallel.forChunks(count, Parallel.getChunkCount(count), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				Projector projector = new Projector();
+				for (int p = first;p < last;p ++) {
+					faces[p] = projector.project(points[p * 3], points[p * 3 + 1], points[p * 3 + 2], maxDistance);
+					if (faces[p] < 0)
+						continue;
+					if (closest != null)
+						System.arraycopy(projector.closest, 0, closest, p * 3, 3);
+					if (uvs != null)
+						System.arraycopy(projector.closest, 3, uvs, p * 2, 2);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closest point on a patch for the QuadBVH, keeps the closest point of the closest
+	 * patch so far. One for each thread
+	 */
+	private class Projector implements QuadBVH.FaceDistance {
+
+		private float[] closest = new float[5]; //x, y, z, u, v
+		private boolean estimate; //only the distance to the bilinear patches between the limit positions of the corners
+		private Patch patch = new Patch();
+		private double[] values = new double[18];
+		private double[] step = new double[6];
+		private double[] uv = new double[2];
+
+		/**
+		 * The face whose bilinear patch is closest is found first, the distance to its
+		 * surface then only leaves the faces that may be closer for the search on the surface
+		 *
+		 * @return the face the closest point is on, which is left in closest, or -1
+		 */
+		int project(float x, float y, float z, float maxDistance) {
+			estimate = true;
+			int face = bvh.findNearest(x, y, z, maxDistance, this);
+			estimate = false;
+			float distance = face >= 0 ? getDistance(face, x, y, z, maxDistance) : maxDistance;
+			if (distance >= maxDistance)
+				face = -1;
+			int closer = bvh.findNearest(x, y, z, Math.min(distance, maxDistance), this);
+			return closer >= 0 ? closer : face;
+		}
+
+		public float getDistance(int face, float x, float y, float z, float maxDistance) {
+			patch.setFace(face);
+
+			//start from the closest of a few points of the bilinear patch
+			double distance = minimize(CORNERS, x, y, z, start(CORNERS, x, y, z));
+			if (estimate)
+				return (float) Math.sqrt(distance);
+
+			//the surface of the face is in the hull of the ring, so it is not closer than the
+			//point is in front of the ring, seen from the closest point on the bilinear patch
+			patch.evaluate(CORNERS, uv[0], uv[1], values);
+			float bound = patch.getDistanceInFront(x - values[0], y - values[1], z - values[2], x, y, z);
+			if (bound >= maxDistance)
+				return bound;
+
+			//the face subdivided once can be closer elsewhere, e.g. from inside a bent mesh
+			double u = uv[0], v = uv[1];
+			distance = getSquaredDistance(0, u, v, x, y, z);
+			double other = start(0, x, y, z);
+			if (distance <= other) {
+				uv[0] = u;
+				uv[1] = v;
+			} else
+				distance = other;
+			minimize(0, x, y, z, distance);
+			distance = minimize(DEPTH, x, y, z, getSquaredDistance(DEPTH, uv[0], uv[1], x, y, z));
+
+			float result = (float) Math.sqrt(distance);
+			if (result < maxDistance) {
+				patch.evaluate(DEPTH, uv[0], uv[1], values);
+				for (int k = 0;k < 3;k ++)
+					closest[k] = (float) values[k];
+				closest[3] = (float) uv[0];
+				closest[4] = (float) uv[1];
+			}
+			return result;
+		}
+
+		/**
+		 * Newton's method from uv, on the face subdivided the given times
+		 *
+		 * @return the squared distance at the closest u, v found, which are left in uv
+		 */
+		private double minimize(int subdivisions, float x, float y, float z, double distance) {
+			double u = uv[0], v = uv[1];
+			for (int i = 0;i < MAX_ITERATIONS;i ++) {
+				patch.evaluate(subdivisions, u, v, values);
+				if (!getNewtonStep(values, x, y, z, step))
+					break;
+
+				//on a side of the patch getting closer leaves it, the step only goes along it
+				boolean uFixed = (u <= 0 && step[2] > 0) || (u >= 1 && step[2] < 0);
+				boolean vFixed = (v <= 0 && step[4] > 0) || (v >= 1 && step[4] < 0);
+				if (uFixed && vFixed) //closest in the corner
+					break;
+				if (uFixed || vFixed) {
+					double curvature = step[uFixed ? 5 : 3];
+					if (curvature <= 0)
+						break;
+					step[0] = uFixed ? 0 : -step[2] / curvature;
+					step[1] = vFixed ? 0 : -step[4] / curvature;
+				}
+
+				//half the step until it gets closer, where the curvature of the pieces misleads
+				//it the step goes down the gradient instead
+				double uDown = uFixed ? 0 : -step[2] / dot(values, 1, values[3], values[4], values[5]);
+				double vDown = vFixed ? 0 : -step[4] / dot(values, 2, values[6], values[7], values[8]);
+				double newU = u, newV = v, newDistance = distance;
+				for (int j = 0;j < 2 * MAX_HALVINGS;j ++) {
+					if (j == MAX_HALVINGS) {
+						step[0] = uDown;
+						step[1] = vDown;
+					}
+					newU = Math.max(0, Math.min(1, u + step[0]));
+					newV = Math.max(0, Math.min(1, v + step[1]));
+					newDistance = getSquaredDistance(subdivisions, newU, newV, x, y, z);
+					if (newDistance < distance || (newDistance == distance && j < MAX_HALVINGS))
+						break;
+					step[0] /= 2;
+					step[1] /= 2;
+				}
+				if (newDistance > distance)
+					break;
+				boolean converged = Math.abs(newU - u) < MIN_STEP && Math.abs(newV - v) < MIN_STEP;
+				u = newU;
+				v = newV;
+				distance = newDistance;
+				if (converged)
+					break;
+			}
+			uv[0] = u;
+			uv[1] = v;
+			return distance;
+		}
+
+		/**
+		 * Puts the closest of a grid of points on the face subdivided the given times in uv
+		 *
+		 * @return its squared distance
+		 */
+		private double start(int subdivisions, float x, float y, float z) {
+			double best = Double.MAX_VALUE;
+			for (int i = 0;i < START_POINTS * START_POINTS;i ++) {
+				double u = (i % START_POINTS) / (START_POINTS - 1.0), v = (i / START_POINTS) / (START_POINTS - 1.0);
+				double distance = getSquaredDistance(subdivisions, u, v, x, y, z);
+				if (distance < best) {
+					best = distance;
+					uv[0] = u;
+					uv[1] = v;
+				}
+			}
+			return best;
+		}
+
+		private double getSquaredDistance(int subdivisions, double u, double v, float x, float y, float z) {
+			patch.evaluate(subdivisions, u, v, values);
+			double dx = values[0] - x, dy = values[1] - y, dz = values[2] - z;
+			return dx * dx + dy * dy + dz * dz;
+		}
+	}
+
+	/**
+	 * The surface of one face, subdivided around the points it is asked for. The rings
+	 * of the last point are kept, for the next point only those that do not hold it are
+	 * subdivided again
+	 */
+	private class Patch {
+
+		private Ring[] rings = new Ring[DEPTH + 1]; //ring of the face, then of the child holding the last point
+		private int[] corners = new int[DEPTH + 1]; //corner of the ring before, whose child each ring is around
+		private int depth; //deepest ring kept
+		private int face = -1;
+
+		void setFace(int face) {
+			if (face == this.face)
+				return;
+			rings[0] = null;
+			this.face = face;
+		}
+
+		private Ring getRing() {
+			if (rings[0] == null) {
+				rings[0] = LimitSurface.this.getRing(face);
+				depth = 0;
+			}
+			return rings[0];
+		}
+
+		/**
+		 * @return how far the point is in front of all vertices of the ring of the face, in
+		 * the direction, a lower bound of the distance to the surface of the face
+		 */
+		float getDistanceInFront(double directionX, double directionY, double directionZ, float x, float y, float z) {
+			double length = Math.sqrt(directionX * directionX + directionY * directionY + directionZ * directionZ);
+			if (length == 0)
+				return 0;
+			double[] positions = getRing().positions;
+			double front = -Double.MAX_VALUE;
+			for (int v = 0;v < positions.length;v += 3)
+				front = Math.max(front, positions[v] * directionX + positions[v + 1] * directionY + positions[v + 2] * directionZ);
+			return (float) Math.max(0, ((x * directionX + y * directionY + z * directionZ) - front) / length);
+		}
+
+		/**
+		 * @param subdivisions how many times the one-ring is subdivided around the point, or CORNERS
+		 * @param values filled like Ring.evaluate, on the child holding u, v
+		 */
+		void evaluate(int subdivisions, double u, double v, double[] values) {
+			if (subdivisions == CORNERS) {
+				getCorners(face, u, v, values);
+				return;
+			}
+			Ring ring = getRing();
+			for (int d = 1;d <= subdivisions;d ++) {
+				int corner = ring.getCorner(u, v);
+				if (d > depth || corners[d] != corner) {
+					rings[d] = ring.subdivide(corner);
+					corners[d] = corner;
+					depth = d;
+				}
+				ring = rings[d];
+			}
+			ring.evaluate(u, v, values);
+		}
+	}
+
+	/**
+	 * Copy of the faces around the corners of a face (face 0 of the ring), with the
+	 * positions of their vertices
+	 */
+	private static class Ring {
+
+		private double[] positions; //x, y, z of every vertex
+		private int[] quads; //4 vertices of every face
+		private int faceCount;
+		private double[] uvs; //u, v of the corners of face 0 on the face of the mesh
+		private double[] grid; //limit positions of the corners of the children of face 0, see evaluate
+		private long[] keys; //of the vertex, edge or face of the ring before each vertex is made from
+
+		Ring(double[] positions, int[] quads, int faceCount, double[] uvs) {
+			this.positions = positions;
+			this.quads = quads;
+			this.faceCount = faceCount;
+			this.uvs = uvs;
+		}
+
+		/**
+		 * @return the corner of face 0 whose child holds u, v
+		 */
+		int getCorner(double u, double v) {
+			double centerU = (uvs[0] + uvs[4]) / 2, centerV = (uvs[1] + uvs[5]) / 2;
+			for (int i = 0;i < 3;i ++) {
+				if ((uvs[i * 2] < centerU) == (u < centerU) && (uvs[i * 2 + 1] < centerV) == (v < centerV))
+					return i;
+			}
+			return 3;
+		}
+
+		/**
+		 * One subdivision of the ring (see QuadSubdivider), only the faces around the
+		 * corners of the child of face 0 at the corner are made
+		 *
+		 * @return ring of the child
+		 */
+		Ring subdivide(int corner) {
+			int first = quads[corner];
+			Ring child = subdivide(new long[] { getVertexKey(first), getEdgeKey(first, quads[(corner + 1) & 3]),
+					getFaceKey(0), getEdgeKey(quads[(corner + 3) & 3], first) }, corner);
+			double centerU = (uvs[0] + uvs[4]) / 2, centerV = (uvs[1] + uvs[5]) / 2;
+			int next = ((corner + 1) & 3) * 2, previous = ((corner + 3) & 3) * 2;
+			child.uvs = new double[] { uvs[corner * 2], uvs[corner * 2 + 1],
+					(uvs[corner * 2] + uvs[next]) / 2, (uvs[corner * 2 + 1] + uvs[next + 1]) / 2,
+					centerU, centerV,
+					(uvs[corner * 2] + uvs[previous]) / 2, (uvs[corner * 2 + 1] + uvs[previous + 1]) / 2 };
+			return child;
+		}
+
+		/**
+		 * One subdivision of the ring, only the faces around the given new vertices are
+		 * made (see getVertexKey). The vertex points of vertices with faces outside the
+		 * ring, and the edge points of edges on its border, are not right
+		 *
+		 * @param first corner of face 0 whose child is made first
+		 * @return subdivided ring, without uvs
+		 */
+		private Ring subdivide(long[] around, int first) {
+			int halfEdges = faceCount * 4;
+			long[] keys = new long[halfEdges * 4]; //of the new vertices
+			int[] sources = new int[halfEdges * 4]; //vertex, half edge or face each new vertex is made from
+			int[] newQuads = new int[halfEdges * 4];
+			long[] child = new long[4];
+			int[] childSources = new int[4];
+			int newFaces = 0, newVertices = 0;
+			for (int n = 0;n < halfEdges;n ++) {
+				int f = n >> 2, i = ((n & 3) + (f == 0 ? first : 0)) & 3;
+				int h = f * 4 + i, previous = f * 4 + ((i + 3) & 3);
+				child[0] = getVertexKey(quads[h]);
+				child[1] = getEdgeKey(quads[h], quads[next(h)]);
+				child[2] = getFaceKey(f);
+				child[3] = getEdgeKey(quads[previous], quads[h]);
+				if (!touches(child, around))
+					continue;
+				childSources[0] = quads[h];
+				childSources[1] = h;
+				childSources[2] = f;
+				childSources[3] = previous;
+				for (int k = 0;k < 4;k ++) {
+					int index = 0;
+					while (index < newVertices && keys[index] != child[k])
+						index ++;
+					if (index == newVertices) {
+						keys[newVertices] = child[k];
+						sources[newVertices ++] = childSources[k];
+					}
+					newQuads[newFaces * 4 + k] = index;
+				}
+				newFaces ++;
+			}
+
+			double[] facePoints = new double[faceCount * 3];
+			for (int h = 0;h < halfEdges;h ++)
+				add(facePoints, h >> 2, positions, quads[h], 0.25);
+			int[] opposite = getOpposite();
+			double[] newPositions = new double[newVertices * 3];
+			for (int n = 0;n < newVertices;n ++) {
+				int type = (int) (keys[n] >>> 32);
+				if (type == 2)
+					add(newPositions, n, facePoints, sources[n], 1);
+				else if (type == 1)
+					addEdgePoint(newPositions, n, sources[n], opposite, facePoints, 1);
+				else
+					addVertexPoint(newPositions, n, sources[n], opposite, facePoints);
+			}
+
+			Ring ring = new Ring(newPositions, newQuads, newFaces, null);
+			ring.keys = keys;
+			return ring;
+		}
+
+		private static boolean touches(long[] child, long[] keys) {
+			for (int k = 0;k < 4;k ++) {
+				for (int l = 0;l < keys.length;l ++) {
+					if (child[k] == keys[l])
+						return true;
+				}
+			}
+			return false;
+		}
+
+		private static int next(int halfEdge) {
+			return (halfEdge & ~3) | ((halfEdge + 1) & 3);
+		}
+
+		/**
+		 * @return the face on the other side of every half edge, -1 on the border of the ring
+		 */
+		private int[] getOpposite() {
+			int halfEdges = faceCount * 4;
+			int[] opposite = new int[halfEdges];
+			Arrays.fill(opposite, -1);
+			for (int h = 0;h < halfEdges;h ++) {
+				if (opposite[h] >= 0)
+					continue;
+				int start = quads[h], end = quads[next(h)];
+				for (int twin = h + 1;twin < halfEdges;twin ++) {
+					if (quads[twin] == end && quads[next(twin)] == start) {
+						opposite[h] = twin >> 2;
+						opposite[twin] = h >> 2;
+						break;
+					}
+				}
+			}
+			return opposite;
+		}
+
+		/**
+		 * Adds the edge point of the half edge, its ends and the face points on both
+		 * sides, times the weight
+		 */
+		private void addEdgePoint(double[] target, int index, int halfEdge, int[] opposite, double[] facePoints,
+				double weight) {
+			add(target, index, positions, quads[halfEdge], weight / 4);
+			add(target, index, positions, quads[next(halfEdge)], weight / 4);
+			add(target, index, facePoints, halfEdge >> 2, weight / 4);
+			add(target, index, facePoints, opposite[halfEdge] >= 0 ? opposite[halfEdge] : halfEdge >> 2, weight / 4);
+		}
+
+		/**
+		 * Adds the vertex point, of the average of the edge points and face points around it
+		 */
+		private void addVertexPoint(double[] target, int index, int vertex, int[] opposite, double[] facePoints) {
+			int valence = 0;
+			for (int h = 0;h < faceCount * 4;h ++) {
+				if (quads[h] == vertex)
+					valence ++;
+			}
+			double n = valence;
+			add(target, index, positions, vertex, (n - 3) / n);
+			for (int h = 0;h < faceCount * 4;h ++) {
+				if (quads[h] != vertex)
+					continue;
+				addEdgePoint(target, index, h, opposite, facePoints, 2 / (n * n));
+				add(target, index, facePoints, h >> 2, 1 / (n * n));
+			}
+		}
+
+		/**
+		 * The surface of face 0 as the biquadratic patch through the limit positions of the
+		 * corners of its children, a grid of 3 by 3 on the square of u, v it covers
+		 *
+		 * @param values filled with x, y, z of the point, then of its derivatives by u, v,
+		 * u u, u v and v v, for the u, v of the face of the mesh
+		 */
+		void evaluate(double u, double v, double[] values) {
+			double minU = Math.min(uvs[0], uvs[4]), minV = Math.min(uvs[1], uvs[5]);
+			double size = Math.abs(uvs[4] - uvs[0]);
+			if (grid == null) { //the corners from this ring, the others from the subdivided one
+				grid = new double[27];
+				Ring subdivided = subdivide(new long[] { getEdgeKey(quads[0], quads[1]), getEdgeKey(quads[1], quads[2]),
+						getEdgeKey(quads[2], quads[3]), getEdgeKey(quads[3], quads[0]), getFaceKey(0) }, 0);
+				for (int i = 0;i < 4;i ++) {
+					int next = (i + 1) & 3;
+					int column = (int) Math.round((uvs[i * 2] - minU) / size), row = (int) Math.round((uvs[i * 2 + 1] - minV) / size);
+					int nextColumn = (int) Math.round((uvs[next * 2] - minU) / size);
+					int nextRow = (int) Math.round((uvs[next * 2 + 1] - minV) / size);
+					addLimit(grid, row * 6 + column * 2, quads[i]);
+					subdivided.addLimit(grid, (row + nextRow) * 3 + column + nextColumn,
+							subdivided.indexOf(getEdgeKey(quads[i], quads[next])));
+				}
+				subdivided.addLimit(grid, 4, subdivided.indexOf(getFaceKey(0)));
+			}
+
+			//quadratic Lagrange polynomials of 0, 0.5 and 1, and their derivatives
+			double a = (u - minU) / size, b = (v - minV) / size;
+			double[] basisA = { 2 * a * a - 3 * a + 1, 4 * a - 4 * a * a, 2 * a * a - a };
+			double[] slopeA = { 4 * a - 3, 4 - 8 * a, 4 * a - 1 };
+			double[] basisB = { 2 * b * b - 3 * b + 1, 4 * b - 4 * b * b, 2 * b * b - b };
+			double[] slopeB = { 4 * b - 3, 4 - 8 * b, 4 * b - 1 };
+			double[] curve = { 4, -8, 4 };
+			Arrays.fill(values, 0);
+			for (int row = 0;row < 3;row ++) {
+				for (int column = 0;column < 3;column ++) {
+					double[] weights = { basisA[column] * basisB[row], slopeA[column] * basisB[row] / size,
+							basisA[column] * slopeB[row] / size, curve[column] * basisB[row] / (size * size),
+							slopeA[column] * slopeB[row] / (size * size), basisA[column] * curve[row] / (size * size) };
+					for (int w = 0;w < 6;w ++)
+						add(values, w, grid, row * 3 + column, weights[w]);
+				}
+			}
+		}
+
+		/**
+		 * Adds the limit position of a vertex whose faces are all in the ring
+		 */
+		private void addLimit(double[] target, int index, int vertex) {
+			int valence = 0;
+			for (int h = 0;h < faceCount * 4;h ++) {
+				if (quads[h] == vertex)
+					valence ++;
+			}
+			double n = valence, divisor = n * (5 * n + 29);
+			add(target, index, positions, vertex, 5 * n * n / divisor);
+			for (int h = 0;h < faceCount * 4;h ++) {
+				if (quads[h] != vertex)
+					continue;
+				add(target, index, positions, quads[next(h)], 22 / divisor);
+				add(target, index, positions, quads[next(next(h))], 7 / divisor);
+			}
+		}
+
+		private int indexOf(long key) {
+			int index = 0;
+			while (keys[index] != key)
+				index ++;
+			return index;
+		}
+
+		private static void add(double[] target, int index, double[] source, int from, double weight) {
+			target[index * 3] += source[from * 3] * weight;
+			target[index * 3 + 1] += source[from * 3 + 1] * weight;
+			target[index * 3 + 2] += source[from * 3 + 2] * weight;
+		}
+
+		//keys of the vertices of a subdivided ring, the vertex point of a vertex, the edge point of an edge, the face point of a face
+		private static long getVertexKey(int vertex) {
+			return vertex;
+		}
+
+		private static long getEdgeKey(int a, int b) {
+			return 1L << 32 | (long) Math.min(a, b) << 16 | Math.max(a, b);
+		}
+
+		private static long getFaceKey(int face) {
+			return 2L << 32 | face;
+		}
+	}
+
+	/**
+	 * @return the faces around the corners of the face, the face first, with the u, v of its corners
+	 */
+	private Ring getRing(int face) {
+		int[] faces = new int[16];
+		int faceCount = 0;
+		faces[faceCount ++] = face;
+		for (int i = 0;i < 4;i ++) {
+			long start = face * 4L + i, h = start;
+			int valence = 0;
+			do {
+				int f = (int) (h >> 2);
+				int index = 0;
+				while (index < faceCount && faces[index] != f)
+					index ++;
+				if (index == faceCount) {
+					if (faceCount == faces.length)
+						faces = Arrays.copyOf(faces, faceCount * 2);
+					faces[faceCount ++] = f;
+				}
+				h = MeshTopology.next(topology.getTwin(h));
+			} while (h != start && ++ valence < MAX_VALENCE);
+		}
+
+		int[] vertices = new int[faceCount * 4]; //of the mesh, by vertex of the ring
+		int[] quads = new int[faceCount * 4];
+		int vertexCount = 0;
+		for (int c = 0;c < faceCount * 4;c ++) {
+			int vertex = mesh.getVertex(faces[c >> 2], c & 3);
+			int index = 0;
+			while (index < vertexCount && vertices[index] != vertex)
+				index ++;
+			if (index == vertexCount)
+				vertices[vertexCount ++] = vertex;
+			quads[c] = index;
+		}
+		if (vertexCount > 0xffff)
+			throw new IllegalStateException("Face " + face + " has " + vertexCount + " vertices around it");
+		double[] positions = new double[vertexCount * 3];
+		for (int v = 0;v < vertexCount;v ++) {
+			positions[v * 3] = mesh.getX(vertices[v]);
+			positions[v * 3 + 1] = mesh.getY(vertices[v]);
+			positions[v * 3 + 2] = mesh.getZ(vertices[v]);
+		}
+		return new Ring(positions, quads, faceCount, new double[] { 0, 0, 1, 0, 1, 1, 0, 1 });
+	}
+
+	/**
+	 * The bilinear patch between the limit positions of the corners of the face, which
+	 * are on the surface, a rough stand-in for it
+	 *
+	 * @param values filled like Ring.evaluate
+	 */
+	private void getCorners(int face, double u, double v, double[] values) {
+		int v0 = mesh.getVertex(face, 0) * 3, v1 = mesh.getVertex(face, 1) * 3;
+		int v2 = mesh.getVertex(face, 2) * 3, v3 = mesh.getVertex(face, 3) * 3;
+		for (int k = 0;k < 3;k ++) {
+			double along = (double) limits[v1 + k] - limits[v0 + k], across = (double) limits[v3 + k] - limits[v0 + k];
+			double twist = (double) limits[v0 + k] - limits[v1 + k] + limits[v2 + k] - limits[v3 + k];
+			values[k] = limits[v0 + k] + u * along + v * across + u * v * twist;
+			values[3 + k] = along + v * twist;
+			values[6 + k] = across + u * twist;
+			values[9 + k] = 0;
+			values[12 + k] = twist;
+			values[15 + k] = 0;
+		}
+	}
+
+	/**
+	 * Newton step on the squared distance, where its Hessian is not positive definite
+	 * the second derivatives of the surface are left out (Gauss-Newton)
+	 *
+	 * @param values of the surface, see Ring.evaluate
+	 * @param step filled with the change of u, v, then the gradient by u and the Hessian
+	 * u u, by v and the Hessian v v
+	 * @return false if the surface is degenerate there
+	 */
+	private static boolean getNewtonStep(double[] values, float x, float y, float z, double[] step) {
+		double dx = values[0] - x, dy = values[1] - y, dz = values[2] - z;
+		double gu = dot(values, 1, dx, dy, dz), gv = dot(values, 2, dx, dy, dz);
+		double huu = dot(values, 1, values[3], values[4], values[5]), hvv = dot(values, 2, values[6], values[7], values[8]);
+		double huv = dot(values, 1, values[6], values[7], values[8]);
+
+		double fullUU = huu + dot(values, 3, dx, dy, dz), fullVV = hvv + dot(values, 5, dx, dy, dz);
+		double fullUV = huv + dot(values, 4, dx, dy, dz);
+		double determinant = fullUU * fullVV - fullUV * fullUV;
+		if (fullUU > 0 && determinant > 0) {
+			huu = fullUU;
+			hvv = fullVV;
+			huv = fullUV;
+		} else {
+			determinant = huu * hvv - huv * huv;
+			if (huu <= 0 || determinant <= 1e-12 * huu * hvv)
+				return false;
+		}
+		step[0] = (huv * gv - hvv * gu) / determinant;
+		step[1] = (huv * gu - huu * gv) / determinant;
+		step[2] = gu;
+		step[3] = huu;
+		step[4] = gv;
+		step[5] = hvv;
+		return true;
+	}
+
+	/**
+	 * @return dot product of the x, y, z at the index and the vector
+	 */
+	private static double dot(double[] values, int index, double x, double y, double z) {
+		return values[index * 3] * x + values[index * 3 + 1] * y + values[index * 3 + 2] * z;
+	}
+
+	/**
+	 * Walks the faces around the vertex the half edge leaves, if the half edge is the
+	 * lowest one leaving it the limit position of the vertex is stored
+	 */
+	private void calculateLimit(long halfEdge) {
+		double ex = 0, ey = 0, ez = 0, dx = 0, dy = 0, dz = 0;
+		int valence = 0;
+		long h = halfEdge;
+		do {
+			if (h < halfEdge) //the vertex belongs to a lower half edge
+				return;
+			int edge = mesh.getStartVertex(MeshTopology.next(h));
+			int diagonal = mesh.getStartVertex(MeshTopology.next(MeshTopology.next(h)));
+			ex += mesh.getX(edge);
+			ey += mesh.getY(edge);
+			ez += mesh.getZ(edge);
+			dx += mesh.getX(diagonal);
+			dy += mesh.getY(diagonal);
+			dz += mesh.getZ(diagonal);
+			valence ++;
+			h = MeshTopology.next(topology.getTwin(h));
+		} while (h != halfEdge && valence < MAX_VALENCE);
+
+		int vertex = mesh.getStartVertex(halfEdge);
+		double n = valence, divisor = n * (5 * n + 29);
+		limits[vertex * 3] = (float) ((5 * n * n * mesh.getX(vertex) + 22 * ex + 7 * dx) / divisor);
+		limits[vertex * 3 + 1] = (float) ((5 * n * n * mesh.getY(vertex) + 22 * ey + 7 * dy) / divisor);
+		limits[vertex * 3 + 2] = (float) ((5 * n * n * mesh.getZ(vertex) + 22 * ez + 7 * dz) / divisor);
+	}
+
+	/**
+	 * Bounds of the vertices of the faces around the corners, which hold the patch
+	 */
+	private void calculateBounds(int face, float[] faceBounds) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int i = 0;i < 4;i ++) {
+			long start = face * 4L + i, h = start;
+			int valence = 0;
+			do {
+				for (int j = 0;j < 4;j ++) {
+					int vertex = mesh.getVertex((int) (h >> 2), j);
+					minX = Math.min(minX, mesh.getX(vertex));
+					minY = Math.min(minY, mesh.getY(vertex));
+					minZ = Math.min(minZ, mesh.getZ(vertex));
+					maxX = Math.max(maxX, mesh.getX(vertex));
+					maxY = Math.max(maxY, mesh.getY(vertex));
+					maxZ = Math.max(maxZ, mesh.getZ(vertex));
+				}
+				h = MeshTopology.next(topology.getTwin(h));
+			} while (h != start && ++ valence < MAX_VALENCE);
+		}
+		faceBounds[face * 6] = minX;
+		faceBounds[face * 6 + 1] = minY;
+		faceBounds[face * 6 + 2] = minZ;
+		faceBounds[face * 6 + 3] = maxX;
+		faceBounds[face * 6 + 4] = maxY;
+		faceBounds[face * 6 + 5] = maxZ;
+	}
+
+	/**
+	 * @return the topology of the mesh, it is built first for a base mesh
+	 */
+	private static MeshTopology getTopology(QuadMesh mesh) {
+		MeshTopology topology = mesh.getTopology();
+		if (topology == null) {
+			topology = MeshTopology.build(mesh);
+			mesh.setTopology(topology);
+		}
+		return topology;
+	}
+
+}
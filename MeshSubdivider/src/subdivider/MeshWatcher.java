@@ -0,0 +1,201 @@
+package subdivider;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import subdivider.io.MeshStreams;
+import subdivider.ui.LevelSwitcher;
+import subdivider.util.MeshValidator;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Watches the input file, and every time it is saved subdivides it again and
+ * updates the output file and the window.
+ *
+ * Every level is kept. When only the positions of the new mesh differ, only the
+ * parts of every level that depend on the vertices that moved are recalculated (see
+ * QuadSubdivider.updateVertices), the rest is reused. When the faces changed the
+ * new mesh is subdivided completely, with the arrays of the LevelAllocator (so
+ * within its memory budget).
+ *
+ * The output file is written to a temporary file next to it, which then replaces
+ * it, so a failed write keeps the previous version.
+ *
+ * The file is checked for changes by polling its modification time and size,
+ * a change is only read once the file stopped changing, so a save that is still
+ * in progress is not picked up.
+ */
+public class MeshWatcher {
+
+	//milliseconds between checking the file
+	private static final long POLL_INTERVAL = 500;
+
+	private File inFile;
+	private int subdivisionLevel;
+	private LevelAllocator allocator;
+	private File outFile; //null if there is no output file
+	private LevelSwitcher viewer; //null if there is no window
+
+	private QuadMesh[] levels; //null until the first change, if not given by setLevels
+
+	/**
+	 * @param inFile
+	 * @param subdivisionLevel amount of subdivisions
+	 * @param allocator provides the arrays of the levels, it must not be preallocated
+	 * @param outFile file that is rewritten after every change, or null
+	 * @param viewer window that shows the new levels after every change, or null
+	 */
+	public MeshWatcher(File inFile, int subdivisionLevel, LevelAllocator allocator, File outFile, LevelSwitcher viewer) {
+		this.inFile = inFile;
+		this.subdivisionLevel = subdivisionLevel;
+		this.allocator = allocator;
+		this.outFile = outFile;
+		this.viewer = viewer;
+	}
+
+	/**
+	 * @param levels the current base mesh followed by each of its subdivided levels
+	 */
+	public void setLevels(QuadMesh[] levels) {
+		this.levels = levels;
+	}
+
+	/**
+	 * Watches the file until the program is stopped
+	 */
+	public void run() {
+		System.out.println("Watching " + inFile + " for changes");
+		long modified = inFile.lastModified();
+		long length = inFile.length();
+		while (true) {
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (inFile.lastModified() == modified && inFile.length() == length)
+				continue;
+			do { //wait until it is saved completely
+				modified = inFile.lastModified();
+				length = inFile.length();
+				try {
+					Thread.sleep(POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			} while (inFile.lastModified() != modified || inFile.length() != length);
+
+			QuadMesh mesh = Subdivider.readMesh(inFile);
+			if (mesh != null) //could not read, error message was printed by the reader
+				update(mesh);
+		}
+	}
+
+	/**
+	 * Subdivides the new version of the base mesh, and writes and shows the result
+	 *
+	 * @param mesh
+	 */
+	public void update(QuadMesh mesh) {
+		long start = System.nanoTime();
+		ArrayList<String> problems = MeshValidator.validate(mesh);
+		if (!problems.isEmpty()) { //keep the last good version
+			System.out.println("Model can not be subdivided:");
+			for (String problem : problems)
+				System.out.println("  " + problem);
+			return;
+		}
+
+		int[] moved = levels != null ? findMovedVertices(levels[0], mesh) : null;
+		try {
+			if (moved == null) { //new faces, start over
+				QuadMesh[] newLevels = new QuadMesh[subdivisionLevel + 1];
+				newLevels[0] = mesh;
+				for (int i = 0;i < subdivisionLevel;i ++)
+					newLevels[i + 1] = QuadSubdivider.subdivideMesh(newLevels[i], allocator.allocate(newLevels[i]));
+				levels = newLevels;
+				System.out.println("Subdivided the new mesh in " + (System.nanoTime() - start) / 1000000 + "ms");
+			} else if (moved.length == 0) {
+				System.out.println("Mesh did not change");
+				return;
+			} else {
+				QuadMesh base = levels[0];
+				for (int v : moved)
+					base.setPosition(v, mesh.getX(v), mesh.getY(v), mesh.getZ(v));
+				int[] changed = QuadSubdivider.updateVertices(levels, moved);
+				System.out.println(moved.length + " vertices moved, updated " + changed.length + " of "
+						+ levels[subdivisionLevel].getVertexCount() + " vertices in " 
+						+ (System.nanoTime() - start) / 1000000 + "ms");
+			}
+		} catch (IllegalArgumentException ex) { //too large for the storage
+			System.out.println("Model can not be subdivided: " + ex.getMessage());
+			return;
+		}
+
+		QuadMesh subdivided = levels[subdivisionLevel];
+		if (outFile != null) {
+			if (MeshStreams.isStandardStream(outFile))
+				Subdivider.writeMesh(subdivided, outFile);
+			else
+				replace(subdivided, outFile);
+		}
+		if (viewer != null)
+			viewer.setLevels(levels);
+	}
+
+	/**
+	 * Writes the mesh to a temporary file, and renames it over the output file
+	 */
+	private static void replace(QuadMesh mesh, File outFile) {
+		File temp = getTempFile(outFile);
+		temp.delete(); //left over from an earlier run
+		if (!Subdivider.writeMesh(mesh, temp)) {
+			temp.delete();
+			System.out.println("Kept the previous version of " + outFile);
+			return;
+		}
+		if (!temp.renameTo(outFile)) { //some systems don't rename over an existing file
+			outFile.delete();
+			if (!temp.renameTo(outFile))
+				System.out.println("Could not rename " + temp + " to " + outFile);
+		}
+	}
+
+	/**
+	 * @return file next to the output file, with the same extension so it is written in the same format
+	 */
+	private static File getTempFile(File outFile) {
+		return new File(outFile.getAbsoluteFile().getParentFile(), ".tmp." + outFile.getName());
+	}
+
+	/**
+	 * @param mesh the current base mesh
+	 * @param newMesh
+	 * @return the vertices whose positions are different in the new mesh,
+	 * or null if the new mesh has different faces
+	 */
+	private static int[] findMovedVertices(QuadMesh mesh, QuadMesh newMesh) {
+		if (mesh.getVertexCount() != newMesh.getVertexCount() || mesh.getFaceCount() != newMesh.getFaceCount())
+			return null;
+		for (int f = 0;f < mesh.getFaceCount();f ++) {
+			for (int i = 0;i < 4;i ++) {
+				if (mesh.getVertex(f, i) != newMesh.getVertex(f, i))
+					return null;
+			}
+		}
+
+		int count = 0;
+		int[] moved = new int[mesh.getVertexCount()];
+		for (int v = 0;v < mesh.getVertexCount();v ++) {
+			if (mesh.getX(v) != newMesh.getX(v) || mesh.getY(v) != newMesh.getY(v) || mesh.getZ(v) != newMesh.getZ(v))
+				moved[count ++] = v;
+		}
+		int[] result = new int[count];
+		System.arraycopy(moved, 0, result, 0, count);
+		return result;
+	}
+
+}
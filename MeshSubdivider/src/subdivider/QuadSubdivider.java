@@ -1,10 +1,17 @@
 package subdivider;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import subdivider.util.HalfEdge;
+import subdivider.util.FloatStore;
+import subdivider.util.IntStore;
+import subdivider.util.MeshStorage;
+import subdivider.util.MeshTopology;
 import subdivider.util.QuadFace;
+import subdivider.util.QuadMesh;
+import subdivider.util.math.FastMath;
 import subdivider.util.math.Vector3f;
 
 /**
@@ -12,6 +19,9 @@ import subdivider.util.math.Vector3f;
  *
  * Class used to divide an array of faces into more faces, 
  * also provides a method to calculate the normals for an array of faces
+ * 
+ * The same operations are provided for indexed meshes (QuadMesh), which keep
+ * the connectivity between the faces, so shared vertices are only computed once
  */
 public class QuadSubdivider {
 
@@ -66,4 +76,551 @@ public class QuadSubdivider {
 		return normals;
 	}
 	
+	/**
+	 * Subdivides an indexed mesh in O(n) time. The new mesh holds the updated
+	 * vertices first (with the same indices as in the old mesh), followed by 
+	 * one vertex per edge and one vertex per face. New face 4 * f + c is the
+	 * face at corner c + 1 of old face f, so the faces created from the same 
+	 * base face stay next to each other.
+	 * 
+	 * The topology of the new mesh is derived directly from the old one.
+	 * 
+	 * @param mesh
+	 * @return the subdivided mesh
+	 * @throws IllegalArgumentException if the mesh is not closed (see MeshTopology.build)
+	 */
+	public static QuadMesh subdivideMesh(QuadMesh mesh) {
+		return subdivideMesh(mesh, MeshStorage.HEAP);
+	}
+	
+	/**
+	 * Same as subdivideMesh, with the new mesh kept in the given storage
+	 * 
+	 * @param mesh
+	 * @param storage where the new mesh is kept
+	 * @return the subdivided mesh
+	 * @throws IllegalArgumentException if the mesh is not closed, or the new mesh
+	 * 		does not fit in the storage
+	 */
+	public static QuadMesh subdivideMesh(QuadMesh mesh, MeshStorage storage) {
+		return subdivideMesh(mesh, createSubdivided(mesh, storage));
+	}
+	
+	/**
+	 * Same as subdivideMesh, with the new mesh written into the given empty mesh
+	 * 
+	 * @param mesh
+	 * @param subdivided see createSubdivided
+	 * @return the subdivided mesh
+	 */
+	public static QuadMesh subdivideMesh(QuadMesh mesh, QuadMesh subdivided) {
+		beginSubdivision(mesh, subdivided);
+		subdivideFaces(mesh, subdivided, 0, mesh.getFaceCount());
+		return subdivided;
+	}
+	
+	/**
+	 * @param mesh a closed mesh
+	 * @return bytes the mesh returned by subdivideMesh will use, see QuadMesh.getSizeInBytes
+	 */
+	public static long getSubdividedSize(QuadMesh mesh) {
+		long faceCount = mesh.getFaceCount() * 4L;
+		//a closed quad mesh has 2 edges per face, each gets a new vertex like each face
+		long vertexCount = mesh.getVertexCount() + mesh.getFaceCount() * 3L;
+		return QuadMesh.getSizeInBytes(vertexCount, faceCount);
+	}
+	
+	/**
+	 * Picks where to keep the next level of the mesh, MAPPED if the mesh and the 
+	 * next level together would use more than the memory budget, so the operating
+	 * system can move the parts that are not used out of memory
+	 * 
+	 * @param mesh
+	 * @param storage storage to use if the levels fit the budget
+	 * @param memoryBudget bytes the levels may use
+	 * @return
+	 */
+	public static MeshStorage chooseStorage(QuadMesh mesh, MeshStorage storage, long memoryBudget) {
+		if (mesh.getSizeInBytes() + getSubdividedSize(mesh) > memoryBudget)
+			return MeshStorage.MAPPED;
+		return storage;
+	}
+	
+	/**
+	 * First step of subdivideMesh, creates the new mesh and calculates the face
+	 * points and edge points. The new faces and vertex points are then created by
+	 * subdivideFaces, which can be called for parts of the mesh at a time.
+	 * 
+	 * @param mesh
+	 * @return the new mesh, with only its face and edge points set
+	 */
+	public static QuadMesh beginSubdivision(QuadMesh mesh) {
+		return beginSubdivision(mesh, MeshStorage.HEAP);
+	}
+	
+	/**
+	 * Same as beginSubdivision, with the new mesh kept in the given storage
+	 * 
+	 * @param mesh
+	 * @param storage where the new mesh is kept
+	 * @return the new mesh, with only its face and edge points set
+	 * @throws IllegalArgumentException if the mesh is not closed, or the new mesh
+	 * 		does not fit in the storage
+	 */
+	public static QuadMesh beginSubdivision(QuadMesh mesh, MeshStorage storage) {
+		return beginSubdivision(mesh, createSubdivided(mesh, storage));
+	}
+	
+	/**
+	 * Creates the empty mesh for subdividing the given mesh, with its arrays
+	 * allocated in the given storage
+	 * 
+	 * @param mesh
+	 * @param storage
+	 * @return
+	 * @throws IllegalArgumentException if the mesh is not closed, or the new mesh
+	 * 		does not fit in the storage
+	 */
+	public static QuadMesh createSubdivided(QuadMesh mesh, MeshStorage storage) {
+		long halfEdgeCount = mesh.getFaceCount() * 4L;
+		long vertexCount = mesh.getVertexCount() + getTopology(mesh).getEdgeCount() + mesh.getFaceCount();
+		checkCounts(vertexCount, halfEdgeCount, halfEdgeCount * 4);
+		return createSubdivided(mesh, storage.createFloats(vertexCount * 3), storage.createInts(halfEdgeCount * 4), 
+				storage.createInts(halfEdgeCount * 4), storage.createInts(halfEdgeCount * 4));
+	}
+	
+	/**
+	 * Creates the empty mesh for subdividing the given mesh, using the given arrays,
+	 * which may be larger than needed (see LevelAllocator)
+	 * 
+	 * @param mesh
+	 * @param positions
+	 * @param quads
+	 * @param twins
+	 * @param edges
+	 * @return
+	 * @throws IllegalArgumentException if the mesh is not closed, or the arrays are too small
+	 */
+	public static QuadMesh createSubdivided(QuadMesh mesh, FloatStore positions, IntStore quads, 
+			IntStore twins, IntStore edges) {
+		long edgeCount = getTopology(mesh).getEdgeCount();
+		long halfEdgeCount = mesh.getFaceCount() * 4L;
+		long vertexCount = mesh.getVertexCount() + edgeCount + mesh.getFaceCount();
+		checkCounts(vertexCount, halfEdgeCount, halfEdgeCount * 4);
+		if (positions.size() < vertexCount * 3 || quads.size() < halfEdgeCount * 4 
+				|| twins.size() < halfEdgeCount * 4 || edges.size() < halfEdgeCount * 4)
+			throw new IllegalArgumentException("Arrays are too small for the subdivided mesh");
+		
+		QuadMesh subdivided = new QuadMesh(positions, (int) vertexCount, quads, (int) halfEdgeCount);
+		subdivided.setTopology(new MeshTopology(twins, edges, edgeCount * 2 + halfEdgeCount));
+		return subdivided;
+	}
+	
+	/**
+	 * Vertices and faces are counted with ints, half edges and edges with unsigned ints
+	 * 
+	 * @throws IllegalArgumentException if a mesh with these counts can't be stored
+	 */
+	static void checkCounts(long vertexCount, long faceCount, long halfEdgeCount) {
+		//edges are half of the half edges in a closed mesh
+		if (vertexCount > Integer.MAX_VALUE || faceCount > Integer.MAX_VALUE || halfEdgeCount > 0xFFFFFFFFL)
+			throw new IllegalArgumentException("Subdivided mesh would have " + vertexCount + " vertices and "
+					+ halfEdgeCount + " half edges, that is too many");
+	}
+	
+	/**
+	 * @return the topology of the mesh, it is built first for a base mesh
+	 */
+	private static MeshTopology getTopology(QuadMesh mesh) {
+		MeshTopology topology = mesh.getTopology();
+		if (topology == null) { //base mesh, build the topology once
+			topology = MeshTopology.build(mesh);
+			mesh.setTopology(topology);
+		}
+		return topology;
+	}
+	
+	/**
+	 * Same as beginSubdivision, with the new mesh written into the given empty mesh
+	 * 
+	 * @param mesh
+	 * @param subdivided see createSubdivided
+	 * @return the new mesh, with only its face and edge points set
+	 */
+	public static QuadMesh beginSubdivision(QuadMesh mesh, QuadMesh subdivided) {
+		MeshTopology topology = getTopology(mesh);
+		int faceCount = mesh.getFaceCount();
+		long halfEdgeCount = faceCount * 4L;
+		
+		for (int f = 0;f < faceCount;f ++)
+			updateFacePoint(mesh, subdivided, f);
+		
+		//edge points are calculated by the half edge with the lower index of the two
+		for (long h = 0;h < halfEdgeCount;h ++) {
+			if (topology.getTwin(h) > h)
+				updateEdgePoint(mesh, subdivided, h);
+		}
+		
+		return subdivided;
+	}
+	
+	/**
+	 * Calculates the face point of face f, the average of its corners
+	 */
+	private static void updateFacePoint(QuadMesh mesh, QuadMesh subdivided, int f) {
+		int facePoints = (int) (mesh.getVertexCount() + mesh.getTopology().getEdgeCount());
+		float x = 0, y = 0, z = 0;
+		for (int i = 0;i < 4;i ++) {
+			int v = mesh.getVertex(f, i);
+			x += mesh.getX(v);
+			y += mesh.getY(v);
+			z += mesh.getZ(v);
+		}
+		subdivided.setPosition(facePoints + f, x / 4, y / 4, z / 4);
+	}
+	
+	/**
+	 * Calculates the edge point (f1 + f2 + e1 + e2) / 4 of the edge of half edge h, 
+	 * h must be the half edge with the lower index of the two, so the sum is always
+	 * done in the same order. The face points must be calculated first.
+	 */
+	private static void updateEdgePoint(QuadMesh mesh, QuadMesh subdivided, long h) {
+		MeshTopology topology = mesh.getTopology();
+		int edgePoints = mesh.getVertexCount();
+		int facePoints = (int) (edgePoints + topology.getEdgeCount());
+		long twin = topology.getTwin(h);
+		
+		int v1 = mesh.getStartVertex(h);
+		int v2 = mesh.getStartVertex(twin);
+		int f1 = facePoints + (int) (h >> 2);
+		int f2 = facePoints + (int) (twin >> 2);
+		subdivided.setPosition(edgePoints + (int) topology.getEdge(h), 
+				(mesh.getX(v1) + subdivided.getX(f1) + mesh.getX(v2) + subdivided.getX(f2)) / 4,
+				(mesh.getY(v1) + subdivided.getY(f1) + mesh.getY(v2) + subdivided.getY(f2)) / 4,
+				(mesh.getZ(v1) + subdivided.getZ(f1) + mesh.getZ(v2) + subdivided.getZ(f2)) / 4);
+	}
+	
+	/**
+	 * Second step of subdivideMesh, creates the new faces (and their topology) for 
+	 * the old faces in the range, and the vertex points of the corners of those faces. 
+	 * 
+	 * Once this was called for faces 0 to n, the new faces 0 to 4 * n are complete, 
+	 * ranges don't depend on each other, so they can be done in any order.
+	 * 
+	 * @param mesh
+	 * @param subdivided the mesh returned by beginSubdivision
+	 * @param firstFace first old face to subdivide
+	 * @param lastFace old face after the last one to subdivide
+	 */
+	public static void subdivideFaces(QuadMesh mesh, QuadMesh subdivided, int firstFace, int lastFace) {
+		for (long h = firstFace * 4L;h < lastFace * 4L;h ++) {
+			updateVertex(mesh, subdivided, h);
+			createFace(mesh, subdivided, h);
+		}
+	}
+	
+	/**
+	 * The vertex point part of subdivideFaces, calculates the vertex points of the 
+	 * corners of the old faces in the range, without creating the new faces.
+	 * 
+	 * @param mesh
+	 * @param subdivided the mesh returned by beginSubdivision
+	 * @param firstFace first old face
+	 * @param lastFace old face after the last one
+	 */
+	public static void updateVertexPoints(QuadMesh mesh, QuadMesh subdivided, int firstFace, int lastFace) {
+		for (long h = firstFace * 4L;h < lastFace * 4L;h ++)
+			updateVertex(mesh, subdivided, h);
+	}
+	
+	/**
+	 * The face part of subdivideFaces, creates the new faces (and their topology) 
+	 * for the old faces in the range. Only reads the topology of the old mesh, so
+	 * the positions of the new mesh can be read (e.g. written) at the same time.
+	 * 
+	 * @param mesh
+	 * @param subdivided the mesh returned by beginSubdivision
+	 * @param firstFace first old face
+	 * @param lastFace old face after the last one
+	 */
+	public static void createFaces(QuadMesh mesh, QuadMesh subdivided, int firstFace, int lastFace) {
+		for (long h = firstFace * 4L;h < lastFace * 4L;h ++)
+			createFace(mesh, subdivided, h);
+	}
+	
+	/**
+	 * Creates new face h, at the end of old half edge h, and its half edges
+	 */
+	private static void createFace(QuadMesh mesh, QuadMesh subdivided, long h) {
+		MeshTopology topology = mesh.getTopology();
+		MeshTopology newTopology = subdivided.getTopology();
+		long edgeCount = topology.getEdgeCount();
+		int edgePoints = mesh.getVertexCount();
+		int facePoints = (int) (edgePoints + edgeCount);
+		
+		//new face made of the edge point, the end vertex the next 
+		//edge point and the face point (see HalfEdge.generateNewFace)
+		long next = MeshTopology.next(h);
+		int start = mesh.getStartVertex(h);
+		int end = mesh.getStartVertex(next);
+		int nextEnd = mesh.getStartVertex(MeshTopology.next(next));
+		int face = (int) h; //new face h is at the end of half edge h
+		subdivided.setVertex(face, 0, edgePoints + (int) topology.getEdge(h));
+		subdivided.setVertex(face, 1, end);
+		subdivided.setVertex(face, 2, edgePoints + (int) topology.getEdge(next));
+		subdivided.setVertex(face, 3, facePoints + (int) (h >> 2));
+		
+		//the outer half edges are halves of the old edges, the half touching 
+		//the higher vertex index gets the odd edge index. The inner half edges 
+		//get one new edge per old half edge.
+		long q = h * 4;
+		newTopology.setTwin(q, MeshTopology.prev(topology.getTwin(h)) * 4 + 1);
+		newTopology.setTwin(q + 1, topology.getTwin(next) * 4);
+		newTopology.setTwin(q + 2, next * 4 + 3);
+		newTopology.setTwin(q + 3, MeshTopology.prev(h) * 4 + 2);
+		newTopology.setEdge(q, topology.getEdge(h) * 2 + (end > start ? 1 : 0));
+		newTopology.setEdge(q + 1, topology.getEdge(next) * 2 + (end > nextEnd ? 1 : 0));
+		newTopology.setEdge(q + 2, edgeCount * 2 + next);
+		newTopology.setEdge(q + 3, edgeCount * 2 + h);
+	}
+	
+	/**
+	 * Calculates the vertex point for the vertex half edge h starts at, 
+	 * if h has the lowest index of all half edges starting at the vertex, 
+	 * this way every vertex is updated exactly once. 
+	 * See HalfEdge.updatePosition for the formula.
+	 */
+	private static void updateVertex(QuadMesh mesh, QuadMesh subdivided, long h) {
+		MeshTopology topology = mesh.getTopology();
+		int edgePoints = mesh.getVertexCount();
+		int facePoints = (int) (edgePoints + topology.getEdgeCount());
+		
+		int n = 0;
+		float ex = 0, ey = 0, ez = 0;
+		float fx = 0, fy = 0, fz = 0;
+		long edge = h;
+		do {
+			if (edge < h) //another half edge will update this vertex
+				return;
+			
+			n ++;
+			int e = edgePoints + (int) topology.getEdge(edge);
+			int f = facePoints + (int) (edge >> 2);
+			ex += subdivided.getX(e);
+			ey += subdivided.getY(e);
+			ez += subdivided.getZ(e);
+			fx += subdivided.getX(f);
+			fy += subdivided.getY(f);
+			fz += subdivided.getZ(f);
+			edge = topology.getTwin(MeshTopology.prev(edge)); //next half edge around the vertex
+		} while (edge != h);
+		
+		int v = mesh.getStartVertex(h);
+		subdivided.setPosition(v, 
+				((n - 3) * mesh.getX(v) + 2 * ex / n + fx / n) / n,
+				((n - 3) * mesh.getY(v) + 2 * ey / n + fy / n) / n,
+				((n - 3) * mesh.getZ(v) + 2 * ez / n + fz / n) / n);
+	}
+	
+	/**
+	 * Recalculates a subdivided mesh after some vertices of the base mesh moved (its 
+	 * faces must be the same), with the new positions already set in the base mesh. 
+	 * Only what depends on the moved vertices is calculated again, so the cost is 
+	 * proportional to the area that changed, and the result is exactly the same as
+	 * subdividing the whole mesh again.
+	 * 
+	 * On every level the faces around the changed vertices get new face points, their
+	 * edges new edge points and their corners new vertex points, those are the changed
+	 * vertices of the next level, so the changed area grows by one ring per level.
+	 * Each changed vertex is tracked by a half edge starting at it, the half edges of
+	 * the new vertices follow from the order of the new faces (see subdivideFaces).
+	 * 
+	 * @param levels the base mesh followed by each of its subdivided levels
+	 * @param vertices indices of the base vertices that moved
+	 * @return indices of the vertices of the last level that changed, in increasing order
+	 */
+	public static int[] updateVertices(QuadMesh[] levels, int[] vertices) {
+		QuadMesh base = levels[0];
+		boolean[] moved = new boolean[base.getVertexCount()];
+		for (int v : vertices)
+			moved[v] = true;
+		
+		//a half edge starting at each moved vertex, the base mesh does not have them
+		int count = 0;
+		long[] changed = new long[vertices.length];
+		for (long h = 0;h < base.getFaceCount() * 4L;h ++) {
+			int v = base.getStartVertex(h);
+			if (moved[v]) {
+				moved[v] = false;
+				changed[count ++] = h;
+			}
+		}
+		
+		for (int l = 0;l < levels.length - 1;l ++) {
+			QuadMesh mesh = levels[l];
+			QuadMesh subdivided = levels[l + 1];
+			MeshTopology topology = mesh.getTopology();
+			
+			//faces around the changed vertices
+			int faceCount = 0;
+			long[] faces = new long[16];
+			for (int i = 0;i < count;i ++) {
+				long edge = changed[i];
+				do {
+					if (faceCount == faces.length)
+						faces = Arrays.copyOf(faces, faceCount * 2);
+					faces[faceCount ++] = edge >> 2;
+					edge = topology.getTwin(MeshTopology.prev(edge));
+				} while (edge != changed[i]);
+			}
+			faceCount = unique(faces, faceCount);
+			
+			//the half edge with the lower index of each edge of the faces, 
+			//and the lowest half edge of each corner
+			long[] edges = new long[faceCount * 4];
+			long[] corners = new long[faceCount * 4];
+			for (int i = 0;i < faceCount;i ++) {
+				for (int c = 0;c < 4;c ++) {
+					long h = faces[i] * 4 + c;
+					edges[i * 4 + c] = Math.min(h, topology.getTwin(h));
+					corners[i * 4 + c] = getLowestHalfEdge(topology, h);
+				}
+			}
+			int edgeCount = unique(edges, edges.length);
+			int cornerCount = unique(corners, corners.length);
+			
+			count = 0;
+			changed = new long[faceCount + edgeCount + cornerCount];
+			for (int i = 0;i < faceCount;i ++) {
+				updateFacePoint(mesh, subdivided, (int) faces[i]);
+				changed[count ++] = faces[i] * 16 + 3; //new face 4 * f ends at the face point
+			}
+			for (int i = 0;i < edgeCount;i ++) {
+				updateEdgePoint(mesh, subdivided, edges[i]);
+				changed[count ++] = edges[i] * 4; //new face h starts at the edge point of h
+			}
+			for (int i = 0;i < cornerCount;i ++) {
+				updateVertex(mesh, subdivided, corners[i]);
+				changed[count ++] = MeshTopology.prev(corners[i]) * 4 + 1; //new face prev(h) has the vertex at corner 1
+			}
+		}
+		
+		QuadMesh last = levels[levels.length - 1];
+		int[] result = new int[count];
+		for (int i = 0;i < count;i ++)
+			result[i] = last.getStartVertex(changed[i]);
+		Arrays.sort(result);
+		return result;
+	}
+	
+	/**
+	 * Sorts the first count values and removes the duplicates
+	 * 
+	 * @return the amount of values left
+	 */
+	private static int unique(long[] values, int count) {
+		Arrays.sort(values, 0, count);
+		int unique = 0;
+		for (int i = 0;i < count;i ++) {
+			if (unique == 0 || values[i] != values[unique - 1])
+				values[unique ++] = values[i];
+		}
+		return unique;
+	}
+	
+	/**
+	 * @return the lowest half edge starting at the same vertex as half edge h
+	 */
+	private static long getLowestHalfEdge(MeshTopology topology, long h) {
+		long lowest = h;
+		for (long edge = topology.getTwin(MeshTopology.prev(h));edge != h;
+				edge = topology.getTwin(MeshTopology.prev(edge)))
+			lowest = Math.min(lowest, edge);
+		return lowest;
+	}
+	
+	/**
+	 * Calculates the normal of every vertex in an indexed mesh, by averaging 
+	 * the normals of the faces around it (same as calculateNormals for QuadFaces)
+	 * 
+	 * @param mesh
+	 * @return array holding x, y, z of the normal for each vertex, in the same storage
+	 * as the positions of the mesh
+	 */
+	public static FloatStore calculateNormals(QuadMesh mesh) {
+		FloatStore normals = sumFaceNormals(mesh);
+		normalizeNormals(normals, 0, mesh.getVertexCount());
+		return normals;
+	}
+	
+	/**
+	 * First half of calculateNormals, adds the normal of every face to its 
+	 * vertices, without normalizing the sums
+	 * 
+	 * @param mesh
+	 * @return array holding x, y, z of the summed normals for each vertex
+	 */
+	public static FloatStore sumFaceNormals(QuadMesh mesh) {
+		FloatStore normals = mesh.getStorage().createFloats(mesh.getVertexCount() * 3L);
+		float[] normal = new float[3];
+		for (int f = 0;f < mesh.getFaceCount();f ++) {
+			calculateFaceNormal(mesh, f, normal);
+			for (int i = 0;i < 4;i ++) { //add face normal to the vertices
+				long p = mesh.getVertex(f, i) * 3L;
+				for (int k = 0;k < 3;k ++)
+					normals.set(p + k, normals.get(p + k) + normal[k]);
+			}
+		}
+		return normals;
+	}
+	
+	/**
+	 * Second half of calculateNormals, turns the summed normals of 
+	 * the vertices in the range into unit normals
+	 * 
+	 * @param normals see sumFaceNormals
+	 * @param firstVertex
+	 * @param lastVertex vertex after the last one
+	 */
+	public static void normalizeNormals(FloatStore normals, int firstVertex, int lastVertex) {
+		for (long p = firstVertex * 3L;p < lastVertex * 3L;p += 3) {
+			float x = normals.get(p), y = normals.get(p + 1), z = normals.get(p + 2);
+			float length = x * x + y * y + z * z;
+			if (length != 0) { //same as normalize
+				length = FastMath.sqrt(length);
+				normals.set(p, x / length);
+				normals.set(p + 1, y / length);
+				normals.set(p + 2, z / length);
+			}
+		}
+	}
+	
+	/**
+	 * Calculates the unit normal of a face, (v1 - v0) x (v2 - v0), same as QuadFace.getNormal
+	 */
+	private static void calculateFaceNormal(QuadMesh mesh, int f, float[] normal) {
+		int v0 = mesh.getVertex(f, 0);
+		int v1 = mesh.getVertex(f, 1);
+		int v2 = mesh.getVertex(f, 2);
+		float ax = mesh.getX(v1) - mesh.getX(v0), ay = mesh.getY(v1) - mesh.getY(v0), az = mesh.getZ(v1) - mesh.getZ(v0);
+		float bx = mesh.getX(v2) - mesh.getX(v0), by = mesh.getY(v2) - mesh.getY(v0), bz = mesh.getZ(v2) - mesh.getZ(v0);
+		normal[0] = ay * bz - az * by;
+		normal[1] = az * bx - ax * bz;
+		normal[2] = ax * by - ay * bx;
+		normalize(normal, 0);
+	}
+	
+	/**
+	 * Normalizes the vector at the offset in the array, unless its length is 0
+	 */
+	private static void normalize(float[] v, int p) {
+		float length = v[p] * v[p] + v[p + 1] * v[p + 1] + v[p + 2] * v[p + 2];
+		if (length != 0) {
+			length = FastMath.sqrt(length);
+			v[p] /= length;
+			v[p + 1] /= length;
+			v[p + 2] /= length;
+		}
+	}
+	
 }
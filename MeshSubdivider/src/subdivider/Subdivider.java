@@ -5,7 +5,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import javax.media.opengl.GLCapabilities;
 import javax.media.opengl.GLProfile;
@@ -13,10 +12,20 @@ import javax.media.opengl.awt.GLCanvas;
 import javax.swing.JFrame;
 
 import subdivider.io.BasicQuadReaderWriter;
+import subdivider.io.Checkpoint;
+import subdivider.io.MeshStreams;
+import subdivider.io.ObjReaderWriter;
+import subdivider.io.PlyReaderWriter;
 import subdivider.ui.Animator;
+import subdivider.ui.LevelSwitcher;
+import subdivider.ui.PreviewRenderer;
 import subdivider.ui.Renderer;
+import subdivider.util.FloatStore;
+import subdivider.util.MeshStorage;
+import subdivider.util.MeshTopology;
+import subdivider.util.MeshValidator;
 import subdivider.util.QuadFace;
-import subdivider.util.math.Vector3f;
+import subdivider.util.QuadMesh;
 
 /**
  *
@@ -43,44 +52,318 @@ public class Subdivider {
 			return;//exit
 		}
 		
-		ArrayList<QuadFace> faces = BasicQuadReaderWriter.readQuadsFromFile(new File(p_args.get(inFileIndex)));
-		if (faces == null) { //could not read, error message was printed by the reader
+		int outFileIndex = p_args.indexOf("-outfile") + 1;
+		int previewIndex = p_args.indexOf("-preview") + 1;
+		if (outFileIndex == p_args.size() || previewIndex == p_args.size()) { //gave the argument with no value...
+			printUsage();
+			return;
+		}
+		boolean outToStandard = outFileIndex != 0 && MeshStreams.isStandardStream(new File(p_args.get(outFileIndex)));
+		boolean previewToStandard = previewIndex != 0 && MeshStreams.isStandardStream(new File(p_args.get(previewIndex)));
+		if (outToStandard && previewToStandard) { //both can't be written to standard output
+			System.err.println("Only one of -outfile and -preview can be \"-\"");
+			return;
+		} else if (outToStandard || previewToStandard) {
+			System.setOut(System.err); //the mesh or image is written to standard output, keep messages out of it
+		}
+		
+		QuadMesh mesh = readMesh(new File(p_args.get(inFileIndex)));
+		if (mesh == null) { //could not read, error message was printed by the reader
 			return;
 		}
 		
 		int subdivisionLevel = 0;
 		try { 
 			int numSubdivisionsIndex = p_args.indexOf("-subdivisions") + 1;
-			if (subdivisionLevel != -1) //found this option
+			if (numSubdivisionsIndex != 0) //found this option
 				subdivisionLevel = Integer.parseInt(p_args.get(numSubdivisionsIndex));
 		} catch (Exception ex) { //bad value, must exit
 			printUsage();
 			return;
 		}
 		
-		ArrayList<QuadFace> sub_faces = faces;
-		try { 
-			for (int i = 0;i < subdivisionLevel;i ++)
-				sub_faces = QuadSubdivider.subdivideFaces(sub_faces); //subdivide the mesh to the given level
-		} catch (NullPointerException ex) { 
-			System.out.println("Model was too small, or too many subdivisions were specified :(");
+		if (subdivisionLevel > 0 || p_args.indexOf("-validate") != -1) { //reject bad meshes before spending time on them
+			ArrayList<String> problems = MeshValidator.validate(mesh);
+			if (!problems.isEmpty()) {
+				System.out.println("Model can not be subdivided:");
+				for (String problem : problems)
+					System.out.println("  " + problem);
+				return;
+			}
+			if (p_args.indexOf("-validate") != -1) { //only asked to check the mesh
+				System.out.println("Model is valid");
+				return;
+			}
+		}
+		
+		MeshTopology.Pairing pairing = MeshTopology.Pairing.HASH;
+		int topologyIndex = p_args.indexOf("-topology") + 1;
+		if (topologyIndex != 0) { //how to build the topology, hash or sort
+			try {
+				pairing = MeshTopology.Pairing.valueOf(p_args.get(topologyIndex).toUpperCase());
+			} catch (Exception ex) { //missing or bad value
+				printUsage();
+				return;
+			}
+		}
+		
+		MeshStorage storage = MeshStorage.HEAP;
+		int storageIndex = p_args.indexOf("-storage") + 1;
+		if (storageIndex != 0) { //where to keep the subdivided mesh, heap or off-heap
+			try {
+				if (p_args.get(storageIndex).equals("auto")) //picked by the planner below
+					storage = null;
+				else
+					storage = MeshStorage.valueOf(p_args.get(storageIndex).toUpperCase().replace('-', '_'));
+			} catch (Exception ex) { //missing or bad value
+				printUsage();
+				return;
+			}
+		}
+		
+		long memoryBudget = Long.MAX_VALUE;
+		int memoryIndex = p_args.indexOf("-memory") + 1;
+		if (memoryIndex != 0) { //levels that don't fit are kept in scratch files
+			try {
+				memoryBudget = parseSize(p_args.get(memoryIndex));
+			} catch (Exception ex) { //missing or bad value
+				printUsage();
+				return;
+			}
+		}
+		int scratchIndex = p_args.indexOf("-scratch") + 1;
+		if (scratchIndex == p_args.size()) { //gave the -scratch argument with no value...
+			printUsage();
 			return;
+		} else if (scratchIndex != 0) {
+			MeshStorage.setScratchDirectory(new File(p_args.get(scratchIndex)));
 		}
 		
-		int show = p_args.indexOf("-show"); //optional argument
-		if (show != -1) //if argument exists build the gui
-			setUpGUI(sub_faces);
+		boolean plan = p_args.indexOf("-plan") != -1;
+		if (plan || storage == null) { //work out the counts, memory and time of every level
+			SubdivisionPlanner planner;
+			try {
+				mesh.setTopology(MeshTopology.build(mesh, pairing));
+				planner = new SubdivisionPlanner(mesh, subdivisionLevel);
+			} catch (IllegalArgumentException ex) { //mesh is not closed
+				System.out.println("Model can not be subdivided: " + ex.getMessage());
+				return;
+			}
+			if (plan) { //only asked for the plan
+				planner.print(memoryBudget);
+				return;
+			}
+			storage = planner.chooseStorage(memoryBudget);
+			if (storage == null) {
+				System.out.println("Model can not be subdivided: " + subdivisionLevel 
+						+ " subdivisions do not fit in any storage, see -plan");
+				return;
+			}
+			System.out.println("Using " + SubdivisionPlanner.storageName(storage) + " storage");
+		}
 		
-		int outFileIndex = p_args.indexOf("-outfile") + 1;
-		if (outFileIndex == p_args.size()) { //gave the -outfile argument with no value...
+		PreviewRenderer preview = null;
+		if (previewIndex != 0) { //image of the result, drawn without a display
+			try {
+				preview = createPreview(p_args);
+			} catch (Exception ex) { //missing or bad value
+				printUsage();
+				return;
+			}
+		}
+		
+		int checkpointIndex = p_args.indexOf("-checkpoint") + 1;
+		if (checkpointIndex == p_args.size()) { //gave the -checkpoint argument with no value...
 			printUsage();
 			return;
-		} else if (outFileIndex != 0) { //its an option, so if it exists...
-			HashMap<Vector3f, Vector3f> normals = QuadSubdivider.calculateNormals(sub_faces);
-			//Note that if the file already exists, or is not a file this will print an error
-			BasicQuadReaderWriter.writeQuadsToFile(sub_faces, normals, new File(p_args.get(outFileIndex)));
 		}
+		//each completed level is saved to the checkpoint file, so the job can be resumed
+		File checkpointFile = checkpointIndex != 0 ? new File(p_args.get(checkpointIndex)) : null;
+		boolean resume = p_args.indexOf("-resume") != -1;
+		if (resume && checkpointFile == null) { //nothing to resume from
+			printUsage();
+			return;
+		}
+		
+		int level = 0; //levels already done
+		long fingerprint = 0;
+		if (checkpointFile != null) { //recognizes checkpoints of this input
+			fingerprint = Checkpoint.fingerprint(mesh);
+			if (resume) {
+				Checkpoint checkpoint = Checkpoint.read(checkpointFile, storage, fingerprint);
+				if (checkpoint != null && checkpoint.getLevel() > subdivisionLevel) {
+					System.out.println("Checkpoint is at level " + checkpoint.getLevel() 
+							+ ", more than " + subdivisionLevel + " subdivisions");
+					return;
+				} else if (checkpoint != null) {
+					mesh = checkpoint.getMesh();
+					level = checkpoint.getLevel();
+					System.out.println("Resuming from level " + level);
+				} else {
+					System.out.println("Starting from the input mesh");
+				}
+			}
+		}
+		
+		LevelAllocator allocator = new LevelAllocator(storage, memoryBudget);
+		//allocate all levels before subdividing, fails now if they don't fit
+		boolean preallocate = p_args.indexOf("-preallocate") != -1;
+		
+		//write while subdividing, only does something if there is an output file that is not PLY
+		boolean pipeline = p_args.indexOf("-pipeline") != -1 && outFileIndex != 0
+				&& SubdivisionPipeline.supports(new File(p_args.get(outFileIndex)));
+		
+		//watch mode keeps every level, to update only the parts that change
+		QuadMesh[] levels = null;
+		if (p_args.indexOf("-watch") != -1 && level == 0) { //a resumed job starts without the lower levels
+			levels = new QuadMesh[subdivisionLevel + 1];
+			levels[0] = mesh;
+			preallocate = pipeline = false; //they reuse the arrays of the levels
+		}
+		
+		//the window opens right away, the levels are subdivided in the background
+		LevelSwitcher viewer = null;
+		if (p_args.indexOf("-show") != -1) { //if argument exists build the gui
+			viewer = setUpGUI(mesh, level);
+			preallocate = pipeline = false; //the viewer keeps the levels
+		}
+		
+		try { 
+			if (subdivisionLevel > 0 && mesh.getTopology() == null)
+				mesh.setTopology(MeshTopology.build(mesh, pairing));
+			if (preallocate)
+				allocator.preallocate(mesh, subdivisionLevel - level);
+			if (viewer != null)
+				viewer.subdivide(allocator, subdivisionLevel);
+			//the pipeline creates the last level while writing it
+			int lastLevel = pipeline ? subdivisionLevel - 1 : subdivisionLevel;
+			for (;level < lastLevel;level ++) { //subdivide the mesh to the given level
+				if (viewer != null)
+					mesh = viewer.awaitLevel(level + 1);
+				else
+					mesh = QuadSubdivider.subdivideMesh(mesh, allocator.allocate(mesh));
+				if (levels != null)
+					levels[level + 1] = mesh;
+				if (checkpointFile != null) //a failed checkpoint is printed, the job goes on
+					Checkpoint.write(mesh, level + 1, fingerprint, checkpointFile);
+			}
+			if (pipeline) {
+				mesh = SubdivisionPipeline.subdivideAndWrite(mesh, subdivisionLevel - level, 
+						new File(p_args.get(outFileIndex)), allocator);
+				if (mesh == null) //could not write, error message was printed
+					return;
+			}
+		} catch (IllegalArgumentException ex) { //mesh is not closed, or too large for the storage
+			System.out.println("Model can not be subdivided: " + ex.getMessage());
+			return;
+		}
+		
+		if (outFileIndex != 0 && !pipeline) //its an option, so if it exists...
+			writeMesh(mesh, new File(p_args.get(outFileIndex)));
+		
+		if (preview != null) //a failed preview is printed
+			PreviewRenderer.write(preview.render(mesh), new File(p_args.get(previewIndex)));
+		
+		if (p_args.indexOf("-watch") != -1) { //keep the output up to date with the infile
+			//the watcher keeps every level, so it can't reuse preallocated arrays, but has the same budget
+			MeshWatcher watcher = new MeshWatcher(new File(p_args.get(inFileIndex)), subdivisionLevel, 
+					new LevelAllocator(storage, memoryBudget),
+					outFileIndex != 0 ? new File(p_args.get(outFileIndex)) : null, viewer);
+			if (levels != null)
+				watcher.setLevels(levels);
+			watcher.run();
+		}
+		
+	}
+	
+	/**
+	 * Writes the mesh and its normals to the file, in the format given by its extension.
+	 * Note that if the file already exists, or is not a file this will print an error
+	 * 
+	 * @param mesh
+	 * @param outFile
+	 * @return true if the file was written
+	 */
+	static boolean writeMesh(QuadMesh mesh, File outFile) {
+		FloatStore normals = QuadSubdivider.calculateNormals(mesh);
+		String extension = MeshStreams.getExtension(outFile);
+		if (extension.equals("obj")) //format is picked by the extension
+			return ObjReaderWriter.writeMeshToFile(mesh, normals, outFile);
+		else if (extension.equals("ply"))
+			return PlyReaderWriter.writeMeshToFile(mesh, normals, outFile);
+		else
+			return BasicQuadReaderWriter.writeMeshToFile(mesh, normals, outFile);
+	}
+
+	/**
+	 * Sets up the preview from the -size widthxheight and -camera distance,vertical,horizontal
+	 * options (angles in degrees, like the camera of the viewer), both are optional
+	 * 
+	 * @param p_args
+	 * @return
+	 * @throws NumberFormatException if a value is not a number
+	 * @throws IndexOutOfBoundsException if a value is missing
+	 */
+	private static PreviewRenderer createPreview(ArrayList<String> p_args) {
+		int width = 800, height = 600;
+		int sizeIndex = p_args.indexOf("-size") + 1;
+		if (sizeIndex != 0) {
+			String[] size = p_args.get(sizeIndex).toLowerCase().split("x");
+			width = Integer.parseInt(size[0]);
+			height = Integer.parseInt(size[1]);
+			if (width <= 0 || height <= 0)
+				throw new NumberFormatException("Size must be positive");
+		}
+		
+		PreviewRenderer preview = new PreviewRenderer(width, height);
+		int cameraIndex = p_args.indexOf("-camera") + 1;
+		if (cameraIndex != 0) {
+			String[] camera = p_args.get(cameraIndex).split(",");
+			preview.setCamera(Float.parseFloat(camera[0]), (float) Math.toRadians(Float.parseFloat(camera[1])), 
+					(float) Math.toRadians(Float.parseFloat(camera[2])));
+		}
+		return preview;
+	}
+
+	/**
+	 * Parses a size in bytes, with an optional k, m or g suffix (e.g. 512m)
+	 * 
+	 * @param size
+	 * @return
+	 * @throws NumberFormatException if the size is not a number
+	 */
+	private static long parseSize(String size) {
+		String value = size.toLowerCase();
+		int shift = 0;
+		if (value.endsWith("k"))
+			shift = 10;
+		else if (value.endsWith("m"))
+			shift = 20;
+		else if (value.endsWith("g"))
+			shift = 30;
+		if (shift != 0)
+			value = value.substring(0, value.length() - 1);
+		return Long.parseLong(value) << shift;
+	}
+
+	/**
+	 * Reads the mesh from the file, the format is picked by the extension 
+	 * (.obj, .ply or the basic quad format otherwise, followed by .gz for 
+	 * compressed files). OBJ and PLY files are indexed already, the basic 
+	 * format is converted.
+	 * 
+	 * @param inFile
+	 * @return the mesh, or null if it could not be read
+	 */
+	static QuadMesh readMesh(File inFile) {
+		String extension = MeshStreams.getExtension(inFile);
+		if (extension.equals("obj"))
+			return ObjReaderWriter.readMeshFromFile(inFile);
+		else if (extension.equals("ply"))
+			return PlyReaderWriter.readMeshFromFile(inFile);
 		
+		ArrayList<QuadFace> faces = BasicQuadReaderWriter.readQuadsFromFile(inFile);
+		return faces == null ? null : QuadMesh.fromFaces(faces);
 	}
 
 	/**
@@ -88,9 +371,11 @@ public class Subdivider {
 	 * allows the user to rotate the view and look at what the program has
 	 * created
 	 * 
-	 * @param sub_faces the faces to show
+	 * @param mesh the mesh to show first
+	 * @param level subdivision level of the mesh
+	 * @return the switcher that subdivides and shows the next levels
 	 */
-	private static void setUpGUI(ArrayList<QuadFace> sub_faces) {
+	private static LevelSwitcher setUpGUI(QuadMesh mesh, int level) {
 		// setup OpenGL Version 2
     	GLProfile profile = GLProfile.get(GLProfile.GL2);
     	GLCapabilities capabilities = new GLCapabilities(profile);
@@ -98,17 +383,20 @@ public class Subdivider {
     	// The canvas is the widget that's drawn in the JFrame
     	GLCanvas glcanvas = new GLCanvas(capabilities);
     	//See Renderer, for a description of what this represents
-    	Renderer renderer = new Renderer(sub_faces);
+    	Renderer renderer = new Renderer(mesh);
+    	renderer.getFrameStats().register(); //see with jconsole, a failure is printed
     	glcanvas.addGLEventListener(renderer);
     	glcanvas.setPreferredSize(new Dimension(300, 300));//set size of canvas
     	glcanvas.setMaximumSize(new Dimension(700, 700));
     	
     	Animator animator = new Animator(glcanvas, renderer);
+    	LevelSwitcher switcher = new LevelSwitcher(renderer, mesh, level);
     	
     	//create window with "Subdivider" as title 
         JFrame frame = new JFrame("Subdivider");
         frame.add(glcanvas);
         glcanvas.addKeyListener(animator);
+        glcanvas.addKeyListener(switcher);
         
         frame.add(glcanvas);
         
@@ -122,6 +410,7 @@ public class Subdivider {
         frame.setSize(700, 500);
         frame.setVisible(true);
         animator.start();
+        return switcher;
 	}
 
 	/**
@@ -129,7 +418,8 @@ public class Subdivider {
 	 * 
 	 */
 	private static void printUsage() {
-		System.out.println("Usage: Subdivider infile [-subdivisions divisions] [-outfile outfile] [-show] ");
+		System.out.println("Usage: Subdivider infile [-subdivisions divisions] [-outfile outfile] [-pipeline] [-validate] [-topology hash|sort] [-storage heap|off-heap|mapped|auto] [-memory size] [-scratch dir] [-preallocate] [-plan] [-checkpoint file] [-resume] [-show] [-watch] [-preview image.png [-size widthxheight] [-camera distance,vertical,horizontal]] ");
+		System.out.println("-pipeline writes a basic quad or .obj outfile while subdividing, it is not used for .ply");
 	}
 	
 }
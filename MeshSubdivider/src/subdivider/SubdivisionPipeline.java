@@ -0,0 +1,220 @@
+package subdivider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import subdivider.io.AsyncBlockWriter;
+import subdivider.io.BasicQuadReaderWriter;
+import subdivider.io.MeshStreams;
+import subdivider.io.ObjReaderWriter;
+import subdivider.util.FloatStore;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Subdivides a mesh and writes the result at the same time. The last level is
+ * created in blocks of faces (see QuadSubdivider.subdivideFaces), and every finished
+ * block, and later every block of normals, is handed to an AsyncBlockWriter. So the
+ * output is written while the rest of the mesh is still being computed, instead of
+ * after all of it.
+ *
+ * For the basic quad format the vertices are written while the last level is
+ * subdivided. OBJ lists the vertices by index, so there all vertex points are 
+ * calculated first, and the new faces and then the normals are created while the
+ * vertex lines are written. The normals are summed in the same order as
+ * calculateNormals, so the file is exactly the same as without the pipeline.
+ * 
+ * PLY is not supported: every vertex record holds its normal, which needs all
+ * new faces, so nothing could be written before the whole level is done.
+ */
+public class SubdivisionPipeline {
+
+	//old faces subdivided per block, each gives 4 new faces
+	private static final int BLOCK_FACES = 1 << 14;
+	private static final int BLOCK_VERTICES = 1 << 16;
+	private static final int QUEUE_SIZE = 4;
+
+	/**
+	 * Subdivides the mesh the given amount of times, and writes the result to the
+	 * file in the format given by its extension, if the file doesn't exist.
+	 *
+	 * @param mesh
+	 * @param levels amount of subdivisions
+	 * @param outFile basic quad or OBJ file (see supports)
+	 * @param allocator provides the arrays of each level
+	 * @return the subdivided mesh, or null if the file could not be written (a message was printed)
+	 * @throws IllegalArgumentException if the mesh is not closed (see MeshTopology.build),
+	 * 		or does not fit in the storage
+	 */
+	public static QuadMesh subdivideAndWrite(QuadMesh mesh, int levels, File outFile, LevelAllocator allocator) {
+		for (int i = 0;i < levels - 1;i ++)
+			mesh = QuadSubdivider.subdivideMesh(mesh, allocator.allocate(mesh));
+
+		QuadMesh parent = null;
+		if (levels > 0) { //last level is created while writing
+			parent = mesh;
+			mesh = QuadSubdivider.beginSubdivision(parent, allocator.allocate(parent));
+		}
+
+		OutputStream out = null;
+		AsyncBlockWriter writer = null;
+		boolean finished = false;
+		try {
+			out = MeshStreams.openOutput(outFile);
+			if (out == null) //file exists
+				return null;
+
+			writer = new AsyncBlockWriter(QUEUE_SIZE);
+			String extension = MeshStreams.getExtension(outFile);
+			if (extension.equals("obj")) {
+				writeObj(writer, out, parent, mesh);
+			} else {
+				writeQuads(writer, out, parent, mesh, MeshStreams.isStandardStream(outFile));
+			}
+			writer.finish();
+			finished = true;
+		} catch (IOException e) {
+			System.out.println("Could not write to file: " + outFile);
+			return null;
+		} finally {
+			if (!finished) { //the last block, which closes the output, was not written
+				if (writer != null)
+					writer.cancel();
+				if (out != null)
+					close(out);
+			}
+		}
+		return mesh;
+	}
+
+	/**
+	 * Writes the basic quad format, subdividing the parent block by block if there is one
+	 */
+	private static void writeQuads(AsyncBlockWriter writer, final OutputStream out,
+			QuadMesh parent, final QuadMesh mesh, boolean flush) throws IOException {
+		final Writer quadWriter = BasicQuadReaderWriter.createWriter(out);
+		int blockFaces = parent == null ? BLOCK_FACES * 4 : BLOCK_FACES;
+		int faceCount = parent == null ? mesh.getFaceCount() : parent.getFaceCount();
+		for (int first = 0;first < faceCount;first += blockFaces) {
+			int last = Math.min(first + blockFaces, faceCount);
+			if (parent != null) { //new faces 4 * first to 4 * last are done after this
+				QuadSubdivider.subdivideFaces(parent, mesh, first, last);
+				writer.submit(vertexBlock(quadWriter, mesh, first * 4, last * 4, flush));
+			} else {
+				writer.submit(vertexBlock(quadWriter, mesh, first, last, flush));
+			}
+		}
+
+		writer.submit(new AsyncBlockWriter.Block() {
+			public void write() throws IOException {
+				BasicQuadReaderWriter.writeNormalsHeader(quadWriter);
+			}
+		});
+		final FloatStore normals = QuadSubdivider.calculateNormals(mesh);
+		for (int first = 0;first < mesh.getFaceCount();first += BLOCK_FACES * 4) {
+			final int last = Math.min(first + BLOCK_FACES * 4, mesh.getFaceCount());
+			final int firstFace = first;
+			writer.submit(new AsyncBlockWriter.Block() {
+				public void write() throws IOException {
+					BasicQuadReaderWriter.writeNormals(quadWriter, mesh, normals, firstFace, last);
+				}
+			});
+		}
+		writer.submit(closeBlock(quadWriter));
+	}
+
+	private static AsyncBlockWriter.Block vertexBlock(final Writer quadWriter, final QuadMesh mesh,
+			final int firstFace, final int lastFace, final boolean flush) {
+		return new AsyncBlockWriter.Block() {
+			public void write() throws IOException {
+				BasicQuadReaderWriter.writeVertices(quadWriter, mesh, firstFace, lastFace);
+				if (flush) //let the program reading the pipe start on the block
+					quadWriter.flush();
+			}
+		};
+	}
+
+	/**
+	 * Writes OBJ, the vertex lines are written while the new faces and the normals are calculated
+	 */
+	private static void writeObj(AsyncBlockWriter writer, OutputStream out, 
+			QuadMesh parent, final QuadMesh mesh) throws IOException {
+		if (parent != null) //the new faces are not needed for the vertex lines
+			QuadSubdivider.updateVertexPoints(parent, mesh, 0, parent.getFaceCount());
+		
+		final Writer objWriter = ObjReaderWriter.createWriter(out);
+		final int vertexCount = mesh.getVertexCount();
+		writer.submit(new AsyncBlockWriter.Block() {
+			public void write() throws IOException {
+				ObjReaderWriter.writeHeader(objWriter, mesh);
+			}
+		});
+		for (int first = 0;first < vertexCount;first += BLOCK_VERTICES) {
+			final int firstVertex = first;
+			final int last = Math.min(first + BLOCK_VERTICES, vertexCount);
+			writer.submit(new AsyncBlockWriter.Block() {
+				public void write() throws IOException {
+					ObjReaderWriter.writeVertices(objWriter, mesh, firstVertex, last);
+				}
+			});
+		}
+
+		//only the faces are changed from here on, the positions being written stay the same
+		if (parent != null)
+			QuadSubdivider.createFaces(parent, mesh, 0, parent.getFaceCount());
+		final FloatStore normals = QuadSubdivider.sumFaceNormals(mesh);
+		for (int first = 0;first < vertexCount;first += BLOCK_VERTICES) {
+			final int firstVertex = first;
+			final int last = Math.min(first + BLOCK_VERTICES, vertexCount);
+			QuadSubdivider.normalizeNormals(normals, first, last);
+			writer.submit(new AsyncBlockWriter.Block() {
+				public void write() throws IOException {
+					ObjReaderWriter.writeNormals(objWriter, normals, firstVertex, last);
+				}
+			});
+		}
+
+		for (int first = 0;first < mesh.getFaceCount();first += BLOCK_FACES * 4) {
+			final int firstFace = first;
+			final int last = Math.min(first + BLOCK_FACES * 4, mesh.getFaceCount());
+			writer.submit(new AsyncBlockWriter.Block() {
+				public void write() throws IOException {
+					ObjReaderWriter.writeFaces(objWriter, mesh, firstFace, last);
+				}
+			});
+		}
+		writer.submit(closeBlock(objWriter));
+	}
+
+	/**
+	 * Returns if the format of the file can be written while subdividing, that is
+	 * the basic quad format and OBJ, but not PLY (see the class comment)
+	 */
+	public static boolean supports(File outFile) {
+		return !MeshStreams.getExtension(outFile).equals("ply");
+	}
+
+	/**
+	 * Closes the output after an error, a second error is not reported
+	 */
+	private static void close(OutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			//the first error was already reported
+		}
+	}
+
+	private static AsyncBlockWriter.Block closeBlock(final Closeable closeable) {
+		return new AsyncBlockWriter.Block() {
+			public void write() throws IOException {
+				closeable.close();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,247 @@
+package subdivider;
+
+import subdivider.util.MeshStorage;
+import subdivider.util.MeshTopology;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Works out what subdividing a mesh to a given level will take, before doing it.
+ *
+ * The counts of every level follow exactly from the base mesh (F' = 4F,
+ * E' = 2E + 4F, V' = V + E + F), and so does the memory, since every level is
+ * stored in arrays of a known size (see QuadMesh.getSizeInBytes). While a level is
+ * created the level it is made from is needed as well, so the peak memory of a
+ * level is the size of both.
+ *
+ * The time is estimated from the time per new face of each storage, which
+ * calibrate measures by subdividing a small test mesh.
+ */
+public class SubdivisionPlanner {
+
+	//level of the test cube that is subdivided by calibrate, 6 * 4^7 faces
+	private static final int CALIBRATION_LEVEL = 7;
+	//timed runs per storage, the fastest counts
+	private static final int CALIBRATION_RUNS = 3;
+
+	private int levels;
+	private long[] vertexCounts;
+	private long[] edgeCounts;
+	private long[] faceCounts;
+
+	//nanoseconds per new face for each storage, null until calibrated
+	private double[] faceTimes;
+
+	/**
+	 * Calculates the counts of every level
+	 *
+	 * @param mesh the base mesh
+	 * @param levels amount of subdivisions
+	 * @throws IllegalArgumentException if the mesh is not closed
+	 */
+	public SubdivisionPlanner(QuadMesh mesh, int levels) {
+		MeshTopology topology = mesh.getTopology();
+		if (topology == null) { //base mesh, build the topology once
+			topology = MeshTopology.build(mesh);
+			mesh.setTopology(topology);
+		}
+
+		this.levels = levels;
+		vertexCounts = new long[levels + 1];
+		edgeCounts = new long[levels + 1];
+		faceCounts = new long[levels + 1];
+		vertexCounts[0] = mesh.getVertexCount();
+		edgeCounts[0] = topology.getEdgeCount();
+		faceCounts[0] = mesh.getFaceCount();
+		for (int i = 1;i <= levels;i ++) {
+			vertexCounts[i] = vertexCounts[i - 1] + edgeCounts[i - 1] + faceCounts[i - 1];
+			edgeCounts[i] = edgeCounts[i - 1] * 2 + faceCounts[i - 1] * 4;
+			faceCounts[i] = faceCounts[i - 1] * 4;
+		}
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	public long getVertexCount(int level) {
+		return vertexCounts[level];
+	}
+
+	public long getEdgeCount(int level) {
+		return edgeCounts[level];
+	}
+
+	public long getFaceCount(int level) {
+		return faceCounts[level];
+	}
+
+	/**
+	 * @param level
+	 * @return bytes used by the level
+	 */
+	public long getSize(int level) {
+		return QuadMesh.getSizeInBytes(vertexCounts[level], faceCounts[level]);
+	}
+
+	/**
+	 * @param level
+	 * @return bytes used while the level is created, the level and the one it is made from
+	 */
+	public long getPeakSize(int level) {
+		return level == 0 ? getSize(0) : getSize(level - 1) + getSize(level);
+	}
+
+	/**
+	 * @param level
+	 * @return true if the level can be indexed, see QuadSubdivider.checkCounts
+	 */
+	public boolean isPossible(int level) {
+		try {
+			QuadSubdivider.checkCounts(vertexCounts[level], faceCounts[level], faceCounts[level] * 4);
+			return true;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param storage
+	 * @param memoryBudget bytes the levels may use, Long.MAX_VALUE for no limit
+	 * @return true if all levels fit in the storage, the heap and direct memory are
+	 * limited by the maximum heap size (the JVM default for both) and the budget,
+	 * scratch files by the free space in the scratch directory
+	 */
+	public boolean fits(MeshStorage storage, long memoryBudget) {
+		long limit = Math.min(memoryBudget, Runtime.getRuntime().maxMemory());
+		if (storage == MeshStorage.MAPPED)
+			limit = MeshStorage.getScratchDirectory().getUsableSpace();
+
+		for (int i = 0;i <= levels;i ++) {
+			if (!isPossible(i) || getPeakSize(i) > limit)
+				return false;
+			if (storage == MeshStorage.HEAP && (!MeshStorage.fitsArray(faceCounts[i] * 4)
+					|| !MeshStorage.fitsArray(vertexCounts[i] * 3)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Measures how long each storage takes per new face, by subdividing a cube
+	 * a few times (with the heap) and then a few more times with every storage. The
+	 * fastest of a few runs is used, the others were slowed down by the JIT
+	 * compiler, the garbage collector or other programs.
+	 */
+	public void calibrate() {
+		QuadMesh cube = new QuadMesh(new float[] {
+				-1, -1, -1,  -1, -1, 1,  -1, 1, -1,  -1, 1, 1,
+				1, -1, -1,  1, -1, 1,  1, 1, -1,  1, 1, 1 }, 8, new int[] {
+				0, 1, 3, 2,  4, 6, 7, 5,  0, 4, 5, 1,
+				2, 3, 7, 6,  0, 2, 6, 4,  1, 5, 7, 3 }, 6);
+		for (int i = 0;i < CALIBRATION_LEVEL;i ++)
+			cube = QuadSubdivider.subdivideMesh(cube);
+
+		MeshStorage[] storages = MeshStorage.values();
+		faceTimes = new double[storages.length];
+		for (int i = 0;i < storages.length;i ++) {
+			long fastest = Long.MAX_VALUE;
+			for (int j = 0;j < CALIBRATION_RUNS;j ++) {
+				long start = System.nanoTime();
+				QuadSubdivider.subdivideMesh(cube, storages[i]);
+				fastest = Math.min(fastest, System.nanoTime() - start);
+			}
+			faceTimes[i] = fastest / (cube.getFaceCount() * 4.0);
+		}
+	}
+
+	/**
+	 * @param storage
+	 * @param level
+	 * @return estimated seconds to subdivide the base mesh up to the level, calibrate must have been called
+	 */
+	public double getTime(MeshStorage storage, int level) {
+		long faces = 0;
+		for (int i = 1;i <= level;i ++)
+			faces += faceCounts[i];
+		return faces * faceTimes[storage.ordinal()] / 1e9;
+	}
+
+	/**
+	 * @param memoryBudget bytes the levels may use, Long.MAX_VALUE for no limit
+	 * @return the fastest storage that fits (see fits), or null if none does
+	 */
+	public MeshStorage chooseStorage(long memoryBudget) {
+		if (faceTimes == null)
+			calibrate();
+
+		MeshStorage fastest = null;
+		for (MeshStorage storage : MeshStorage.values())
+			if (fits(storage, memoryBudget) && (fastest == null
+					|| faceTimes[storage.ordinal()] < faceTimes[fastest.ordinal()]))
+				fastest = storage;
+		return fastest;
+	}
+
+	/**
+	 * Prints the counts, memory and estimated time of every level, and the
+	 * fastest storage that fits
+	 *
+	 * @param memoryBudget bytes the levels may use, Long.MAX_VALUE for no limit
+	 */
+	public void print(long memoryBudget) {
+		MeshStorage choice = chooseStorage(memoryBudget);
+		MeshStorage[] storages = MeshStorage.values();
+
+		StringBuilder header = new StringBuilder(String.format("%5s %14s %14s %14s %11s %11s",
+				"Level", "Vertices", "Edges", "Faces", "Memory", "Peak"));
+		for (MeshStorage storage : storages)
+			header.append(String.format(" %10s", storageName(storage)));
+		System.out.println(header);
+
+		for (int i = 0;i <= levels;i ++) {
+			StringBuilder line = new StringBuilder(String.format("%5d %14d %14d %14d %11s %11s", i,
+					vertexCounts[i], edgeCounts[i], faceCounts[i], formatSize(getSize(i)), formatSize(getPeakSize(i))));
+			for (MeshStorage storage : storages)
+				line.append(String.format(" %10s", formatTime(getTime(storage, i))));
+			if (!isPossible(i))
+				line.append("  too many to index");
+			System.out.println(line);
+		}
+
+		System.out.println("Times are the total to reach each level, without reading and writing the mesh.");
+		System.out.println("Heap and direct memory limit: " + formatSize(Runtime.getRuntime().maxMemory())
+				+ (memoryBudget == Long.MAX_VALUE ? "" : ", memory budget: " + formatSize(memoryBudget))
+				+ ", free space for scratch files: " + formatSize(MeshStorage.getScratchDirectory().getUsableSpace()));
+		if (choice == null)
+			System.out.println("Level " + levels + " does not fit in any storage");
+		else
+			System.out.println("Fastest storage that fits: " + storageName(choice)
+					+ " (-storage " + storageName(choice) + ")");
+	}
+
+	/**
+	 * @return the name of the storage as given to the -storage option
+	 */
+	public static String storageName(MeshStorage storage) {
+		return storage.toString().toLowerCase().replace('_', '-');
+	}
+
+	private static String formatSize(long bytes) {
+		if (bytes < 1 << 20)
+			return String.format("%.1fKB", bytes / 1024.0);
+		if (bytes < 1L << 30)
+			return String.format("%.1fMB", bytes / (1024.0 * 1024));
+		return String.format("%.1fGB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	private static String formatTime(double seconds) {
+		if (seconds < 60)
+			return String.format("%.2fs", seconds);
+		if (seconds < 3600)
+			return String.format("%.1fm", seconds / 60);
+		return String.format("%.1fh", seconds / 3600);
+	}
+
+}
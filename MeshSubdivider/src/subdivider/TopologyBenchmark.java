@@ -0,0 +1,74 @@
+package subdivider;
+
+import java.io.File;
+
+import subdivider.util.MeshTopology;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Compares the ways of building the topology of a mesh (see MeshTopology.Pairing)
+ * on the given files, and checks that they give the same result. Each way is run
+ * a few times first so the JIT has compiled it, then the best and average time of
+ * the timed runs are printed.
+ *
+ * Usage: java -cp Subdivider.jar subdivider.TopologyBenchmark file...
+ */
+public class TopologyBenchmark {
+
+	private static final int WARMUP_RUNS = 3;
+	private static final int TIMED_RUNS = 5;
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: TopologyBenchmark file...");
+			return;
+		}
+
+		for (String name : args) {
+			QuadMesh mesh = Subdivider.readMesh(new File(name));
+			if (mesh == null) //message was printed by the reader
+				continue;
+
+			System.out.println(name + ": " + mesh.getVertexCount() + " vertices, " + mesh.getFaceCount() + " faces");
+			try {
+				MeshTopology expected = null;
+				for (MeshTopology.Pairing pairing : MeshTopology.Pairing.values()) {
+					MeshTopology topology = null;
+					for (int i = 0;i < WARMUP_RUNS;i ++)
+						topology = MeshTopology.build(mesh, pairing);
+
+					long best = Long.MAX_VALUE, total = 0;
+					for (int i = 0;i < TIMED_RUNS;i ++) {
+						long start = System.nanoTime();
+						topology = MeshTopology.build(mesh, pairing);
+						long time = System.nanoTime() - start;
+						best = Math.min(best, time);
+						total += time;
+					}
+					System.out.println(String.format("  %-5s best %8.1f ms, average %8.1f ms",
+							pairing.toString().toLowerCase(), best / 1e6, total / 1e6 / TIMED_RUNS));
+
+					if (expected == null)
+						expected = topology;
+					else if (!isSame(expected, topology, mesh.getFaceCount() * 4))
+						System.out.println("  " + pairing.toString().toLowerCase() + " gave a different topology!");
+				}
+			} catch (IllegalArgumentException ex) { //mesh is not closed
+				System.out.println("  Model can not be subdivided: " + ex.getMessage());
+			}
+		}
+	}
+
+	private static boolean isSame(MeshTopology a, MeshTopology b, int halfEdgeCount) {
+		if (a.getEdgeCount() != b.getEdgeCount())
+			return false;
+
+		for (int h = 0;h < halfEdgeCount;h ++)
+			if (a.getTwin(h) != b.getTwin(h) || a.getEdge(h) != b.getEdge(h))
+				return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,115 @@
+package subdivider.io;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes blocks of output on its own thread, so the thread producing the blocks can
+ * keep computing while the output is written. Blocks are passed through a bounded
+ * queue, if the writer falls behind submit waits until there is room again, so only
+ * a limited amount of finished output is held in memory.
+ *
+ * Blocks are written in the order they were submitted. If writing fails the error
+ * is thrown by the next call to submit or finish. If the blocks are not all submitted
+ * (because of an error) cancel stops the writer, the thread is a daemon so it never
+ * keeps the program running.
+ *
+ * @author Nicholas
+ *
+ */
+public class AsyncBlockWriter {
+
+	/**
+	 * A piece of output, write is called on the writer thread
+	 */
+	public interface Block {
+		public void write() throws IOException;
+	}
+
+	//marks the end of the blocks
+	private static final Block END = new Block() {
+		public void write() { }
+	};
+
+	private BlockingQueue<Block> queue;
+	private Thread thread;
+	private volatile IOException error;
+
+	/**
+	 * Starts the writer thread
+	 *
+	 * @param capacity amount of blocks that can wait to be written
+	 */
+	public AsyncBlockWriter(int capacity) {
+		queue = new ArrayBlockingQueue<Block>(capacity);
+		thread = new Thread(new Runnable() {
+			public void run() {
+				writeBlocks();
+			}
+		}, "Subdivider writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues the block to be written, waits if the queue is full
+	 *
+	 * @param block
+	 * @throws IOException if writing an earlier block failed
+	 */
+	public void submit(Block block) throws IOException {
+		if (error != null)
+			throw error;
+
+		try {
+			queue.put(block);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the writer");
+		}
+	}
+
+	/**
+	 * Waits until all blocks are written and stops the writer thread
+	 *
+	 * @throws IOException if writing a block failed
+	 */
+	public void finish() throws IOException {
+		submit(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the writer");
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Drops the blocks that were not written yet and lets the writer thread stop after the
+	 * block it is writing, without waiting for it. For when finish is not reached
+	 */
+	public void cancel() {
+		queue.clear();
+		queue.offer(END); //there is room, nothing else is submitted any more
+	}
+
+	private void writeBlocks() {
+		try {
+			Block block;
+			while ((block = queue.take()) != END) {
+				if (error != null) //keep taking blocks so submit does not wait forever
+					continue;
+
+				try {
+					block.write();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+		} catch (InterruptedException e) {
+			error = new IOException("Writer was interrupted");
+		}
+	}
+
+}
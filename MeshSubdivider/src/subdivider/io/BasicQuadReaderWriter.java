@@ -3,13 +3,17 @@ package subdivider.io;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import subdivider.util.FloatStore;
 import subdivider.util.QuadFace;
+import subdivider.util.QuadMesh;
 import subdivider.util.math.Vector3f;
 
 /**
@@ -18,6 +22,9 @@ import subdivider.util.math.Vector3f;
  * The normals will be written after the line "NORMALS", however these values
  * are ignored by the reader, since it will generate them anyway
  * 
+ * Files ending with ".gz" are compressed, and "-" reads standard input or
+ * writes standard output, see MeshStreams
+ * 
  * @author Nicholas
  *
  */
@@ -34,12 +41,15 @@ public class BasicQuadReaderWriter {
 	public static ArrayList<QuadFace> readQuadsFromFile(File file) {
 		try { 
 			ArrayList<QuadFace> faces = new ArrayList<QuadFace>();
-			BufferedReader reader = new BufferedReader(new FileReader(file)); //setup reader
+			BufferedReader reader = new BufferedReader(new InputStreamReader(MeshStreams.openInputStream(file)), 1 << 16); //setup reader
 			
 			String line;
 			while ((line = reader.readLine()) != null) {
-				if (line.toUpperCase().contains("NORMALS")) //stop reading, we found the normals section
+				if (line.toUpperCase().contains("NORMALS")) { //stop reading, we found the normals section
+					if (MeshStreams.isStandardStream(file)) //read the rest, so the program writing to the pipe can finish
+						while (reader.readLine() != null);
 					break;
+				}
 				
 				String[] args = line.split(" "); //split the line by spaces
 				Vector3f[] quadVertices = new Vector3f[4];
@@ -79,19 +89,16 @@ public class BasicQuadReaderWriter {
 			HashMap<Vector3f, Vector3f> normals, File outFile) {
 		
 		try {
-			if (outFile.exists()) { //file exists
-				System.out.println("File already exists... did not overwrite file");
+			OutputStream out = MeshStreams.openOutput(outFile);
+			if (out == null) //file exists
 				return;
-			}
 			
-			outFile.createNewFile(); //create file
-			BufferedWriter writer = new BufferedWriter(new FileWriter(outFile));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
 			for (QuadFace face : sub_faces) {
 				for (int i = 0;i < 4;i ++) { //write vertices
 					writer.write(face.vertices[i].x + " " + face.vertices[i].y + " " + face.vertices[i].z + " "); 
 				}
 				writer.write("\n");
-				writer.flush();
 			}
 			
 			writer.write("NORMALS\n"); //start writing normal section
@@ -101,7 +108,6 @@ public class BasicQuadReaderWriter {
 					writer.write(normal.x + " " + normal.y + " " + normal.z + " "); //write the normals
 				}
 				writer.write("\n");
-				writer.flush();
 			}
 			writer.close();
 		} catch (IOException e) { 
@@ -109,4 +115,79 @@ public class BasicQuadReaderWriter {
 		}
 	}
 	
+	/**
+	 * Writes an indexed mesh in the same format as writeQuadsToFile, 
+	 * if the output file doesn't exist
+	 * 
+	 * @param mesh
+	 * @param normals normal of each vertex (x, y, z per vertex)
+	 * @param outFile
+	 * @return true if the file was written, otherwise a message was printed
+	 */
+	public static boolean writeMeshToFile(QuadMesh mesh, FloatStore normals, File outFile) {
+		try {
+			OutputStream out = MeshStreams.openOutput(outFile);
+			if (out == null) //file exists
+				return false;
+			
+			Writer writer = createWriter(out);
+			writeVertices(writer, mesh, 0, mesh.getFaceCount());
+			writeNormalsHeader(writer);
+			writeNormals(writer, mesh, normals, 0, mesh.getFaceCount());
+			writer.close();
+			return true;
+		} catch (IOException e) { 
+			System.out.println("Could not write to file: " + outFile);
+			return false;
+		}
+	}
+	
+	public static Writer createWriter(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out));
+	}
+	
+	/**
+	 * Writes the vertex lines for the faces in the range
+	 * 
+	 * @param writer
+	 * @param mesh
+	 * @param firstFace
+	 * @param lastFace face after the last one
+	 */
+	public static void writeVertices(Writer writer, QuadMesh mesh, int firstFace, int lastFace) throws IOException {
+		for (int f = firstFace;f < lastFace;f ++) {
+			for (int i = 0;i < 4;i ++) { //write vertices
+				int v = mesh.getVertex(f, i);
+				writer.write(mesh.getX(v) + " " + mesh.getY(v) + " " + mesh.getZ(v) + " ");
+			}
+			writer.write("\n");
+		}
+	}
+	
+	/**
+	 * Writes the line that separates the vertices from the normals
+	 */
+	public static void writeNormalsHeader(Writer writer) throws IOException {
+		writer.write("NORMALS\n"); //start writing normal section
+	}
+	
+	/**
+	 * Writes the normal lines for the faces in the range
+	 * 
+	 * @param writer
+	 * @param mesh
+	 * @param normals normal of each vertex (x, y, z per vertex)
+	 * @param firstFace
+	 * @param lastFace face after the last one
+	 */
+	public static void writeNormals(Writer writer, QuadMesh mesh, FloatStore normals, int firstFace, int lastFace) throws IOException {
+		for (int f = firstFace;f < lastFace;f ++) {
+			for (int i = 0;i < 4;i ++) {
+				long n = mesh.getVertex(f, i) * 3L;
+				writer.write(normals.get(n) + " " + normals.get(n + 1) + " " + normals.get(n + 2) + " ");
+			}
+			writer.write("\n");
+		}
+	}
+	
 }
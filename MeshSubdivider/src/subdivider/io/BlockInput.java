@@ -0,0 +1,151 @@
+package subdivider.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Gives the readers access to their input one window at a time. For files the
+ * windows are memory mapped directly, for streams (compressed files) the data is
+ * read into a buffer on the heap, so the readers can scan both the same way.
+ *
+ * @author Nicholas
+ *
+ */
+class BlockInput {
+
+	//files are mapped in windows of this size, since one mapping is limited to 2GB
+	private static final int WINDOW_SIZE = 1 << 28;
+	private static final int STREAM_BUFFER_SIZE = 1 << 24;
+
+	private FileChannel channel;
+	private long offset; //file offset of the start of the window
+
+	private InputStream in;
+	private boolean endOfStream;
+
+	private ByteBuffer window;
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+	public BlockInput(FileChannel channel) {
+		this.channel = channel;
+		window = ByteBuffer.allocate(0);
+	}
+
+	public BlockInput(InputStream in) {
+		this.in = in;
+		window = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		window.limit(0);
+	}
+
+	public void setOrder(ByteOrder order) {
+		this.order = order;
+		window.order(order);
+	}
+
+	/**
+	 * @param bytes
+	 * @return the window, with at least the given amount of bytes remaining
+	 * @throws IllegalArgumentException if the input ends before that
+	 */
+	public ByteBuffer require(int bytes) throws IOException {
+		if (window.remaining() < bytes) {
+			if (channel != null) {
+				offset += window.position();
+				long size = Math.min(WINDOW_SIZE, channel.size() - offset);
+				if (size >= bytes)
+					window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(order);
+			} else {
+				fill(bytes);
+			}
+			if (window.remaining() < bytes)
+				throw new IllegalArgumentException("Unexpected end of file");
+		}
+		return window;
+	}
+
+	/**
+	 * Returns the next window, cut after its last line break so no line
+	 * is split between two windows
+	 *
+	 * @return the window, or null at the end of the input
+	 */
+	public ByteBuffer nextLines() throws IOException {
+		ByteBuffer lines;
+		boolean last;
+		if (channel != null) {
+			offset += window.position();
+			long size = Math.min(WINDOW_SIZE, channel.size() - offset);
+			if (size <= 0)
+				return null;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(order);
+			last = offset + size == channel.size();
+		} else {
+			fill(window.capacity());
+			if (!window.hasRemaining())
+				return null;
+			last = endOfStream;
+		}
+
+		int end = window.limit();
+		if (!last) {
+			end --;
+			while (end >= window.position() && window.get(end) != '\n')
+				end --;
+			if (end < window.position())
+				throw new IllegalArgumentException("Line too long");
+			end ++;
+		}
+		lines = window.duplicate();
+		lines.limit(end);
+		window.position(end);
+		return lines;
+	}
+
+	/**
+	 * Reads one line of text (without the line break)
+	 */
+	public String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		byte b;
+		while ((b = require(1).get()) != '\n')
+			if (b != '\r')
+				line.append((char) b);
+
+		return line.toString();
+	}
+
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+		else
+			in.close();
+	}
+
+	/**
+	 * Moves the unread data to the front of the buffer and reads from the
+	 * stream until at least the given amount of bytes are available
+	 */
+	private void fill(int bytes) throws IOException {
+		if (bytes > window.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(bytes);
+			larger.put(window);
+			window = larger;
+		} else {
+			window.compact();
+		}
+		window.order(order);
+
+		while (window.position() < bytes && !endOfStream) {
+			int n = in.read(window.array(), window.position(), window.remaining());
+			if (n == -1)
+				endOfStream = true;
+			else
+				window.position(window.position() + n);
+		}
+		window.flip();
+	}
+
+}
@@ -0,0 +1,225 @@
+package subdivider.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads numbers from text directly out of a ByteBuffer (usually a memory mapped
+ * file), without creating a String for every line or value like a BufferedReader
+ * and split would.
+ *
+ * Floats are parsed by collecting the digits into a long and scaling them by a power
+ * of ten, which is exact for the short values found in mesh files. Values where this
+ * could round differently from Float.parseFloat are handed to Float.parseFloat.
+ *
+ * @author Nicholas
+ *
+ */
+class ByteScanner {
+
+	//powers of ten that are exactly representable as a double
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private ByteBuffer buffer;
+
+	public ByteScanner(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public boolean hasRemaining() {
+		return buffer.hasRemaining();
+	}
+
+	/**
+	 * @return the next byte without consuming it, or -1 at the end of the buffer
+	 */
+	public int peek() {
+		return buffer.hasRemaining() ? buffer.get(buffer.position()) : -1;
+	}
+
+	/**
+	 * @return the next byte, or -1 at the end of the buffer
+	 */
+	public int next() {
+		return buffer.hasRemaining() ? buffer.get() : -1;
+	}
+
+	/**
+	 * Skips spaces and tabs (but not line breaks)
+	 */
+	public void skipSpaces() {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		while (position < limit) {
+			byte b = buffer.get(position);
+			if (b != ' ' && b != '\t' && b != '\r')
+				break;
+			position ++;
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * Skips everything up to and including the next line break
+	 */
+	public void skipLine() {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		while (position < limit && buffer.get(position ++) != '\n');
+		buffer.position(position);
+	}
+
+	/**
+	 * Skips everything up to the next space, tab or line break
+	 */
+	public void skipToken() {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		while (position < limit) {
+			byte b = buffer.get(position);
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+				break;
+			position ++;
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * @return true if only spaces are left before the end of the line
+	 */
+	public boolean atLineEnd() {
+		skipSpaces();
+		int b = peek();
+		return b == -1 || b == '\n';
+	}
+
+	/**
+	 * Reads a (possibly signed) integer after skipping spaces
+	 *
+	 * @return
+	 * @throws NumberFormatException if there is no integer at the current position
+	 */
+	public int nextInt() {
+		skipSpaces();
+		int position = buffer.position();
+		int limit = buffer.limit();
+		boolean negative = false;
+		if (position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+'))
+			negative = buffer.get(position ++) == '-';
+
+		long value = 0;
+		int start = position;
+		while (position < limit) {
+			int digit = buffer.get(position) - '0';
+			if (digit < 0 || digit > 9)
+				break;
+			value = value * 10 + digit;
+			if (value > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE))
+				throw new NumberFormatException("Integer too large");
+			position ++;
+		}
+		if (position == start)
+			throw new NumberFormatException("Expected an integer");
+
+		buffer.position(position);
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Reads a float after skipping spaces, the result is the same as
+	 * Float.parseFloat would give for the same text
+	 *
+	 * @return
+	 * @throws NumberFormatException if there is no float at the current position
+	 */
+	public float nextFloat() {
+		skipSpaces();
+		int start = buffer.position();
+		int position = start;
+		int limit = buffer.limit();
+		boolean negative = false;
+		if (position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+'))
+			negative = buffer.get(position ++) == '-';
+
+		long mantissa = 0;
+		int digits = 0; //significant digits in the mantissa
+		int exponent = 0;
+		boolean exact = true;
+		boolean found = false;
+		boolean fraction = false;
+		while (position < limit) {
+			byte b = buffer.get(position);
+			if (b == '.' && !fraction) {
+				fraction = true;
+			} else if (b >= '0' && b <= '9') {
+				found = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa != 0)
+						digits ++;
+					if (fraction)
+						exponent --;
+				} else {
+					exact &= b == '0'; //digit does not fit, only ok if its a zero
+					if (!fraction)
+						exponent ++;
+				}
+			} else {
+				break;
+			}
+			position ++;
+		}
+
+		if (found && position < limit && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+			position ++;
+			boolean negativeExponent = false;
+			if (position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+'))
+				negativeExponent = buffer.get(position ++) == '-';
+
+			int value = 0;
+			int exponentStart = position;
+			while (position < limit && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+				if (value < 100000)
+					value = value * 10 + (buffer.get(position) - '0');
+				position ++;
+			}
+			if (position == exponentStart)
+				found = false; //an 'e' without a number after it
+			exponent += negativeExponent ? -value : value;
+		}
+
+		if (!found) { //could be NaN or Infinity, let the jdk decide
+			buffer.position(start);
+			skipToken();
+			return Float.parseFloat(token(start, buffer.position()));
+		}
+		buffer.position(position);
+
+		if (mantissa == 0)
+			return negative ? -0f : 0f;
+
+		if (exact && digits <= 15 && exponent >= -22 && exponent <= 22) {
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			//the double is correctly rounded, so rounding it to a float is only wrong if it
+			//landed exactly halfway between two floats, or the float is subnormal
+			if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) != 0x10000000L && value >= Float.MIN_NORMAL)
+				return (float) (negative ? -value : value);
+		}
+
+		return Float.parseFloat(token(start, position));
+	}
+
+	/**
+	 * @return the bytes between start and end as a string
+	 */
+	private String token(int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start;i < end;i ++)
+			chars[i - start] = (char) buffer.get(i);
+
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,285 @@
+package subdivider.io;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import subdivider.util.FloatStore;
+import subdivider.util.IntStore;
+import subdivider.util.MeshStorage;
+import subdivider.util.MeshTopology;
+import subdivider.util.QuadMesh;
+
+/**
+ * A subdivided level saved to a binary file, so a long job can continue from
+ * it instead of starting over.
+ *
+ * The file holds a header (magic, version, level, fingerprint of the input mesh,
+ * vertex, face and edge count), the positions, the faces, the twin and edge of
+ * every half edge (little endian), and at the end the CRC32 of everything before
+ * it. A checkpoint is written to a temporary file next to it, forced to disk, and
+ * then renamed over the old one, so a crash while writing leaves the previous
+ * checkpoint as it was. When it is read the size and checksum are checked before
+ * the mesh is used, and the fingerprint makes sure it was made from the same input.
+ *
+ * @author Nicholas
+ *
+ */
+public class Checkpoint {
+
+	private static final long MAGIC = 0x54504B4344425553L; //"SUBDCKPT"
+	private static final int VERSION = 1;
+	//magic, version, level, fingerprint, vertex, face and edge count
+	private static final int HEADER_SIZE = 8 + 4 + 4 + 8 + 4 + 4 + 8;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private QuadMesh mesh;
+	private int level;
+
+	private Checkpoint(QuadMesh mesh, int level) {
+		this.mesh = mesh;
+		this.level = level;
+	}
+
+	/**
+	 * @return the saved mesh, with its topology
+	 */
+	public QuadMesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * @return how many times the input mesh had been subdivided
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param mesh the input mesh
+	 * @return CRC32 of the positions and faces, to recognize the mesh a checkpoint was made from
+	 */
+	public static long fingerprint(QuadMesh mesh) {
+		CheckedOutputStream out = new CheckedOutputStream(new OutputStream() {
+			public void write(int b) { //only the checksum is needed
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}, new CRC32());
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			writeMesh(buffer, out, mesh);
+			flush(buffer, out);
+		} catch (IOException e) { //can't happen, nothing is written
+		}
+		return out.getChecksum().getValue();
+	}
+
+	/**
+	 * Saves the mesh, replacing the previous checkpoint in the file only once
+	 * the new one is complete. Prints an error message if it could not be written.
+	 *
+	 * @param mesh a subdivided mesh, with its topology
+	 * @param level how many times the input mesh was subdivided
+	 * @param fingerprint of the input mesh, see fingerprint
+	 * @param file
+	 * @return true on success
+	 */
+	public static boolean write(QuadMesh mesh, int level, long fingerprint, File file) {
+		File temp = getTempFile(file);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			try {
+				MeshTopology topology = mesh.getTopology();
+				CheckedOutputStream out = new CheckedOutputStream(fileOut, new CRC32());
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putLong(MAGIC).putInt(VERSION).putInt(level).putLong(fingerprint);
+				buffer.putInt(mesh.getVertexCount()).putInt(mesh.getFaceCount()).putLong(topology.getEdgeCount());
+				writeMesh(buffer, out, mesh);
+
+				long halfEdgeCount = mesh.getFaceCount() * 4L;
+				for (long h = 0;h < halfEdgeCount;h ++) {
+					if (buffer.remaining() < 4)
+						flush(buffer, out);
+					buffer.putInt((int) topology.getTwin(h));
+				}
+				for (long h = 0;h < halfEdgeCount;h ++) {
+					if (buffer.remaining() < 4)
+						flush(buffer, out);
+					buffer.putInt((int) topology.getEdge(h));
+				}
+				flush(buffer, out);
+
+				buffer.putLong(out.getChecksum().getValue());
+				flush(buffer, fileOut);
+				fileOut.getChannel().force(true); //on disk before it replaces the old checkpoint
+			} finally {
+				fileOut.close();
+			}
+
+			if (!temp.renameTo(file)) { //some systems don't rename over an existing file
+				file.delete(); //read falls back to the temporary file if this is interrupted
+				if (!temp.renameTo(file))
+					throw new IOException("Could not rename " + temp);
+			}
+			return true;
+		} catch (IOException e) {
+			temp.delete();
+			System.out.println("Could not write checkpoint: " + file);
+			return false;
+		}
+	}
+
+	/**
+	 * Loads a checkpoint, or prints an error message if it can't be used: it does
+	 * not exist, is damaged, or was made from another input mesh
+	 *
+	 * @param file
+	 * @param storage where the mesh is kept
+	 * @param fingerprint of the input mesh, see fingerprint
+	 * @return the checkpoint on success null otherwise
+	 */
+	public static Checkpoint read(File file, MeshStorage storage, long fingerprint) {
+		if (!file.exists() && getTempFile(file).exists()) //stopped while replacing it
+			file = getTempFile(file);
+		if (!file.exists()) {
+			System.out.println("No checkpoint found: " + file);
+			return null;
+		}
+
+		try {
+			FileInputStream fileIn = new FileInputStream(file);
+			try {
+				long size = fileIn.getChannel().size();
+				if (size < HEADER_SIZE + 8) {
+					System.out.println("Not a checkpoint: " + file);
+					return null;
+				}
+
+				DataInputStream dataIn = new DataInputStream(fileIn);
+				Input in = new Input(dataIn, size - 8);
+				ByteBuffer header = in.require(HEADER_SIZE);
+				if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+					System.out.println("Not a checkpoint: " + file);
+					return null;
+				}
+				int level = header.getInt();
+				long inputFingerprint = header.getLong();
+				int vertexCount = header.getInt();
+				int faceCount = header.getInt();
+				long edgeCount = header.getLong();
+				if (vertexCount < 0 || faceCount < 0
+						|| size != HEADER_SIZE + vertexCount * 12L + faceCount * 48L + 8) {
+					System.out.println("Checkpoint is incomplete: " + file);
+					return null;
+				}
+				if (inputFingerprint != fingerprint) {
+					System.out.println("Checkpoint was made from a different input mesh: " + file);
+					return null;
+				}
+
+				FloatStore positions = storage.createFloats(vertexCount * 3L);
+				for (long i = 0;i < vertexCount * 3L;i ++)
+					positions.set(i, in.require(4).getFloat());
+				IntStore[] stores = new IntStore[3]; //quads, twins and edges
+				for (int i = 0;i < stores.length;i ++) {
+					stores[i] = storage.createInts(faceCount * 4L);
+					for (long h = 0;h < faceCount * 4L;h ++)
+						stores[i].set(h, in.require(4).getInt());
+				}
+
+				if (Long.reverseBytes(dataIn.readLong()) != in.getChecksum()) {
+					System.out.println("Checkpoint is damaged, the checksum does not match: " + file);
+					return null;
+				}
+
+				QuadMesh mesh = new QuadMesh(positions, vertexCount, stores[0], faceCount);
+				mesh.setTopology(new MeshTopology(stores[1], stores[2], edgeCount));
+				return new Checkpoint(mesh, level);
+			} finally {
+				fileIn.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read checkpoint: " + file);
+			return null;
+		}
+	}
+
+	private static File getTempFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Writes the positions and faces of the mesh
+	 */
+	private static void writeMesh(ByteBuffer buffer, OutputStream out, QuadMesh mesh) throws IOException {
+		for (int v = 0;v < mesh.getVertexCount();v ++) {
+			if (buffer.remaining() < 3 * 4)
+				flush(buffer, out);
+			buffer.putFloat(mesh.getX(v)).putFloat(mesh.getY(v)).putFloat(mesh.getZ(v));
+		}
+		for (int f = 0;f < mesh.getFaceCount();f ++) {
+			if (buffer.remaining() < 4 * 4)
+				flush(buffer, out);
+			for (int i = 0;i < 4;i ++)
+				buffer.putInt(mesh.getVertex(f, i));
+		}
+	}
+
+	/**
+	 * Writes the contents of the buffer to the stream and clears it
+	 */
+	private static void flush(ByteBuffer buffer, OutputStream out) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	/**
+	 * Reads the data part of the file in blocks, and calculates its checksum
+	 */
+	private static class Input {
+		private DataInputStream in;
+		private long remaining; //bytes of data not read yet
+		private ByteBuffer buffer;
+		private CRC32 checksum = new CRC32();
+
+		public Input(DataInputStream in, long dataSize) {
+			this.in = in;
+			remaining = dataSize;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.limit(0);
+		}
+
+		/**
+		 * @param bytes
+		 * @return the buffer, with at least the given amount of bytes remaining
+		 */
+		public ByteBuffer require(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				buffer.compact();
+				int count = (int) Math.min(buffer.remaining(), remaining);
+				in.readFully(buffer.array(), buffer.position(), count);
+				checksum.update(buffer.array(), buffer.position(), count);
+				buffer.position(buffer.position() + count);
+				remaining -= count;
+				buffer.flip();
+				if (buffer.remaining() < bytes)
+					throw new IOException("Unexpected end of file");
+			}
+			return buffer;
+		}
+
+		public long getChecksum() {
+			return checksum.getValue();
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package subdivider.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+/**
+ * Opens the files the readers and writers work with. Files whose name ends
+ * with ".gz" are compressed and decompressed on the fly (see ParallelGzipOutputStream),
+ * the format of the mesh is then given by the extension before the ".gz".
+ * The file "-" is standard input when reading, and standard output when writing,
+ * so the program can be used in a pipe.
+ *
+ * @author Nicholas
+ *
+ */
+public class MeshStreams {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	//pipes deliver small pieces, so standard input and output use a larger buffer
+	private static final int STANDARD_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * @param file
+	 * @return true if the file is "-", meaning standard input or output
+	 */
+	public static boolean isStandardStream(File file) {
+		return file.getPath().equals("-");
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is gzip compressed (ends with .gz)
+	 */
+	public static boolean isCompressed(File file) {
+		return file.getName().toLowerCase().endsWith(".gz");
+	}
+
+	/**
+	 * @param file
+	 * @return the lower case extension of the file, without the ".gz" of
+	 * compressed files, or an empty string if there is none
+	 */
+	public static String getExtension(File file) {
+		String name = file.getName().toLowerCase();
+		if (isCompressed(file))
+			name = name.substring(0, name.length() - 3);
+
+		int dot = name.lastIndexOf('.');
+		return dot == -1 ? "" : name.substring(dot + 1);
+	}
+
+	/**
+	 * Creates the file and opens a buffered stream to it, if the file doesn't exist.
+	 * The data is compressed if the file name ends with ".gz", for "-" the stream
+	 * goes to standard output.
+	 *
+	 * @param file
+	 * @return the stream, or null if the file already exists (a message was printed)
+	 */
+	public static OutputStream openOutput(File file) throws IOException {
+		if (isStandardStream(file))
+			return new BufferedOutputStream(Channels.newOutputStream(
+					new FileOutputStream(FileDescriptor.out).getChannel()), STANDARD_BUFFER_SIZE);
+
+		if (file.exists()) { //file exists
+			System.out.println("File already exists... did not overwrite file");
+			return null;
+		}
+
+		file.createNewFile(); //create file
+		OutputStream out = new FileOutputStream(file);
+		if (isCompressed(file)) //compressed blocks are large, no need to buffer them again
+			return new ParallelGzipOutputStream(out);
+
+		return new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a stream to read the file, compressed files
+	 * are decompressed while they are read, "-" reads standard input
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static InputStream openInputStream(File file) throws IOException {
+		if (isStandardStream(file))
+			return Channels.newInputStream(new FileInputStream(FileDescriptor.in).getChannel());
+
+		InputStream in = new FileInputStream(file);
+		if (isCompressed(file))
+			return new ParallelGzipInputStream(in);
+
+		return in;
+	}
+
+	/**
+	 * Opens the file for the readers, plain files are memory mapped,
+	 * compressed files are decompressed while they are read
+	 *
+	 * @param file
+	 * @return
+	 */
+	static BlockInput openInput(File file) throws IOException {
+		if (isCompressed(file) || isStandardStream(file)) //can not be mapped
+			return new BlockInput(openInputStream(file));
+
+		return new BlockInput(new FileInputStream(file).getChannel());
+	}
+
+}
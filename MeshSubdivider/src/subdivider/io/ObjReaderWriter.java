@@ -0,0 +1,179 @@
+package subdivider.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import subdivider.util.FloatStore;
+import subdivider.util.QuadMesh;
+
+/**
+ * Reader and writer for the Wavefront OBJ format. Every vertex is written once
+ * as a "v" line with a matching "vn" line for its normal, and every face
+ * as an "f" line that references them by index, so shared vertices are not
+ * repeated like they are in the basic quad format.
+ *
+ * The mesh is written straight from its index arrays, one line at a time.
+ * The reader only looks at "v" and "f" lines, it scans the memory mapped file
+ * directly (see ByteScanner) and fills the index arrays of the mesh, so
+ * vertices never have to be matched up by position. Files ending with ".gz"
+ * are compressed, see MeshStreams.
+ *
+ * @author Nicholas
+ *
+ */
+public class ObjReaderWriter {
+
+	/**
+	 * Given an OBJ file, this will return the mesh it holds, or print an
+	 * error message and return null if there was an error reading or parsing 
+	 * the file, or if it contains faces that are not quads.
+	 *
+	 * @param file
+	 * @return the mesh on success null otherwise
+	 */
+	public static QuadMesh readMeshFromFile(File file) {
+		try {
+			BlockInput input = MeshStreams.openInput(file);
+			float[] positions = new float[3 * 1024];
+			int[] quads = new int[4 * 1024];
+			int vertexCount = 0;
+			int faceCount = 0;
+			try {
+				ByteBuffer lines;
+				while ((lines = input.nextLines()) != null) {
+					ByteScanner scanner = new ByteScanner(lines);
+					while (scanner.hasRemaining()) {
+						scanner.skipSpaces();
+						int type = scanner.next();
+						if (type == '\n') //empty line
+							continue;
+						int second = scanner.peek();
+						if (type == 'v' && (second == ' ' || second == '\t')) { //vertex
+							if ((vertexCount + 1) * 3 > positions.length)
+								positions = Arrays.copyOf(positions, positions.length * 2);
+							positions[vertexCount * 3] = scanner.nextFloat();
+							positions[vertexCount * 3 + 1] = scanner.nextFloat();
+							positions[vertexCount * 3 + 2] = scanner.nextFloat();
+							vertexCount ++;
+						} else if (type == 'f' && (second == ' ' || second == '\t')) { //face
+							if ((faceCount + 1) * 4 > quads.length)
+								quads = Arrays.copyOf(quads, quads.length * 2);
+							int corners = 0;
+							while (!scanner.atLineEnd()) {
+								int index = scanner.nextInt();
+								scanner.skipToken(); //skip the texture and normal indices
+								if (corners == 4) {
+									System.out.println("Only quad faces are supported, face " + (faceCount + 1) + " has more than 4 vertices");
+									return null;
+								}
+								//OBJ indices start at 1, negative indices count back from the last vertex
+								quads[faceCount * 4 + corners ++] = index < 0 ? vertexCount + index : index - 1;
+							}
+							if (corners != 4) {
+								System.out.println("Only quad faces are supported, face " + (faceCount + 1) + " has " + corners + " vertices");
+								return null;
+							}
+							faceCount ++;
+						}
+						scanner.skipLine(); //ignore everything else (normals, texture coordinates, groups...)
+					}
+				}
+			} finally {
+				input.close();
+			}
+
+			for (int i = 0;i < faceCount * 4;i ++) {
+				if (quads[i] < 0 || quads[i] >= vertexCount) {
+					System.out.println("Face " + (i / 4 + 1) + " references a vertex that does not exist");
+					return null;
+				}
+			}
+			return new QuadMesh(positions, vertexCount, quads, faceCount);
+		} catch (NumberFormatException e) { //bad value in the file
+			System.out.println("Error parsing file");
+			return null;
+		} catch (IllegalArgumentException e) { //line too long or not enough data
+			System.out.println("Error parsing file: " + e.getMessage());
+			return null;
+		} catch (IOException e) {
+			System.out.println("Could not read from file: " + file);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the mesh and its normals to the file as OBJ, if the output
+	 * file doesn't exist
+	 *
+	 * @param mesh
+	 * @param normals normal of each vertex (x, y, z per vertex)
+	 * @param outFile
+	 * @return true if the file was written, otherwise a message was printed
+	 */
+	public static boolean writeMeshToFile(QuadMesh mesh, FloatStore normals, File outFile) {
+		try {
+			OutputStream out = MeshStreams.openOutput(outFile);
+			if (out == null) //file exists
+				return false;
+
+			Writer writer = createWriter(out);
+			writeHeader(writer, mesh);
+			writeVertices(writer, mesh, 0, mesh.getVertexCount());
+			writeNormals(writer, normals, 0, mesh.getVertexCount());
+			writeFaces(writer, mesh, 0, mesh.getFaceCount());
+			writer.close();
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not write to file: " + outFile);
+			return false;
+		}
+	}
+
+	public static Writer createWriter(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out));
+	}
+
+	public static void writeHeader(Writer writer, QuadMesh mesh) throws IOException {
+		writer.write("# " + mesh.getVertexCount() + " vertices, " + mesh.getFaceCount() + " faces\n");
+	}
+
+	/**
+	 * Writes the "v" lines for the vertices in the range
+	 */
+	public static void writeVertices(Writer writer, QuadMesh mesh, int firstVertex, int lastVertex) throws IOException {
+		for (int v = firstVertex;v < lastVertex;v ++)
+			writer.write("v " + mesh.getX(v) + " " + mesh.getY(v) + " " + mesh.getZ(v) + "\n");
+	}
+
+	/**
+	 * Writes the "vn" lines for the vertices in the range
+	 */
+	public static void writeNormals(Writer writer, FloatStore normals, int firstVertex, int lastVertex) throws IOException {
+		for (long n = firstVertex * 3L;n < lastVertex * 3L;n += 3)
+			writer.write("vn " + normals.get(n) + " " + normals.get(n + 1) + " " + normals.get(n + 2) + "\n");
+	}
+
+	/**
+	 * Writes the "f" lines for the faces in the range
+	 */
+	public static void writeFaces(Writer writer, QuadMesh mesh, int firstFace, int lastFace) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int f = firstFace;f < lastFace;f ++) {
+			line.setLength(0);
+			line.append('f');
+			for (int i = 0;i < 4;i ++) { //OBJ indices start at 1, vertex and normal share the index
+				int index = mesh.getVertex(f, i) + 1;
+				line.append(' ').append(index).append("//").append(index);
+			}
+			line.append('\n');
+			writer.append(line);
+		}
+	}
+
+}
@@ -0,0 +1,230 @@
+package subdivider.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import subdivider.util.Parallel;
+
+/**
+ * Input stream that decompresses gzip data, reading ahead and decompressing
+ * the members written by ParallelGzipOutputStream on all processors.
+ *
+ * Members are found using the size stored in their header, when a member without
+ * that size is found (a file compressed by another program) the rest of the stream
+ * is decompressed normally with a GZIPInputStream.
+ *
+ * @author Nicholas
+ *
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	private static final int FEXTRA = 4;
+
+	private PushbackInputStream in;
+	private InputStream fallback;
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private boolean endOfMembers;
+	private boolean firstMember = true;
+
+	private byte[] current = new byte[0];
+	private int position;
+
+	public ParallelGzipInputStream(InputStream in) {
+		this.in = new PushbackInputStream(in, 12 + 0xFFFF); //room to push back the largest header
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		while (position == current.length) {
+			if (!nextBlock())
+				return -1;
+		}
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<byte[]> future : pending)
+			future.cancel(false);
+		pending.clear();
+		in.close();
+	}
+
+	/**
+	 * Makes the next block of decompressed data the current one
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean nextBlock() throws IOException {
+		while (!endOfMembers && fallback == null && pending.size() < Parallel.getThreadCount() * 2) {
+			final byte[] member = readMember();
+			if (member == null)
+				break;
+
+			pending.add(Parallel.getExecutor().submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return decompress(member);
+				}
+			}));
+		}
+
+		if (!pending.isEmpty()) {
+			try {
+				current = pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while decompressing");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Decompression failed: " + e.getCause());
+			}
+		} else if (fallback != null) {
+			current = new byte[1 << 16];
+			int n = fallback.read(current);
+			if (n == -1)
+				return false;
+			if (n < current.length) {
+				byte[] data = new byte[n];
+				System.arraycopy(current, 0, data, 0, n);
+				current = data;
+			}
+		} else {
+			return false;
+		}
+		position = 0;
+		return true;
+	}
+
+	/**
+	 * Reads the next member that has its size in the header
+	 *
+	 * @return the whole member, or null if there are no more such members
+	 */
+	private byte[] readMember() throws IOException {
+		byte[] header = new byte[12];
+		int read = readFully(header, 0, 10);
+		if (read < 10 || (header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b) {
+			if (read > 0 && firstMember)
+				throw new ZipException("Not in GZIP format");
+			endOfMembers = true; //like GZIPInputStream anything after the last member is ignored
+			return null;
+		}
+
+		int size = -1;
+		byte[] extra = new byte[0];
+		if ((header[3] & FEXTRA) != 0 && readFully(header, 10, 2) == 2) {
+			extra = new byte[(header[10] & 0xFF) | (header[11] & 0xFF) << 8];
+			if (readFully(extra, 0, extra.length) != extra.length)
+				throw new ZipException("Unexpected end of stream");
+
+			for (int i = 0;i + 4 <= extra.length;) { //look for our subfield
+				int length = (extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8;
+				if (extra[i] == ParallelGzipOutputStream.EXTRA_ID1 && extra[i + 1] == ParallelGzipOutputStream.EXTRA_ID2 && length == 4)
+					size = readInt(extra, i + 4);
+				i += 4 + length;
+			}
+		}
+
+		if (size == -1 || extra.length + 12 != ParallelGzipOutputStream.HEADER_SIZE) {
+			//not written by ParallelGzipOutputStream, put the header back and read normally
+			in.unread(extra);
+			in.unread(header, 0, (header[3] & FEXTRA) != 0 ? 12 : 10);
+			fallback = new GZIPInputStream(in, 1 << 16);
+			return null;
+		}
+
+		if (size < ParallelGzipOutputStream.HEADER_SIZE + ParallelGzipOutputStream.TRAILER_SIZE
+				|| size > ParallelGzipOutputStream.MAX_MEMBER_SIZE)
+			throw new ZipException("Corrupt GZIP member (size " + (size & 0xFFFFFFFFL) + ")");
+		byte[] member = new byte[size];
+		System.arraycopy(header, 0, member, 0, 12);
+		System.arraycopy(extra, 0, member, 12, extra.length);
+		if (readFully(member, ParallelGzipOutputStream.HEADER_SIZE, size - ParallelGzipOutputStream.HEADER_SIZE)
+				!= size - ParallelGzipOutputStream.HEADER_SIZE)
+			throw new ZipException("Unexpected end of stream");
+
+		firstMember = false;
+		return member;
+	}
+
+	/**
+	 * Decompresses one member written by ParallelGzipOutputStream and checks its crc
+	 */
+	static byte[] decompress(byte[] member) throws IOException {
+		int trailer = member.length - ParallelGzipOutputStream.TRAILER_SIZE;
+		int length = readInt(member, trailer + 4);
+		if (length < 0 || length > ParallelGzipOutputStream.MAX_BLOCK_SIZE)
+			throw new ZipException("Corrupt GZIP member (length " + (length & 0xFFFFFFFFL) + ")");
+		byte[] data = new byte[length];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(member, ParallelGzipOutputStream.HEADER_SIZE, trailer - ParallelGzipOutputStream.HEADER_SIZE);
+			int size = 0;
+			while (size < data.length && !inflater.finished()) {
+				int n = inflater.inflate(data, size, data.length - size);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new ZipException("Corrupt GZIP member");
+				size += n;
+			}
+			if (size != data.length)
+				throw new ZipException("Corrupt GZIP member");
+		} catch (DataFormatException e) {
+			throw new ZipException("Corrupt GZIP member: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != readInt(member, trailer))
+			throw new ZipException("Corrupt GZIP member (wrong crc)");
+		return data;
+	}
+
+	/**
+	 * Reads until len bytes were read or the stream ends
+	 *
+	 * @return the amount of bytes read
+	 */
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(b, off + total, len - total);
+			if (n == -1)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads an int in little endian order
+	 */
+	private static int readInt(byte[] b, int position) {
+		return (b[position] & 0xFF) | (b[position + 1] & 0xFF) << 8
+				| (b[position + 2] & 0xFF) << 16 | (b[position + 3] & 0xFF) << 24;
+	}
+
+}
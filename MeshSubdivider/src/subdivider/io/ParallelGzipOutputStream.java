@@ -0,0 +1,185 @@
+package subdivider.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import subdivider.util.Parallel;
+
+/**
+ * Output stream that gzip compresses the data written to it on all processors.
+ *
+ * The data is cut into blocks, and every block is compressed on its own into a
+ * complete gzip member. A file made of several members is still a valid gzip file
+ * (gzip and GZIPInputStream read it as one stream), so the blocks can be compressed
+ * in parallel and written out in order as they finish.
+ *
+ * Each member stores its compressed size in the extra field of its header, which
+ * lets ParallelGzipInputStream find the blocks and decompress them in parallel too.
+ *
+ * @author Nicholas
+ *
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	//id of the extra field holding the size of the member
+	static final byte EXTRA_ID1 = 'S';
+	static final byte EXTRA_ID2 = 'D';
+	static final int HEADER_SIZE = 20;
+	static final int TRAILER_SIZE = 8;
+	//largest block, and member it can compress to (deflate grows data by far less than 0.1% + 64 bytes)
+	static final int MAX_BLOCK_SIZE = 1 << 26;
+	static final int MAX_MEMBER_SIZE = HEADER_SIZE + MAX_BLOCK_SIZE + MAX_BLOCK_SIZE / 1000 + 64 + TRAILER_SIZE;
+
+	private static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	private OutputStream out;
+	private int level;
+	private byte[] block;
+	private int count;
+	private boolean empty = true;
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	public ParallelGzipOutputStream(OutputStream out) {
+		this(out, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param out stream to write the compressed data to
+	 * @param blockSize amount of data compressed by one task, at most 64 MB
+	 * @param level compression level (see Deflater)
+	 * @throws IllegalArgumentException if the block size is not from 1 to 64 MB
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int blockSize, int level) {
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size must be from 1 to " + MAX_BLOCK_SIZE + " bytes");
+		this.out = out;
+		this.level = level;
+		block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		block[count ++] = (byte) b;
+		if (count == block.length)
+			submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == block.length)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Compresses the data written so far and writes it out, the compressed
+	 * stream is still valid if more data follows.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (count > 0)
+			submitBlock();
+		while (!pending.isEmpty())
+			writeBlock(pending.removeFirst());
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (count > 0 || empty) //an empty stream still needs one member to be valid
+			submitBlock();
+		while (!pending.isEmpty())
+			writeBlock(pending.removeFirst());
+		out.close();
+	}
+
+	/**
+	 * Hands the current block to the thread pool, if too many blocks are
+	 * waiting this waits for the oldest one and writes it
+	 */
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = count;
+		pending.add(Parallel.getExecutor().submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return compress(data, length, level);
+			}
+		}));
+		block = new byte[block.length];
+		count = 0;
+		empty = false;
+
+		while (pending.size() > Parallel.getThreadCount() * 2)
+			writeBlock(pending.removeFirst());
+	}
+
+	private void writeBlock(Future<byte[]> future) throws IOException {
+		try {
+			out.write(future.get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Compression failed: " + e.getCause());
+		}
+	}
+
+	/**
+	 * Compresses the data into one complete gzip member
+	 */
+	static byte[] compress(byte[] data, int length, int level) {
+		Deflater deflater = new Deflater(level, true); //raw deflate, we write the gzip header ourselves
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		byte[] member = new byte[HEADER_SIZE + length + length / 1000 + 64 + TRAILER_SIZE];
+		int size = HEADER_SIZE;
+		while (!deflater.finished()) {
+			if (size == member.length - TRAILER_SIZE) { //incompressible data, make room
+				byte[] larger = new byte[member.length * 2];
+				System.arraycopy(member, 0, larger, 0, size);
+				member = larger;
+			}
+			size += deflater.deflate(member, size, member.length - TRAILER_SIZE - size);
+		}
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		size = writeInt(member, size, (int) crc.getValue());
+		size = writeInt(member, size, length);
+
+		//header: magic, deflate, FEXTRA flag, no time, unknown os
+		byte[] header = { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 8, 0, EXTRA_ID1, EXTRA_ID2, 4, 0 };
+		System.arraycopy(header, 0, member, 0, header.length);
+		writeInt(member, header.length, size);
+
+		byte[] result = new byte[size];
+		System.arraycopy(member, 0, result, 0, size);
+		return result;
+	}
+
+	/**
+	 * Writes an int in little endian order
+	 *
+	 * @return position after the int
+	 */
+	private static int writeInt(byte[] b, int position, int value) {
+		b[position] = (byte) value;
+		b[position + 1] = (byte) (value >> 8);
+		b[position + 2] = (byte) (value >> 16);
+		b[position + 3] = (byte) (value >> 24);
+		return position + 4;
+	}
+
+}
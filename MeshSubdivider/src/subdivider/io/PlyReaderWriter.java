@@ -0,0 +1,444 @@
+package subdivider.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import subdivider.util.FloatStore;
+import subdivider.util.QuadMesh;
+
+/**
+ * Reader and writer for the binary PLY format. Each vertex is written
+ * once with its position and normal (little endian), followed by the faces 
+ * as lists of 4 vertex indices.
+ *
+ * The data is packed into a fixed size buffer that is written out whenever
+ * it fills up, so the whole file is never held in memory. The reader accepts 
+ * both byte orders, it reads the memory mapped file directly into the index 
+ * arrays of the mesh and skips any properties and elements it does not use.
+ * Files ending with ".gz" are compressed, see MeshStreams.
+ *
+ * @author Nicholas
+ *
+ */
+public class PlyReaderWriter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Given a binary PLY file, this will return the mesh it holds, or print an
+	 * error message and return null if there was an error reading or parsing 
+	 * the file, or if it contains faces that are not quads.
+	 *
+	 * @param file
+	 * @return the mesh on success null otherwise
+	 */
+	public static QuadMesh readMeshFromFile(File file) {
+		try {
+			BlockInput input = MeshStreams.openInput(file);
+			try {
+				ArrayList<Element> elements = readHeader(input);
+				if (elements == null)
+					return null;
+
+				float[] positions = null;
+				int[] quads = null;
+				int vertexCount = 0;
+				int faceCount = 0;
+				for (Element element : elements) {
+					if (element.name.equals("vertex")) {
+						vertexCount = element.count;
+						positions = readVertices(input, element);
+						if (positions == null)
+							return null;
+					} else if (element.name.equals("face")) {
+						faceCount = element.count;
+						quads = readFaces(input, element);
+						if (quads == null)
+							return null;
+					} else {
+						for (int i = 0;i < element.count;i ++) //element we don't use
+							for (Property property : element.properties)
+								property.read(input);
+					}
+				}
+
+				if (positions == null || quads == null) {
+					System.out.println("File has no vertex or face element");
+					return null;
+				}
+				for (int i = 0;i < quads.length;i ++) {
+					if (quads[i] < 0 || quads[i] >= vertexCount) {
+						System.out.println("Face " + i / 4 + " references a vertex that does not exist");
+						return null;
+					}
+				}
+				return new QuadMesh(positions, vertexCount, quads, faceCount);
+			} finally {
+				input.close();
+			}
+		} catch (IllegalArgumentException e) { //bad header or not enough data
+			System.out.println("Error parsing file: " + e.getMessage());
+			return null;
+		} catch (IOException e) {
+			System.out.println("Could not read from file: " + file);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the header and leaves the input at the start of the data
+	 * 
+	 * @return the elements in the file, or null if the format is not supported
+	 */
+	private static ArrayList<Element> readHeader(BlockInput input) throws IOException {
+		ArrayList<Element> elements = new ArrayList<Element>();
+		String line = input.readLine();
+		if (!line.equals("ply"))
+			throw new IllegalArgumentException("Not a PLY file");
+
+		while (!(line = input.readLine()).equals("end_header")) {
+			String[] args = line.trim().split("\\s+");
+			if (args[0].equals("format")) {
+				checkArguments(args, 2, line);
+				if (args[1].equals("binary_little_endian")) {
+					input.setOrder(ByteOrder.LITTLE_ENDIAN);
+				} else if (args[1].equals("binary_big_endian")) {
+					input.setOrder(ByteOrder.BIG_ENDIAN);
+				} else {
+					System.out.println("Only binary PLY files are supported");
+					return null;
+				}
+			} else if (args[0].equals("element")) {
+				checkArguments(args, 3, line);
+				elements.add(new Element(args[1], parseCount(args[1], args[2])));
+			} else if (args[0].equals("property")) {
+				if (elements.isEmpty())
+					throw new IllegalArgumentException("Property outside of an element");
+				checkArguments(args, args.length > 1 && args[1].equals("list") ? 5 : 3, line);
+				Property property = args[1].equals("list") 
+						? new Property(args[4], Type.get(args[3]), Type.get(args[2])) 
+						: new Property(args[2], Type.get(args[1]), null);
+				elements.get(elements.size() - 1).properties.add(property);
+			}
+		}
+		return elements;
+	}
+
+	/**
+	 * @return the count of an element
+	 * @throws IllegalArgumentException if it is negative, or too large for the arrays of
+	 * the mesh (3 floats per vertex, 4 indices per face)
+	 */
+	private static int parseCount(String name, String count) {
+		int value = Integer.parseInt(count);
+		int values = name.equals("vertex") ? 3 : name.equals("face") ? 4 : 1;
+		if (value < 0 || value * (long) values > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid " + name + " count: " + count);
+		return value;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the header line has less than count words
+	 */
+	private static void checkArguments(String[] args, int count, String line) {
+		if (args.length < count)
+			throw new IllegalArgumentException("Incomplete header line: " + line);
+	}
+
+	/**
+	 * Reads the x, y and z properties of every vertex
+	 * 
+	 * @return the positions of the vertices, or null if they are missing
+	 */
+	private static float[] readVertices(BlockInput input, Element element) throws IOException {
+		int x = element.indexOf("x"), y = element.indexOf("y"), z = element.indexOf("z");
+		if (x == -1 || y == -1 || z == -1) {
+			System.out.println("Vertices need x, y and z properties");
+			return null;
+		}
+
+		float[] positions = new float[element.count * 3];
+		int recordSize = element.getRecordSize();
+		Property px = element.properties.get(x), py = element.properties.get(y), pz = element.properties.get(z);
+		if (recordSize != -1 && px.type == Type.FLOAT && py.type == Type.FLOAT && pz.type == Type.FLOAT) {
+			//every vertex has the same size, read the floats straight from their offsets
+			int ox = element.getOffset(x), oy = element.getOffset(y), oz = element.getOffset(z);
+			for (int v = 0;v < element.count;v ++) {
+				ByteBuffer buffer = input.require(recordSize);
+				int position = buffer.position();
+				positions[v * 3] = buffer.getFloat(position + ox);
+				positions[v * 3 + 1] = buffer.getFloat(position + oy);
+				positions[v * 3 + 2] = buffer.getFloat(position + oz);
+				buffer.position(position + recordSize);
+			}
+			return positions;
+		}
+		
+		for (int v = 0;v < element.count;v ++) {
+			for (int i = 0;i < element.properties.size();i ++) {
+				double value = element.properties.get(i).read(input);
+				if (i == x)
+					positions[v * 3] = (float) value;
+				else if (i == y)
+					positions[v * 3 + 1] = (float) value;
+				else if (i == z)
+					positions[v * 3 + 2] = (float) value;
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Reads the vertex index list of every face
+	 * 
+	 * @return 4 indices per face, or null if a face is not a quad
+	 */
+	private static int[] readFaces(BlockInput input, Element element) throws IOException {
+		int list = element.indexOf("vertex_indices");
+		if (list == -1)
+			list = element.indexOf("vertex_index");
+		if (list == -1 || element.properties.get(list).countType == null) {
+			System.out.println("Faces need a vertex_indices list");
+			return null;
+		}
+
+		int[] quads = new int[element.count * 4];
+		Property indices = element.properties.get(list);
+		if (element.properties.size() == 1 && indices.countType == Type.UCHAR 
+				&& (indices.type == Type.INT || indices.type == Type.UINT)) {
+			//the usual layout, read the count and the 4 indices directly
+			for (int f = 0;f < element.count;f ++) {
+				ByteBuffer buffer = input.require(1 + 4 * 4);
+				int corners = buffer.get() & 0xFF;
+				if (corners != 4) {
+					System.out.println("Only quad faces are supported, face " + f + " has " + corners + " vertices");
+					return null;
+				}
+				for (int c = 0;c < 4;c ++)
+					quads[f * 4 + c] = buffer.getInt();
+			}
+			return quads;
+		}
+		
+		for (int f = 0;f < element.count;f ++) {
+			for (int i = 0;i < element.properties.size();i ++) {
+				Property property = element.properties.get(i);
+				if (i != list) {
+					property.read(input);
+					continue;
+				}
+				
+				int corners = (int) property.countType.read(input);
+				if (corners != 4) {
+					System.out.println("Only quad faces are supported, face " + f + " has " + corners + " vertices");
+					return null;
+				}
+				for (int c = 0;c < 4;c ++)
+					quads[f * 4 + c] = (int) property.type.read(input);
+			}
+		}
+		return quads;
+	}
+
+	/**
+	 * Writes the mesh and its normals to the file as binary PLY, if the output
+	 * file doesn't exist
+	 *
+	 * @param mesh
+	 * @param normals normal of each vertex (x, y, z per vertex)
+	 * @param outFile
+	 * @return true if the file was written, otherwise a message was printed
+	 */
+	public static boolean writeMeshToFile(QuadMesh mesh, FloatStore normals, File outFile) {
+		try {
+			OutputStream out = MeshStreams.openOutput(outFile);
+			if (out == null) //file exists
+				return false;
+
+			writeHeader(out, mesh);
+			writeVertices(out, mesh, normals, 0, mesh.getVertexCount());
+			writeFaces(out, mesh, 0, mesh.getFaceCount());
+			out.close();
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not write to file: " + outFile);
+			return false;
+		}
+	}
+
+	public static void writeHeader(OutputStream out, QuadMesh mesh) throws IOException {
+		String header = "ply\n"
+				+ "format binary_little_endian 1.0\n"
+				+ "element vertex " + mesh.getVertexCount() + "\n"
+				+ "property float x\n"
+				+ "property float y\n"
+				+ "property float z\n"
+				+ "property float nx\n"
+				+ "property float ny\n"
+				+ "property float nz\n"
+				+ "element face " + mesh.getFaceCount() + "\n"
+				+ "property list uchar int vertex_indices\n"
+				+ "end_header\n";
+		out.write(header.getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Writes the position and normal of the vertices in the range
+	 */
+	public static void writeVertices(OutputStream out, QuadMesh mesh, FloatStore normals, int firstVertex, int lastVertex) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int v = firstVertex;v < lastVertex;v ++) {
+			if (buffer.remaining() < 6 * 4) //no room for another vertex
+				flush(buffer, out);
+
+			buffer.putFloat(mesh.getX(v)).putFloat(mesh.getY(v)).putFloat(mesh.getZ(v));
+			long n = v * 3L;
+			buffer.putFloat(normals.get(n)).putFloat(normals.get(n + 1)).putFloat(normals.get(n + 2));
+		}
+		flush(buffer, out);
+	}
+
+	/**
+	 * Writes the vertex index lists of the faces in the range
+	 */
+	public static void writeFaces(OutputStream out, QuadMesh mesh, int firstFace, int lastFace) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int f = firstFace;f < lastFace;f ++) {
+			if (buffer.remaining() < 1 + 4 * 4) //no room for another face
+				flush(buffer, out);
+
+			buffer.put((byte) 4);
+			for (int i = 0;i < 4;i ++)
+				buffer.putInt(mesh.getVertex(f, i));
+		}
+		flush(buffer, out);
+	}
+
+	/**
+	 * Writes the contents of the buffer to the stream and clears it
+	 */
+	private static void flush(ByteBuffer buffer, OutputStream out) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	/**
+	 * Data types that can be used by PLY properties
+	 */
+	private enum Type {
+		CHAR(1), UCHAR(1), SHORT(2), USHORT(2), INT(4), UINT(4), FLOAT(4), DOUBLE(8);
+		
+		private int size;
+		
+		private Type(int size) {
+			this.size = size;
+		}
+		
+		public static Type get(String name) {
+			if (name.equals("char") || name.equals("int8")) return CHAR;
+			if (name.equals("uchar") || name.equals("uint8")) return UCHAR;
+			if (name.equals("short") || name.equals("int16")) return SHORT;
+			if (name.equals("ushort") || name.equals("uint16")) return USHORT;
+			if (name.equals("int") || name.equals("int32")) return INT;
+			if (name.equals("uint") || name.equals("uint32")) return UINT;
+			if (name.equals("float") || name.equals("float32")) return FLOAT;
+			if (name.equals("double") || name.equals("float64")) return DOUBLE;
+			throw new IllegalArgumentException("Unknown property type " + name);
+		}
+		
+		public double read(BlockInput input) throws IOException {
+			ByteBuffer buffer = input.require(size);
+			switch (this) {
+			case CHAR: return buffer.get();
+			case UCHAR: return buffer.get() & 0xFF;
+			case SHORT: return buffer.getShort();
+			case USHORT: return buffer.getShort() & 0xFFFF;
+			case INT: return buffer.getInt();
+			case UINT: return buffer.getInt() & 0xFFFFFFFFL;
+			case FLOAT: return buffer.getFloat();
+			default: return buffer.getDouble();
+			}
+		}
+	}
+	
+	/**
+	 * A property of an element, either a single value or a list 
+	 * of values (then countType is the type of the list length)
+	 */
+	private static class Property {
+		
+		public String name;
+		public Type type;
+		public Type countType;
+		
+		public Property(String name, Type type, Type countType) {
+			this.name = name;
+			this.type = type;
+			this.countType = countType;
+		}
+		
+		/**
+		 * Reads the property, for lists the values are skipped
+		 * 
+		 * @return the value of the property, or the length for lists
+		 */
+		public double read(BlockInput input) throws IOException {
+			if (countType == null)
+				return type.read(input);
+			
+			int count = (int) countType.read(input);
+			for (int i = 0;i < count;i ++)
+				type.read(input);
+			return count;
+		}
+	}
+	
+	/**
+	 * An element (vertex, face...) declared in the header
+	 */
+	private static class Element {
+		
+		public String name;
+		public int count;
+		public ArrayList<Property> properties = new ArrayList<Property>();
+		
+		public Element(String name, int count) {
+			this.name = name;
+			this.count = count;
+		}
+		
+		public int indexOf(String property) {
+			for (int i = 0;i < properties.size();i ++)
+				if (properties.get(i).name.equals(property))
+					return i;
+			
+			return -1;
+		}
+		
+		/**
+		 * @return size of one record in bytes, or -1 if the element has lists
+		 */
+		public int getRecordSize() {
+			return getOffset(properties.size());
+		}
+		
+		/**
+		 * @return offset in bytes of the property in a record, or -1 if 
+		 * a list comes before it
+		 */
+		public int getOffset(int property) {
+			int offset = 0;
+			for (int i = 0;i < property;i ++) {
+				if (properties.get(i).countType != null)
+					return -1;
+				offset += properties.get(i).type.size;
+			}
+			return offset;
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 package subdivider.ui;
 
 
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
@@ -14,7 +16,8 @@ import subdivider.util.math.FastMath;
  *
  * Responsible for controlling the animation of the of the scene.
  * This includes rotating the scene in accordance with keypresses.
- * This class also maintains a max fps limiter of 60fps.
+ * Frames are only drawn when something changed, continuously while a key
+ * is held, and at most 60 per second (see FrameScheduler).
  *
  */
 public class Animator extends Thread implements KeyListener {
@@ -23,6 +26,7 @@ public class Animator extends Thread implements KeyListener {
 	
 	private GLCanvas canvas;
 	private Renderer renderer;
+	private FrameScheduler scheduler;
 	
 	//camera constraints 
 	private float cameraDistance;
@@ -32,12 +36,20 @@ public class Animator extends Thread implements KeyListener {
 	private float viewRotationHorizontal;
 	private float viewRotationHorizontalStep;
 	
-	private float runTime;
-	private double lastRenderTime;
-	
 	public Animator(GLCanvas canvas, final Renderer renderer) {
+		this(canvas, renderer, new FrameScheduler(FrameScheduler.SYSTEM_CLOCK, maxFPS));
+	}
+	
+	public Animator(GLCanvas canvas, final Renderer renderer, final FrameScheduler scheduler) {
 		this.renderer = renderer;
 		this.canvas = canvas;
+		this.scheduler = scheduler;
+		renderer.setFrameScheduler(scheduler); //a new mesh is drawn right away
+		canvas.addComponentListener(new ComponentAdapter() {
+			public void componentResized(ComponentEvent e) {
+				scheduler.requestFrame();
+			}
+		});
 		
 		cameraDistance = 15;
 		viewRotationVertical = FastMath.PI / 4;
@@ -49,7 +61,12 @@ public class Animator extends Thread implements KeyListener {
 	@Override
 	public void run() {
 		while (true) {
-			long startTime = System.nanoTime();
+			double lastRenderTime;
+			try { //sleeps until there is something to draw
+				lastRenderTime = scheduler.awaitFrame() / 1.0E9;
+			} catch (InterruptedException e) {
+				return;
+			}
 	     
 			cameraDistance += cameraDistanceStep;
 			viewRotationVertical += viewRotationVerticalStep * lastRenderTime;
@@ -68,19 +85,19 @@ public class Animator extends Thread implements KeyListener {
 			renderer.setEyePosition(eyeX, eyeY, eyeZ);
 			
 			canvas.display();	
-			long endTime = System.nanoTime();	
-			//this is the frame limiter logic, works by finding how much time as passed to update/render
-			//and then calculates how much time the thread needs to sleep to achieve the desired fps
-			long sleepTime = Math.max(0, (long) ((1.0f / maxFPS * 1000) - (endTime - startTime) / 1.0E6));//IN MILIS
-			lastRenderTime = (endTime - startTime) / 1.0E9 + sleepTime / 1000.0;
-			try {
-				Thread.sleep(sleepTime);
-			} catch (InterruptedException e) { e.printStackTrace(); }
 		}
 	}
 
 	@Override
 	public void keyPressed(KeyEvent arg0) {
+		if (arg0.getKeyCode() == KeyEvent.VK_C) {
+			System.out.println(renderer.getCullingStatistics());
+			return;
+		} else if (arg0.getKeyCode() == KeyEvent.VK_F) { //frame statistics on or off
+			renderer.setOverlay(!renderer.isOverlay());
+			scheduler.requestFrame();
+			return;
+		}
 		//on key presses we update the step value of 
 		//the particular camera constraint, to achieve smooth animation
 		if (arg0.getKeyCode() == KeyEvent.VK_LEFT)
@@ -95,13 +112,27 @@ public class Animator extends Thread implements KeyListener {
 			cameraDistanceStep = 0.1f;
 		else if (arg0.getKeyCode() == KeyEvent.VK_W)
 			cameraDistanceStep = -0.1f;
+		else
+			return; //not a camera key, nothing to draw
+		scheduler.setAnimating(true);
 	}
 
 	@Override
 	public void keyReleased(KeyEvent arg0) {
-		viewRotationVerticalStep = 
-				viewRotationHorizontalStep = 
-				cameraDistanceStep = 0;
+		//only the movement of the released key stops, other keys may still be held
+		if (arg0.getKeyCode() == KeyEvent.VK_LEFT && viewRotationHorizontalStep < 0
+				|| arg0.getKeyCode() == KeyEvent.VK_RIGHT && viewRotationHorizontalStep > 0)
+			viewRotationHorizontalStep = 0;
+		else if (arg0.getKeyCode() == KeyEvent.VK_UP && viewRotationVerticalStep > 0
+				|| arg0.getKeyCode() == KeyEvent.VK_DOWN && viewRotationVerticalStep < 0)
+			viewRotationVerticalStep = 0;
+		else if (arg0.getKeyCode() == KeyEvent.VK_S && cameraDistanceStep > 0
+				|| arg0.getKeyCode() == KeyEvent.VK_W && cameraDistanceStep < 0)
+			cameraDistanceStep = 0;
+		else
+			return; //not a camera key, or one whose movement was replaced by another key
+		scheduler.setAnimating(viewRotationVerticalStep != 0 || viewRotationHorizontalStep != 0
+				|| cameraDistanceStep != 0);
 	}
 
 	@Override
@@ -0,0 +1,125 @@
+package subdivider.ui;
+
+/**
+ * @author Nicholas
+ *
+ * Decides when the viewer draws a frame. Nothing is drawn while nothing changes:
+ * a frame is drawn when one was requested (the mesh or the window changed, or a
+ * key was released), and continuously while the camera is animating (a key is
+ * held). Frames are at least the minimum interval apart, so a burst of requests
+ * is drawn as one frame.
+ *
+ * The decision only depends on the clock it is given, so it can be driven by a
+ * fake clock without a window (see getDelay).
+ */
+public class FrameScheduler {
+
+	/**
+	 * Source of the current time
+	 */
+	public interface Clock {
+		long nanoTime();
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	//longest time a frame moves the camera for, after a slow frame
+	private static final long MAX_ELAPSED = 100000000L;
+
+	private Clock clock;
+	private long minInterval; //nanoseconds between frames
+
+	private boolean requested;
+	private boolean animating;
+	private boolean drawn; //false until the first frame
+	private long lastFrame; //time the last frame started
+	private boolean lastAnimating; //true if the last frame was animating
+
+	/**
+	 * @param clock
+	 * @param maxFPS most frames per second
+	 */
+	public FrameScheduler(Clock clock, int maxFPS) {
+		this.clock = clock;
+		minInterval = 1000000000L / maxFPS;
+		requested = true; //the first frame
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Asks for a frame, requests before the frame is drawn are combined into it
+	 */
+	public synchronized void requestFrame() {
+		requested = true;
+		notifyAll();
+	}
+
+	/**
+	 * @param animating true to draw frames continuously, until it is set to false
+	 */
+	public synchronized void setAnimating(boolean animating) {
+		this.animating = animating;
+		notifyAll();
+	}
+
+	public synchronized boolean isAnimating() {
+		return animating;
+	}
+
+	/**
+	 * @param now current time of the clock
+	 * @return 0 if a frame should be drawn now, the nanoseconds until the next frame
+	 * can be drawn if one is waiting, or -1 if there is nothing to draw
+	 */
+	public synchronized long getDelay(long now) {
+		if (!requested && !animating)
+			return -1;
+		if (!drawn)
+			return 0;
+		return Math.max(0, lastFrame + minInterval - now);
+	}
+
+	/**
+	 * Marks the start of a frame, the requests until now are drawn by it
+	 *
+	 * @param now current time of the clock
+	 * @return nanoseconds the camera moves for in this frame, the time since the
+	 * previous frame if that was animating too, otherwise 0 (so the camera doesn't
+	 * jump after being idle)
+	 */
+	public synchronized long startFrame(long now) {
+		long elapsed = drawn && lastAnimating ? Math.min(now - lastFrame, MAX_ELAPSED) : 0;
+		requested = false;
+		drawn = true;
+		lastFrame = now;
+		lastAnimating = animating;
+		return elapsed;
+	}
+
+	/**
+	 * Blocks until a frame should be drawn, and starts it (see startFrame)
+	 *
+	 * @return nanoseconds the camera moves for in this frame
+	 * @throws InterruptedException
+	 */
+	public synchronized long awaitFrame() throws InterruptedException {
+		long now = clock.nanoTime();
+		long delay;
+		while ((delay = getDelay(now)) != 0) {
+			if (delay < 0) //wait for a request
+				wait();
+			else
+				wait(delay / 1000000, (int) (delay % 1000000));
+			now = clock.nanoTime();
+		}
+		return startFrame(now);
+	}
+
+}
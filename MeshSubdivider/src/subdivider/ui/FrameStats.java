@@ -0,0 +1,167 @@
+package subdivider.ui;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * @author Nicholas
+ *
+ * Keeps the time and vertex count of the last frames the Renderer drew, to see
+ * what a way of drawing costs. The time is until the graphics card finished the
+ * frame (see FrameTimer), a frame longer than the budget (one refresh at 60 Hz) is
+ * dropped. The percentiles and the histogram cover a window of the last frames, the
+ * totals all frames since the last reset.
+ *
+ * The Renderer can draw the statistics over the mesh (see getSummary), and they are
+ * shown over JMX as subdivider:type=FrameStats once registered (see register).
+ */
+public class FrameStats implements FrameStatsMBean {
+
+	public static final String OBJECT_NAME = "subdivider:type=FrameStats";
+
+	private static final int HISTOGRAM_SIZE = 50; //milliseconds, the last one holds all longer frames
+
+	private long budget; //nanoseconds
+	private long[] times; //ring of the frames in the window
+	private long[] vertices;
+	private int count; //frames in the window
+	private int next; //position of the next frame in the ring
+	private int[] histogram;
+	private int dropped; //in the window
+	private long totalFrames;
+	private long totalDropped;
+
+	/**
+	 * @param window amount of frames the percentiles are calculated over
+	 * @param budget longest time of a frame that is not dropped, in nanoseconds
+	 */
+	public FrameStats(int window, long budget) {
+		this.budget = budget;
+		times = new long[window];
+		vertices = new long[window];
+		histogram = new int[HISTOGRAM_SIZE];
+	}
+
+	/**
+	 * Adds a frame, the oldest one leaves the window
+	 *
+	 * @param time nanoseconds it took
+	 * @param vertexCount amount of vertices it drew
+	 */
+	public synchronized void frame(long time, long vertexCount) {
+		if (count == times.length) { //window is full
+			histogram[getBucket(times[next])] --;
+			if (times[next] > budget)
+				dropped --;
+		} else
+			count ++;
+		times[next] = time;
+		vertices[next] = vertexCount;
+		next = (next + 1) % times.length;
+
+		histogram[getBucket(time)] ++;
+		totalFrames ++;
+		if (time > budget) {
+			dropped ++;
+			totalDropped ++;
+		}
+	}
+
+	private static int getBucket(long time) {
+		return (int) Math.min(time / 1000000, HISTOGRAM_SIZE - 1);
+	}
+
+	/**
+	 * @return registered with the platform MBean server, false if it could not be, the error was printed
+	 */
+	public boolean register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+			return true;
+		} catch (JMException e) {
+			System.out.println("Could not register frame statistics: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return lines describing the window, for the overlay of the Renderer
+	 */
+	public synchronized String[] getSummary() {
+		return new String[] {
+				String.format("Frame %.2f ms, p50 %.2f, p95 %.2f, p99 %.2f", getLastFrameTime(), getP50(), getP95(), getP99()),
+				String.format("Vertices %d, average %.0f", getLastVertices(), getAverageVertices()),
+				"Dropped " + dropped + " of " + count + " frames, " + totalDropped + " of " + totalFrames + " in total"
+		};
+	}
+
+	public synchronized long getTotalFrames() {
+		return totalFrames;
+	}
+
+	public synchronized long getTotalDroppedFrames() {
+		return totalDropped;
+	}
+
+	public synchronized int getDroppedFrames() {
+		return dropped;
+	}
+
+	public double getBudget() {
+		return budget / 1.0E6;
+	}
+
+	public synchronized double getLastFrameTime() {
+		return count == 0 ? 0 : times[(next + times.length - 1) % times.length] / 1.0E6;
+	}
+
+	public double getP50() {
+		return getPercentile(50);
+	}
+
+	public double getP95() {
+		return getPercentile(95);
+	}
+
+	public double getP99() {
+		return getPercentile(99);
+	}
+
+	/**
+	 * @param percent
+	 * @return milliseconds that percent of the frames in the window took at most
+	 */
+	public synchronized double getPercentile(double percent) {
+		if (count == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(times, count); //the ring is full, or filled from the start
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(percent / 100 * count) - 1; //nearest rank
+		return sorted[Math.max(0, rank)] / 1.0E6;
+	}
+
+	public synchronized long getLastVertices() {
+		return count == 0 ? 0 : vertices[(next + vertices.length - 1) % vertices.length];
+	}
+
+	public synchronized double getAverageVertices() {
+		long sum = 0;
+		for (int i = 0;i < count;i ++)
+			sum += vertices[i];
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	public synchronized int[] getHistogram() {
+		return histogram.clone();
+	}
+
+	public synchronized void reset() {
+		count = next = dropped = 0;
+		totalFrames = totalDropped = 0;
+		Arrays.fill(histogram, 0);
+	}
+
+}
@@ -0,0 +1,38 @@
+package subdivider.ui;
+
+/**
+ * @author Nicholas
+ *
+ * What FrameStats shows over JMX, times are in milliseconds and cover the
+ * frames in its window unless they say total
+ */
+public interface FrameStatsMBean {
+
+	public long getTotalFrames();
+
+	public long getTotalDroppedFrames();
+
+	public int getDroppedFrames();
+
+	public double getBudget();
+
+	public double getLastFrameTime();
+
+	public double getP50();
+
+	public double getP95();
+
+	public double getP99();
+
+	public long getLastVertices();
+
+	public double getAverageVertices();
+
+	/**
+	 * @return frames that took 0 to 1, 1 to 2... milliseconds, the last one counts all longer frames
+	 */
+	public int[] getHistogram();
+
+	public void reset();
+
+}
@@ -0,0 +1,116 @@
+package subdivider.ui;
+
+import javax.media.opengl.GL2;
+
+/**
+ * @author Nicholas
+ *
+ * Measures how long the frames of the Renderer take until the graphics card has
+ * drawn them, not only until the commands were handed to the driver, and adds
+ * them to the FrameStats. Each frame is wrapped in a timer query (GL_EXT_timer_query),
+ * the result is read a few frames later once the card has it, so measuring does not
+ * stall drawing. A frame takes the longer of the time on the OpenGL thread and the
+ * time on the card, as the two run side by side.
+ *
+ * Without timer queries glFinish is called at the end of the frame instead, which
+ * waits for the card, so the time on the OpenGL thread includes the drawing.
+ */
+public class FrameTimer {
+
+	private static final int QUERIES = 4; //frames in flight
+
+	private FrameStats stats;
+	private int[] queries; //null without timer queries, or before init
+	private boolean[] pending; //query started and result not read yet
+	private long[] cpuTimes; //nanoseconds on the OpenGL thread of the frame of each query
+	private long[] vertices;
+	private int next; //query of the next frame
+	private long start; //time the current frame started
+
+	public FrameTimer(FrameStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Creates the queries, call again for a new context
+	 */
+	public void init(GL2 gl) {
+		queries = null;
+		if (!gl.isExtensionAvailable("GL_EXT_timer_query"))
+			return;
+		queries = new int[QUERIES];
+		gl.glGenQueries(QUERIES, queries, 0);
+		pending = new boolean[QUERIES];
+		cpuTimes = new long[QUERIES];
+		vertices = new long[QUERIES];
+		next = 0;
+	}
+
+	/**
+	 * Starts timing a frame, before its first command
+	 */
+	public void begin(GL2 gl) {
+		start = System.nanoTime();
+		if (queries == null)
+			return;
+		if (pending[next]) //the card is QUERIES frames behind, wait for it
+			read(gl, next, true);
+		gl.glBeginQuery(GL2.GL_TIME_ELAPSED_EXT, queries[next]);
+	}
+
+	/**
+	 * Stops timing the frame begin was called for, the time is added to the
+	 * statistics once it is known
+	 *
+	 * @param vertexCount amount of vertices the frame drew
+	 */
+	public void end(GL2 gl, long vertexCount) {
+		if (queries == null) {
+			gl.glFinish();
+			stats.frame(System.nanoTime() - start, vertexCount);
+			return;
+		}
+		gl.glEndQuery(GL2.GL_TIME_ELAPSED_EXT);
+		pending[next] = true;
+		cpuTimes[next] = System.nanoTime() - start;
+		vertices[next] = vertexCount;
+		next = (next + 1) % QUERIES;
+
+		//oldest first, so the frames are added in order
+		for (int i = 0;i < QUERIES;i ++) {
+			int query = (next + i) % QUERIES;
+			if (pending[query] && !read(gl, query, false))
+				break;
+		}
+	}
+
+	/**
+	 * Adds the frame of the query to the statistics if its result is there
+	 *
+	 * @param wait true to wait for the result
+	 * @return false if the result is not there yet
+	 */
+	private boolean read(GL2 gl, int query, boolean wait) {
+		if (!wait) {
+			int[] available = new int[1];
+			gl.glGetQueryObjectiv(queries[query], GL2.GL_QUERY_RESULT_AVAILABLE, available, 0);
+			if (available[0] == 0)
+				return false;
+		}
+		long[] gpuTime = new long[1];
+		gl.glGetQueryObjectui64vEXT(queries[query], GL2.GL_QUERY_RESULT, gpuTime, 0);
+		pending[query] = false;
+		stats.frame(Math.max(cpuTimes[query], gpuTime[0]), vertices[query]);
+		return true;
+	}
+
+	/**
+	 * Deletes the queries, the frames not read yet are not added
+	 */
+	public void dispose(GL2 gl) {
+		if (queries != null)
+			gl.glDeleteQueries(QUERIES, queries, 0);
+		queries = null;
+	}
+
+}
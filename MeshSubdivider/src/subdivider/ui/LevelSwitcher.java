@@ -0,0 +1,276 @@
+package subdivider.ui;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import subdivider.LevelAllocator;
+import subdivider.QuadSubdivider;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Lets the viewer show any subdivision level of the mesh. The window opens with the
+ * mesh it starts from, the higher levels are subdivided one after the other on a
+ * background thread, and each is shown as soon as it is finished. Page up and page
+ * down step between the finished levels, the number keys jump to a level, after
+ * that the shown level only changes with the keys. L switches to drawing all finished
+ * levels, each frame picking the level that is detailed enough for the distance to
+ * the camera (see LodSelector), a level key switches back to showing one level.
+ *
+ * The new mesh is packed for the Renderer (see MeshPacker) on another background
+ * thread, so switching levels never holds up the frames. A level that can not be
+ * packed (too large, or out of memory) is reported, and is not offered anymore.
+ */
+public class LevelSwitcher extends KeyAdapter {
+
+	private Renderer renderer;
+	private QuadMesh[] levels; //finished levels, null until they are done
+	private boolean[] undrawable; //levels the renderer could not take
+	private ArrayList<Future<QuadMesh>> tasks; //subdivision of each level after the first one
+	private int firstLevel;
+	private int shown;
+	private int drawn; //level the renderer has, shown may not be packed yet
+	private boolean followLatest; //false once a level was picked with a key
+	private boolean lod; //true while the renderer picks the level itself
+
+	private ExecutorService subdivider;
+	private ExecutorService packer;
+
+	/**
+	 * @param renderer showing the given mesh
+	 * @param mesh
+	 * @param level subdivision level of the mesh
+	 */
+	public LevelSwitcher(Renderer renderer, QuadMesh mesh, int level) {
+		this.renderer = renderer;
+		levels = new QuadMesh[level + 1];
+		levels[level] = mesh;
+		undrawable = new boolean[level + 1];
+		tasks = new ArrayList<Future<QuadMesh>>();
+		firstLevel = shown = drawn = level;
+		followLatest = true;
+		subdivider = Executors.newSingleThreadExecutor(new DaemonThreads("Subdivision"));
+		packer = Executors.newSingleThreadExecutor(new DaemonThreads("Mesh packing"));
+	}
+
+	/**
+	 * Starts subdividing the mesh in the background, up to the given level
+	 *
+	 * @param allocator provides the arrays of each level, only used by the background thread from now on
+	 * @param lastLevel
+	 */
+	public synchronized void subdivide(final LevelAllocator allocator, int lastLevel) {
+		QuadMesh[] grown = new QuadMesh[lastLevel + 1];
+		System.arraycopy(levels, 0, grown, 0, levels.length);
+		levels = grown;
+		boolean[] grownUndrawable = new boolean[lastLevel + 1];
+		System.arraycopy(undrawable, 0, grownUndrawable, 0, undrawable.length);
+		undrawable = grownUndrawable;
+
+		for (int l = firstLevel + tasks.size() + 1;l <= lastLevel;l ++) {
+			final int level = l;
+			tasks.add(subdivider.submit(new Callable<QuadMesh>() {
+				public QuadMesh call() {
+					QuadMesh mesh = getLevel(level - 1);
+					mesh = QuadSubdivider.subdivideMesh(mesh, allocator.allocate(mesh));
+					finished(level, mesh);
+					return mesh;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Waits until the level is subdivided
+	 *
+	 * @param level a level after the first one, up to the last one given to subdivide
+	 * @return the level
+	 * @throws IllegalArgumentException if it could not be subdivided (see QuadSubdivider.subdivideMesh)
+	 */
+	public QuadMesh awaitLevel(int level) {
+		Future<QuadMesh> task;
+		synchronized (this) {
+			task = tasks.get(level - firstLevel - 1);
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IllegalArgumentException)
+				throw (IllegalArgumentException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalArgumentException("Interrupted while subdividing");
+		}
+	}
+
+	/**
+	 * Replaces all levels, and shows the new version of the shown level
+	 *
+	 * @param newLevels the base mesh followed by each of its subdivided levels
+	 */
+	public synchronized void setLevels(QuadMesh[] newLevels) {
+		levels = newLevels.clone();
+		undrawable = new boolean[levels.length];
+		firstLevel = 0;
+		tasks.clear();
+		shown = Math.min(shown, levels.length - 1);
+		if (lod)
+			showAll();
+		else
+			show(shown);
+	}
+
+	private synchronized int getFirstAvailable() {
+		int first = 0;
+		while (levels[first] == null)
+			first ++;
+		return first;
+	}
+
+	private synchronized QuadMesh getLevel(int level) {
+		return levels[level];
+	}
+
+	private synchronized void finished(int level, QuadMesh mesh) {
+		levels[level] = mesh;
+		if (lod)
+			showAll();
+		else if (followLatest)
+			show(level);
+	}
+
+	/**
+	 * Shows the level, once the packer thread has packed it
+	 */
+	private synchronized void show(final int level) {
+		shown = level;
+		final QuadMesh mesh = levels[level];
+		final int subdivisions = level - getFirstAvailable();
+		packer.submit(new Runnable() { //runs in order, so the last level asked for is shown
+			public void run() {
+				try {
+					renderer.setMesh(mesh, subdivisions);
+					shown(level);
+				} catch (RuntimeException e) { //too large to pack
+					failed(level, e);
+				} catch (OutOfMemoryError e) {
+					failed(level, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hands all finished levels to the renderer, which picks one each frame
+	 */
+	private synchronized void showAll() {
+		final QuadMesh[] finished = levels.clone();
+		int finest = -1;
+		for (int l = 0;l < finished.length;l ++) {
+			if (undrawable[l])
+				finished[l] = null;
+			else if (finished[l] != null)
+				finest = l;
+		}
+		if (finest < 0) //none can be drawn, the renderer keeps what it has
+			return;
+		final int failedLevel = finest; //the largest one is dropped when they can not be packed
+		packer.submit(new Runnable() {
+			public void run() {
+				try {
+					renderer.setLevels(finished);
+				} catch (RuntimeException e) { //too large to pack
+					failed(failedLevel, e);
+				} catch (OutOfMemoryError e) {
+					failed(failedLevel, e);
+				}
+			}
+		});
+	}
+
+	private synchronized void shown(int level) {
+		drawn = level;
+	}
+
+	/**
+	 * Reports that the renderer could not take the level, it is not offered anymore.
+	 * The renderer keeps drawing what it had, while all levels are drawn the rest of
+	 * them is handed to it again
+	 */
+	private synchronized void failed(int level, Throwable e) {
+		System.out.println("Level " + level + " can not be drawn: " + e);
+		undrawable[level] = true;
+		if (lod)
+			showAll();
+		else if (shown == level)
+			shown = drawn;
+	}
+	
+	private synchronized void toggleLod() {
+		lod = !lod;
+		followLatest = false;
+		if (lod)
+			showAll();
+		else
+			show(shown);
+	}
+
+	private synchronized void step(int delta) {
+		pick(shown + delta);
+	}
+
+	/**
+	 * Shows the level if it is finished
+	 */
+	private synchronized void pick(int level) {
+		followLatest = false;
+		if (level < 0 || level >= levels.length || levels[level] == null || undrawable[level]) {
+			System.out.println("Level " + level + " is not available");
+			return;
+		}
+		if (level != shown || lod)
+			show(level);
+		lod = false;
+	}
+
+	@Override
+	public void keyPressed(KeyEvent e) {
+		if (e.getKeyCode() == KeyEvent.VK_PAGE_UP)
+			step(1);
+		else if (e.getKeyCode() == KeyEvent.VK_PAGE_DOWN)
+			step(-1);
+		else if (e.getKeyCode() >= KeyEvent.VK_0 && e.getKeyCode() <= KeyEvent.VK_9)
+			pick(e.getKeyCode() - KeyEvent.VK_0);
+		else if (e.getKeyCode() == KeyEvent.VK_L)
+			toggleLod();
+	}
+
+	/**
+	 * Creates named daemon threads, so the background work doesn't keep the program running
+	 */
+	private static class DaemonThreads implements ThreadFactory {
+		private String name;
+
+		public DaemonThreads(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
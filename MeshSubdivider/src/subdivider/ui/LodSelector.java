@@ -0,0 +1,136 @@
+package subdivider.ui;
+
+import subdivider.util.MeshTopology;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Picks the coarsest subdivision level that looks the same as the finest one
+ * from where the camera is, so a mesh far away is drawn with far fewer quads.
+ *
+ * Each level has a geometric error, how far it is from the finest level. Going
+ * from level k to k + 1 moves the old vertices from their old positions, and the
+ * edge points from the middle of their edge (face points are exactly the middle
+ * of their face), the largest of those moves is the error added by level k. The
+ * error of a level is the sum of the moves of it and all levels after it. Seen
+ * from the camera, that error covers error * pixelScale / distance pixels, where
+ * distance is from the eye to the closest point of the bounding sphere of the mesh.
+ *
+ * No OpenGL is needed, the Renderer gives the eye position and viewport.
+ */
+public class LodSelector {
+
+	private float[] errors; //error of each level, infinite for levels that are missing
+	private int finest;
+	private float centerX, centerY, centerZ, radius;
+
+	/**
+	 * Calculates the error of every level
+	 *
+	 * @param levels the base mesh followed by each of its subdivided levels, null
+	 * for levels that are not available
+	 */
+	public LodSelector(QuadMesh[] levels) {
+		finest = levels.length - 1;
+		while (levels[finest] == null)
+			finest --;
+
+		errors = new float[finest + 1];
+		for (int l = 0;l < finest;l ++)
+			errors[l] = Float.POSITIVE_INFINITY;
+		errors[finest] = 0;
+		for (int l = finest - 1;l >= 0 && levels[l] != null;l --)
+			errors[l] = errors[l + 1] + getMove(levels[l], levels[l + 1]);
+
+		calculateBounds(levels[finest]);
+	}
+
+	/**
+	 * @param level
+	 * @return how far the level is from the finest one, infinite if it is not available
+	 */
+	public float getError(int level) {
+		return errors[level];
+	}
+
+	/**
+	 * @param viewportHeight in pixels
+	 * @param fieldOfView vertical, in degrees
+	 * @return pixels covered by one unit at a distance of one unit
+	 */
+	public static float getPixelScale(int viewportHeight, float fieldOfView) {
+		return (float) (viewportHeight / (2 * Math.tan(Math.toRadians(fieldOfView) / 2)));
+	}
+
+	/**
+	 * @param eyeX
+	 * @param eyeY
+	 * @param eyeZ
+	 * @param pixelScale see getPixelScale
+	 * @param maxPixels largest error allowed on the screen, in pixels
+	 * @return the coarsest level whose error on the screen is at most maxPixels
+	 */
+	public int select(float eyeX, float eyeY, float eyeZ, float pixelScale, float maxPixels) {
+		float dx = eyeX - centerX, dy = eyeY - centerY, dz = eyeZ - centerZ;
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius;
+		if (distance <= 0) //inside the bounds, only the finest level is close enough
+			return finest;
+
+		for (int l = 0;l < finest;l ++) {
+			if (errors[l] * pixelScale / distance <= maxPixels)
+				return l;
+		}
+		return finest;
+	}
+
+	/**
+	 * @return the largest move of a vertex from the mesh to its subdivided mesh
+	 */
+	private static float getMove(QuadMesh mesh, QuadMesh subdivided) {
+		float max = 0;
+		for (int v = 0;v < mesh.getVertexCount();v ++) //old vertices keep their index
+			max = Math.max(max, getDistance(subdivided, v, mesh.getX(v), mesh.getY(v), mesh.getZ(v)));
+
+		MeshTopology topology = mesh.getTopology();
+		for (long h = 0;h < mesh.getFaceCount() * 4L;h ++) {
+			long twin = topology.getTwin(h);
+			if (twin < h) //once per edge
+				continue;
+			int v1 = mesh.getStartVertex(h);
+			int v2 = mesh.getStartVertex(twin);
+			int e = mesh.getVertexCount() + (int) topology.getEdge(h); //edge points follow the old vertices
+			max = Math.max(max, getDistance(subdivided, e, (mesh.getX(v1) + mesh.getX(v2)) / 2,
+					(mesh.getY(v1) + mesh.getY(v2)) / 2, (mesh.getZ(v1) + mesh.getZ(v2)) / 2));
+		}
+		return max;
+	}
+
+	private static float getDistance(QuadMesh mesh, int v, float x, float y, float z) {
+		float dx = mesh.getX(v) - x, dy = mesh.getY(v) - y, dz = mesh.getZ(v) - z;
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Bounding sphere around the center of the bounding box
+	 */
+	private void calculateBounds(QuadMesh mesh) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int v = 0;v < mesh.getVertexCount();v ++) {
+			minX = Math.min(minX, mesh.getX(v));
+			minY = Math.min(minY, mesh.getY(v));
+			minZ = Math.min(minZ, mesh.getZ(v));
+			maxX = Math.max(maxX, mesh.getX(v));
+			maxY = Math.max(maxY, mesh.getY(v));
+			maxZ = Math.max(maxZ, mesh.getZ(v));
+		}
+		centerX = (minX + maxX) / 2;
+		centerY = (minY + maxY) / 2;
+		centerZ = (minZ + maxZ) / 2;
+		radius = 0;
+		for (int v = 0;v < mesh.getVertexCount();v ++)
+			radius = Math.max(radius, getDistance(mesh, v, centerX, centerY, centerZ));
+	}
+
+}
@@ -0,0 +1,67 @@
+package subdivider.ui;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import subdivider.util.FloatStore;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Packs a mesh into one interleaved buffer that the Renderer uploads to the
+ * graphics card once, instead of sending every vertex again each frame.
+ *
+ * Every corner of every face gets its position, normal and colour (9 floats),
+ * in face order, so the buffer is drawn as GL_QUADS with a single call. The
+ * colours are random per corner, from the same seed every time so the mesh keeps
+ * its colours when it is packed again. Packing needs no OpenGL context.
+ */
+public class MeshPacker {
+
+	//floats per corner, position, normal and colour
+	public static final int FLOATS_PER_VERTEX = 9;
+	//bytes per corner, and of the normal and the colour from its start
+	public static final int STRIDE = FLOATS_PER_VERTEX * 4;
+	public static final int NORMAL_OFFSET = 3 * 4;
+	public static final int COLOR_OFFSET = 6 * 4;
+
+	private static final long COLOR_SEED = 100;
+
+	/**
+	 * @param mesh
+	 * @param normals normal of each vertex (x, y, z per vertex), see QuadSubdivider.calculateNormals
+	 * @return direct buffer in native order holding 4 corners per face, positioned at 0
+	 * @throws IllegalArgumentException if the mesh has too many faces for one buffer
+	 */
+	public static FloatBuffer pack(QuadMesh mesh, FloatStore normals) {
+		long size = mesh.getFaceCount() * 4L * STRIDE;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Mesh has " + mesh.getFaceCount() + " faces, too many to draw");
+
+		FloatBuffer buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		Random rand = new Random(COLOR_SEED);
+		for (int f = 0;f < mesh.getFaceCount();f ++) {
+			for (int i = 0;i < 4;i ++) {
+				int v = mesh.getVertex(f, i);
+				long n = v * 3L;
+				buffer.put(mesh.getX(v)).put(mesh.getY(v)).put(mesh.getZ(v));
+				buffer.put(normals.get(n)).put(normals.get(n + 1)).put(normals.get(n + 2));
+				buffer.put(rand.nextFloat()).put(rand.nextFloat()).put(rand.nextFloat());
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer see pack
+	 * @return amount of corners in the buffer, the vertex count to draw
+	 */
+	public static int getVertexCount(FloatBuffer buffer) {
+		return buffer.limit() / FLOATS_PER_VERTEX;
+	}
+
+}
@@ -0,0 +1,260 @@
+package subdivider.ui;
+
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Skips whole patches of a subdivided mesh before any of their vertices are sent
+ * to the graphics card. A patch is all faces that were subdivided from one face of
+ * an earlier level, they follow each other in the mesh (and so in the packed buffer,
+ * see MeshPacker), so the visible patches are drawn as a few ranges.
+ *
+ * Every patch has a bounding sphere, and a normal cone holding the normals of all
+ * its triangles (a quad is drawn as the triangles 0, 1, 2 and 0, 2, 3). A patch is
+ * skipped if its sphere is outside the view frustum, or if the cone shows every
+ * triangle faces away from the eye, wherever in the sphere it is. Both tests only
+ * skip patches OpenGL would have culled completely.
+ *
+ * No OpenGL is needed, the Renderer gives the camera. The counts of the last pass
+ * are kept to see how much is skipped.
+ */
+public class PatchCuller {
+
+	//faces of a patch are at most 4 ^ MAX_PATCH_DEPTH, so there are enough patches to skip
+	private static final int MAX_PATCH_DEPTH = 3;
+
+	private int patchFaces;
+	private int patchCount;
+	private float[] spheres; //center x, y, z and radius of each patch
+	private float[] cones; //axis x, y, z and half angle of each patch, the angle is PI if nothing can be culled
+
+	//counts of the last pass
+	private int outsideCount;
+	private int backFacingCount;
+	private int visibleCount;
+	private int runCount;
+
+	/**
+	 * @param mesh
+	 * @param subdivisions how many times the mesh was subdivided from the first level that
+	 * is available, patches do not cross the faces of that level
+	 */
+	public PatchCuller(QuadMesh mesh, int subdivisions) {
+		patchFaces = 1 << (2 * Math.min(subdivisions, MAX_PATCH_DEPTH));
+		patchCount = mesh.getFaceCount() / patchFaces;
+		spheres = new float[patchCount * 4];
+		cones = new float[patchCount * 4];
+		for (int p = 0;p < patchCount;p ++) {
+			calculateSphere(mesh, p);
+			calculateCone(mesh, p);
+		}
+	}
+
+	public int getPatchCount() {
+		return patchCount;
+	}
+
+	/**
+	 * @return faces in each patch
+	 */
+	public int getPatchFaces() {
+		return patchFaces;
+	}
+
+	/**
+	 * Finds the patches that can be seen from the camera, which looks at 0, 0, 0 with
+	 * 0, 1, 0 up (like the Renderer)
+	 *
+	 * @param eyeX
+	 * @param eyeY
+	 * @param eyeZ
+	 * @param fieldOfView vertical, in degrees
+	 * @param aspect width divided by height of the viewport
+	 * @param near distance of the near clipping plane
+	 * @param far distance of the far clipping plane
+	 * @param firsts filled with the first face of each range of visible patches, at least getPatchCount long
+	 * @param counts filled with the amount of faces in each range, at least getPatchCount long
+	 * @return the amount of ranges
+	 */
+	public synchronized int cull(float eyeX, float eyeY, float eyeZ, float fieldOfView, float aspect,
+			float near, float far, int[] firsts, int[] counts) {
+		float[] planes = getFrustum(eyeX, eyeY, eyeZ, fieldOfView, aspect, near, far);
+		outsideCount = backFacingCount = visibleCount = runCount = 0;
+		for (int p = 0;p < patchCount;p ++) {
+			if (planes != null && isOutside(planes, p))
+				outsideCount ++;
+			else if (isBackFacing(eyeX, eyeY, eyeZ, p))
+				backFacingCount ++;
+			else {
+				visibleCount ++;
+				if (runCount > 0 && firsts[runCount - 1] + counts[runCount - 1] == p * patchFaces)
+					counts[runCount - 1] += patchFaces; //joins the patch before it
+				else {
+					firsts[runCount] = p * patchFaces;
+					counts[runCount] = patchFaces;
+					runCount ++;
+				}
+			}
+		}
+		return runCount;
+	}
+
+	/**
+	 * @return counts of the last call to cull
+	 */
+	public synchronized String getStatistics() {
+		return "Patches: " + patchCount + " of " + patchFaces + " faces, drawn: " + visibleCount + " in " + runCount
+				+ " ranges, outside the view: " + outsideCount + ", facing away: " + backFacingCount;
+	}
+
+	/**
+	 * @return the 6 planes (x, y, z, d) of the frustum, inside is where x * px + y * py + z * pz + d >= 0,
+	 * or null if there is no up direction because the eye is at or straight above or below 0, 0, 0
+	 */
+	private static float[] getFrustum(float eyeX, float eyeY, float eyeZ, float fieldOfView, float aspect,
+			float near, float far) {
+		float[] forward = normalize(-eyeX, -eyeY, -eyeZ);
+		if (forward == null)
+			return null;
+		float[] right = normalize(-forward[2], 0, forward[0]); //forward x 0, 1, 0
+		if (right == null)
+			return null;
+		float[] up = { right[1] * forward[2] - right[2] * forward[1], right[2] * forward[0] - right[0] * forward[2],
+				right[0] * forward[1] - right[1] * forward[0] };
+		float tanY = (float) Math.tan(Math.toRadians(fieldOfView) / 2);
+		float tanX = tanY * aspect;
+
+		float[] planes = new float[24];
+		float forwardEye = forward[0] * eyeX + forward[1] * eyeY + forward[2] * eyeZ;
+		setPlane(planes, 0, forward[0], forward[1], forward[2], -forwardEye - near);
+		setPlane(planes, 1, -forward[0], -forward[1], -forward[2], forwardEye + far);
+		for (int side = 0;side < 4;side ++) {
+			float[] axis = side < 2 ? right : up;
+			float sign = side % 2 == 0 ? 1 : -1;
+			float tan = side < 2 ? tanX : tanY;
+			float[] normal = normalize(axis[0] * sign + forward[0] * tan, axis[1] * sign + forward[1] * tan,
+					axis[2] * sign + forward[2] * tan);
+			setPlane(planes, side + 2, normal[0], normal[1], normal[2],
+					-(normal[0] * eyeX + normal[1] * eyeY + normal[2] * eyeZ));
+		}
+		return planes;
+	}
+
+	private static void setPlane(float[] planes, int plane, float x, float y, float z, float d) {
+		planes[plane * 4] = x;
+		planes[plane * 4 + 1] = y;
+		planes[plane * 4 + 2] = z;
+		planes[plane * 4 + 3] = d;
+	}
+
+	private boolean isOutside(float[] planes, int p) {
+		for (int i = 0;i < planes.length;i += 4) {
+			float distance = planes[i] * spheres[p * 4] + planes[i + 1] * spheres[p * 4 + 1]
+					+ planes[i + 2] * spheres[p * 4 + 2] + planes[i + 3];
+			if (distance < -spheres[p * 4 + 3])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A point of the sphere is at most asin(radius / distance) away from the direction
+	 * to its center, so every triangle faces away if the axis of the cone is more than
+	 * 90 degrees plus that angle plus the half angle of the cone away from the eye
+	 */
+	private boolean isBackFacing(float eyeX, float eyeY, float eyeZ, int p) {
+		float dx = eyeX - spheres[p * 4], dy = eyeY - spheres[p * 4 + 1], dz = eyeZ - spheres[p * 4 + 2];
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (distance <= spheres[p * 4 + 3])
+			return false;
+		double angle = cones[p * 4 + 3] + Math.asin(spheres[p * 4 + 3] / distance);
+		if (angle >= Math.PI / 2)
+			return false;
+		float cos = (cones[p * 4] * dx + cones[p * 4 + 1] * dy + cones[p * 4 + 2] * dz) / distance;
+		return cos < -Math.sin(angle);
+	}
+
+	/**
+	 * Sphere around the center of the bounding box of the patch
+	 */
+	private void calculateSphere(QuadMesh mesh, int p) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int f = p * patchFaces;f < (p + 1) * patchFaces;f ++) {
+			for (int i = 0;i < 4;i ++) {
+				int v = mesh.getVertex(f, i);
+				minX = Math.min(minX, mesh.getX(v));
+				minY = Math.min(minY, mesh.getY(v));
+				minZ = Math.min(minZ, mesh.getZ(v));
+				maxX = Math.max(maxX, mesh.getX(v));
+				maxY = Math.max(maxY, mesh.getY(v));
+				maxZ = Math.max(maxZ, mesh.getZ(v));
+			}
+		}
+		float x = (minX + maxX) / 2, y = (minY + maxY) / 2, z = (minZ + maxZ) / 2;
+		float radius = 0;
+		for (int f = p * patchFaces;f < (p + 1) * patchFaces;f ++) {
+			for (int i = 0;i < 4;i ++) {
+				int v = mesh.getVertex(f, i);
+				float dx = mesh.getX(v) - x, dy = mesh.getY(v) - y, dz = mesh.getZ(v) - z;
+				radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+			}
+		}
+		spheres[p * 4] = x;
+		spheres[p * 4 + 1] = y;
+		spheres[p * 4 + 2] = z;
+		spheres[p * 4 + 3] = radius * (1 + 1e-5f) + 1e-6f; //rounding of the floats never culls a visible patch
+	}
+
+	/**
+	 * Cone around the average triangle normal, wide enough to hold every triangle normal
+	 */
+	private void calculateCone(QuadMesh mesh, int p) {
+		float[] normals = new float[patchFaces * 6];
+		float sumX = 0, sumY = 0, sumZ = 0;
+		for (int f = p * patchFaces;f < (p + 1) * patchFaces;f ++) {
+			for (int t = 0;t < 2;t ++) {
+				float[] normal = getTriangleNormal(mesh, mesh.getVertex(f, 0), mesh.getVertex(f, t + 1),
+						mesh.getVertex(f, t + 2));
+				if (normal == null) //no area, never drawn
+					continue;
+				System.arraycopy(normal, 0, normals, ((f - p * patchFaces) * 2 + t) * 3, 3);
+				sumX += normal[0];
+				sumY += normal[1];
+				sumZ += normal[2];
+			}
+		}
+
+		float[] axis = normalize(sumX, sumY, sumZ);
+		float angle = (float) Math.PI;
+		if (axis != null) {
+			float minCos = 1;
+			for (int i = 0;i < normals.length;i += 3) {
+				if (normals[i] != 0 || normals[i + 1] != 0 || normals[i + 2] != 0)
+					minCos = Math.min(minCos, axis[0] * normals[i] + axis[1] * normals[i + 1] + axis[2] * normals[i + 2]);
+			}
+			angle = (float) Math.acos(Math.max(-1, minCos)) + 1e-4f; //rounding of the floats
+		} else
+			axis = new float[3];
+		System.arraycopy(axis, 0, cones, p * 4, 3);
+		cones[p * 4 + 3] = angle;
+	}
+
+	private static float[] getTriangleNormal(QuadMesh mesh, int v0, int v1, int v2) {
+		float ax = mesh.getX(v1) - mesh.getX(v0), ay = mesh.getY(v1) - mesh.getY(v0), az = mesh.getZ(v1) - mesh.getZ(v0);
+		float bx = mesh.getX(v2) - mesh.getX(v0), by = mesh.getY(v2) - mesh.getY(v0), bz = mesh.getZ(v2) - mesh.getZ(v0);
+		return normalize(ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx);
+	}
+
+	/**
+	 * @return the unit vector, or null if it has no length
+	 */
+	private static float[] normalize(float x, float y, float z) {
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		if (length == 0 || Float.isNaN(length))
+			return null;
+		return new float[] { x / length, y / length, z / length };
+	}
+
+}
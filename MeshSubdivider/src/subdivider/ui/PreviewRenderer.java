@@ -0,0 +1,376 @@
+package subdivider.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import subdivider.QuadSubdivider;
+import subdivider.io.MeshStreams;
+import subdivider.util.FloatStore;
+import subdivider.util.Parallel;
+import subdivider.util.QuadMesh;
+
+/**
+ * @author Nicholas
+ *
+ * Draws a mesh to an image on the CPU, without a display or OpenGL, so previews can
+ * be made on machines without graphics cards. The image looks like the first frame
+ * of the viewer: the same projection and colours (see Renderer and MeshPacker), lit
+ * like OpenGL lights it with the light of the Renderer (a white point light at
+ * 0, 100, 100 from the eye, plus the default ambient light of 0.2), and smooth
+ * shaded with back faces culled. Each quad is drawn as the triangles 0, 1, 2 and
+ * 0, 2, 3. Triangles reaching in front of the near plane are skipped, instead of
+ * being clipped.
+ *
+ * Drawing is done in parallel in 3 passes: the vertices are projected and lit, the
+ * faces are sorted into the tiles of the image they touch, and then the tiles are
+ * filled, each by one thread with its own part of the depth buffer. Faces are drawn
+ * in mesh order in every tile, so the image is the same for any amount of threads.
+ */
+public class PreviewRenderer {
+
+	private static final int TILE_SIZE = 64;
+
+	//light of the Renderer, in eye space (see EffectsManager)
+	private static final float LIGHT_X = 0, LIGHT_Y = 100, LIGHT_Z = 100;
+	//default ambient light of OpenGL, the light itself has none
+	private static final float AMBIENT = 0.2f;
+
+	//java.util.Random, to make the colours of MeshPacker for any corner without going through the ones before it
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+	private static final long[] JUMP_MULTIPLIERS = new long[48]; //2^k steps at once
+	private static final long[] JUMP_ADDENDS = new long[48];
+	static {
+		JUMP_MULTIPLIERS[0] = MULTIPLIER;
+		JUMP_ADDENDS[0] = ADDEND;
+		for (int k = 1;k < 48;k ++) {
+			JUMP_MULTIPLIERS[k] = (JUMP_MULTIPLIERS[k - 1] * JUMP_MULTIPLIERS[k - 1]) & MASK;
+			JUMP_ADDENDS[k] = (JUMP_ADDENDS[k - 1] * JUMP_MULTIPLIERS[k - 1] + JUMP_ADDENDS[k - 1]) & MASK;
+		}
+	}
+	private static final long COLOR_SEED = 100; //same as MeshPacker
+
+	private int width;
+	private int height;
+
+	//orbit of the camera around 0, 0, 0, same as the Animator
+	private float cameraDistance = 15;
+	private float viewRotationVertical = (float) Math.PI / 4;
+	private float viewRotationHorizontal;
+
+	/**
+	 * @param width of the image in pixels
+	 * @param height of the image in pixels
+	 */
+	public PreviewRenderer(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Places the camera like the Animator, looking at 0, 0, 0, the default is where
+	 * the viewer starts
+	 *
+	 * @param distance from 0, 0, 0
+	 * @param vertical angle from the y axis, in radians
+	 * @param horizontal angle around the y axis, in radians
+	 */
+	public void setCamera(float distance, float vertical, float horizontal) {
+		cameraDistance = distance;
+		viewRotationVertical = vertical;
+		viewRotationHorizontal = horizontal;
+	}
+
+	/**
+	 * @param mesh
+	 * @return the image of the mesh
+	 */
+	public BufferedImage render(final QuadMesh mesh) {
+		final Projection projection = project(mesh);
+
+		//sort the faces into the tiles
+		final int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		final int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		final int chunks = Parallel.getChunkCount(mesh.getFaceCount());
+		final Bin[][] bins = new Bin[chunks][tilesX * tilesY];
+		Parallel.forChunks(mesh.getFaceCount(), chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int f = first;f < last;f ++)
+					bin(mesh, projection, f, tilesX, bins[chunk]);
+			}
+		});
+
+		//fill the tiles
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final int tiles = tilesX * tilesY;
+		Parallel.forChunks(tiles, Parallel.getChunkCount(tiles), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				float[] depth = new float[TILE_SIZE * TILE_SIZE];
+				int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+				for (int tile = first;tile < last;tile ++) {
+					int x0 = (tile % tilesX) * TILE_SIZE, y0 = (tile / tilesX) * TILE_SIZE;
+					int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+					Arrays.fill(depth, 1); //far plane
+					Arrays.fill(pixels, 0); //black, like the viewer
+					for (int i = 0;i < bins.length;i ++) { //in face order
+						Bin bin = bins[i][tile];
+						for (int j = 0;bin != null && j < bin.count;j ++)
+							drawFace(mesh, projection, bin.faces[j], x0, y0, x1, y1, depth, pixels);
+					}
+					for (int y = y0;y < y1;y ++) //window rows go up, image rows go down
+						image.setRGB(x0, height - 1 - y, x1 - x0, 1, pixels, (y - y0) * TILE_SIZE, TILE_SIZE);
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Writes the image as a PNG file. Note that if the file already exists, this
+	 * will print an error
+	 *
+	 * @param image
+	 * @param file
+	 * @return false if it could not be written, the error was printed
+	 */
+	public static boolean write(BufferedImage image, File file) {
+		OutputStream out = null;
+		try {
+			out = MeshStreams.openOutput(file);
+			if (out == null) //file exists
+				return false;
+			ImageIO.write(image, "png", out);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not write to file: " + file);
+			return false;
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				System.out.println("Could not write to file: " + file);
+			}
+		}
+	}
+
+	/**
+	 * Window position, depth and light of every vertex
+	 */
+	private static class Projection {
+		float[] x, y, z; //window x and y in pixels, z from -1 at the near plane to 1 at the far plane
+		float[] inverseW; //1 / distance in front of the eye, 0 if the vertex is in front of the near plane
+		float[] light; //factor of the vertex colour
+	}
+
+	/**
+	 * Same transformations as gluLookAt and gluPerspective in the Renderer, and
+	 * the OpenGL lighting equation for its light
+	 */
+	private Projection project(final QuadMesh mesh) {
+		final float eyeX = cameraDistance * (float) (Math.sin(viewRotationVertical) * Math.cos(viewRotationHorizontal));
+		final float eyeY = cameraDistance * (float) Math.cos(viewRotationVertical);
+		final float eyeZ = cameraDistance * (float) (Math.sin(viewRotationVertical) * Math.sin(viewRotationHorizontal));
+		final float[] forward = normalize(-eyeX, -eyeY, -eyeZ);
+		float[] side = normalize(-forward[2], 0, forward[0]); //forward x 0, 1, 0
+		if (side[0] != side[0]) //straight above or below, any side will do
+			side = new float[] { 1, 0, 0 };
+		final float[] right = side;
+		final float[] up = { right[1] * forward[2] - right[2] * forward[1],
+				right[2] * forward[0] - right[0] * forward[2], right[0] * forward[1] - right[1] * forward[0] };
+
+		final float focal = (float) (1 / Math.tan(Math.toRadians(Renderer.FIELD_OF_VIEW) / 2));
+		final float aspect = (float) width / height;
+		final float depthScale = (Renderer.FAR + Renderer.NEAR) / (Renderer.FAR - Renderer.NEAR);
+		final float depthOffset = 2 * Renderer.FAR * Renderer.NEAR / (Renderer.FAR - Renderer.NEAR);
+		final FloatStore normals = QuadSubdivider.calculateNormals(mesh);
+
+		final Projection projection = new Projection();
+		int n = mesh.getVertexCount();
+		projection.x = new float[n];
+		projection.y = new float[n];
+		projection.z = new float[n];
+		projection.inverseW = new float[n];
+		projection.light = new float[n];
+		Parallel.forChunks(n, Parallel.getChunkCount(n), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int v = first;v < last;v ++) {
+					float px = mesh.getX(v) - eyeX, py = mesh.getY(v) - eyeY, pz = mesh.getZ(v) - eyeZ;
+					float x = right[0] * px + right[1] * py + right[2] * pz; //eye space
+					float y = up[0] * px + up[1] * py + up[2] * pz;
+					float distance = forward[0] * px + forward[1] * py + forward[2] * pz; //-z in eye space
+					if (distance < Renderer.NEAR)
+						continue; //inverseW stays 0
+					projection.inverseW[v] = 1 / distance;
+					projection.x[v] = (x * focal / aspect / distance + 1) / 2 * width;
+					projection.y[v] = (y * focal / distance + 1) / 2 * height;
+					projection.z[v] = (depthScale * distance - depthOffset) / distance;
+
+					float nx = normals.get(v * 3L), ny = normals.get(v * 3L + 1), nz = normals.get(v * 3L + 2);
+					float ex = right[0] * nx + right[1] * ny + right[2] * nz;
+					float ey = up[0] * nx + up[1] * ny + up[2] * nz;
+					float ez = -(forward[0] * nx + forward[1] * ny + forward[2] * nz);
+					float[] toLight = normalize(LIGHT_X - x, LIGHT_Y - y, LIGHT_Z + distance);
+					float diffuse = ex * toLight[0] + ey * toLight[1] + ez * toLight[2];
+					projection.light[v] = AMBIENT + Math.max(0, diffuse);
+				}
+			}
+		});
+		return projection;
+	}
+
+	/**
+	 * Adds the face to the bins of the tiles its bounds touch, unless both its triangles
+	 * are skipped
+	 */
+	private void bin(QuadMesh mesh, Projection projection, int f, int tilesX, Bin[] bins) {
+		int v0 = mesh.getVertex(f, 0), v1 = mesh.getVertex(f, 1), v2 = mesh.getVertex(f, 2), v3 = mesh.getVertex(f, 3);
+		if (!isDrawn(projection, v0, v1, v2) && !isDrawn(projection, v0, v2, v3))
+			return;
+
+		float minX = Math.min(Math.min(projection.x[v0], projection.x[v1]), Math.min(projection.x[v2], projection.x[v3]));
+		float maxX = Math.max(Math.max(projection.x[v0], projection.x[v1]), Math.max(projection.x[v2], projection.x[v3]));
+		float minY = Math.min(Math.min(projection.y[v0], projection.y[v1]), Math.min(projection.y[v2], projection.y[v3]));
+		float maxY = Math.max(Math.max(projection.y[v0], projection.y[v1]), Math.max(projection.y[v2], projection.y[v3]));
+		int tileX0 = (int) Math.max(0, Math.floor(minX / TILE_SIZE));
+		int tileX1 = (int) Math.min(tilesX - 1, Math.floor(maxX / TILE_SIZE));
+		int tileY0 = (int) Math.max(0, Math.floor(minY / TILE_SIZE));
+		int tileY1 = (int) Math.min(bins.length / tilesX - 1, Math.floor(maxY / TILE_SIZE));
+		for (int ty = tileY0;ty <= tileY1;ty ++) {
+			for (int tx = tileX0;tx <= tileX1;tx ++) {
+				if (bins[ty * tilesX + tx] == null)
+					bins[ty * tilesX + tx] = new Bin();
+				bins[ty * tilesX + tx].add(f);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the triangle is behind the near plane and faces the eye
+	 */
+	private static boolean isDrawn(Projection projection, int v0, int v1, int v2) {
+		if (projection.inverseW[v0] == 0 || projection.inverseW[v1] == 0 || projection.inverseW[v2] == 0)
+			return false;
+		return getArea(projection, v0, v1, v2) > 0; //counter clockwise in the window
+	}
+
+	private static float getArea(Projection projection, int v0, int v1, int v2) {
+		return (projection.x[v1] - projection.x[v0]) * (projection.y[v2] - projection.y[v0])
+				- (projection.x[v2] - projection.x[v0]) * (projection.y[v1] - projection.y[v0]);
+	}
+
+	private void drawFace(QuadMesh mesh, Projection projection, int f, int x0, int y0, int x1, int y1,
+			float[] depth, int[] pixels) {
+		float[] colors = new float[12];
+		for (int i = 0;i < 4;i ++) {
+			getCornerColor(f, i, colors);
+			for (int k = 0;k < 3;k ++) //lit per vertex, like OpenGL
+				colors[i * 3 + k] = Math.min(1, colors[i * 3 + k] * projection.light[mesh.getVertex(f, i)]);
+		}
+		for (int t = 1;t < 3;t ++)
+			drawTriangle(projection, mesh.getVertex(f, 0), mesh.getVertex(f, t), mesh.getVertex(f, t + 1),
+					colors, t, x0, y0, x1, y1, depth, pixels);
+	}
+
+	/**
+	 * Fills the pixels of the triangle of corners 0, t and t + 1 inside the tile, whose
+	 * centers are inside the triangle (or on its top or left edges)
+	 */
+	private static void drawTriangle(Projection projection, int a, int b, int c, float[] colors, int t,
+			int x0, int y0, int x1, int y1, float[] depth, int[] pixels) {
+		if (!isDrawn(projection, a, b, c))
+			return;
+		float ax = projection.x[a], ay = projection.y[a];
+		float bx = projection.x[b], by = projection.y[b];
+		float cx = projection.x[c], cy = projection.y[c];
+		float area = getArea(projection, a, b, c);
+		int minX = Math.max(x0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+		int maxX = Math.min(x1 - 1, (int) Math.ceil(Math.max(ax, Math.max(bx, cx))));
+		int minY = Math.max(y0, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+		int maxY = Math.min(y1 - 1, (int) Math.ceil(Math.max(ay, Math.max(by, cy))));
+
+		//pixels on an edge belong to the triangle if it is a top or left edge
+		boolean topLeftA = isTopLeft(bx, by, cx, cy), topLeftB = isTopLeft(cx, cy, ax, ay), topLeftC = isTopLeft(ax, ay, bx, by);
+		float za = projection.z[a], zb = projection.z[b], zc = projection.z[c];
+		float wa = projection.inverseW[a], wb = projection.inverseW[b], wc = projection.inverseW[c];
+		int ca = 0, cb = t * 3, cc = (t + 1) * 3; //corner colours
+		for (int y = minY;y <= maxY;y ++) {
+			float sy = y + 0.5f;
+			for (int x = minX;x <= maxX;x ++) {
+				float sx = x + 0.5f;
+				//weight of each corner, the area of the triangle of the pixel and the opposite edge
+				float weightA = (cx - bx) * (sy - by) - (cy - by) * (sx - bx);
+				float weightB = (ax - cx) * (sy - cy) - (ay - cy) * (sx - cx);
+				float weightC = (bx - ax) * (sy - ay) - (by - ay) * (sx - ax);
+				if (weightA < 0 || weightB < 0 || weightC < 0 || (weightA == 0 && !topLeftA)
+						|| (weightB == 0 && !topLeftB) || (weightC == 0 && !topLeftC))
+					continue;
+
+				float z = (weightA * za + weightB * zb + weightC * zc) / area;
+				int pixel = (y - y0) * TILE_SIZE + (x - x0);
+				if (z >= depth[pixel] || z < -1)
+					continue;
+				depth[pixel] = z;
+
+				//colours change linearly on the mesh, not on the window
+				float pa = weightA * wa, pb = weightB * wb, pc = weightC * wc;
+				float sum = pa + pb + pc;
+				int rgb = 0;
+				for (int k = 0;k < 3;k ++) {
+					float value = (pa * colors[ca + k] + pb * colors[cb + k] + pc * colors[cc + k]) / sum;
+					rgb = (rgb << 8) | Math.round(value * 255);
+				}
+				pixels[pixel] = rgb;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the edge from 1 to 2 of a counter clockwise triangle is on its top or left side
+	 */
+	private static boolean isTopLeft(float x1, float y1, float x2, float y2) {
+		return y2 < y1 || (y2 == y1 && x2 < x1);
+	}
+
+	/**
+	 * Puts the colour MeshPacker gives the corner into colors, at corner * 3
+	 */
+	private static void getCornerColor(int f, int corner, float[] colors) {
+		long seed = (COLOR_SEED ^ MULTIPLIER) & MASK; //as new Random(COLOR_SEED)
+		long steps = (f * 4L + corner) * 3; //3 floats for each corner before it
+		for (int k = 0;steps != 0;k ++, steps >>>= 1) {
+			if ((steps & 1) != 0)
+				seed = (seed * JUMP_MULTIPLIERS[k] + JUMP_ADDENDS[k]) & MASK;
+		}
+		for (int i = 0;i < 3;i ++) { //as Random.nextFloat
+			seed = (seed * MULTIPLIER + ADDEND) & MASK;
+			colors[corner * 3 + i] = (int) (seed >>> 24) / (float) (1 << 24);
+		}
+	}
+
+	private static float[] normalize(float x, float y, float z) {
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		return new float[] { x / length, y / length, z / length };
+	}
+
+	/**
+	 * Faces touching one tile, found by one chunk
+	 */
+	private static class Bin {
+		int[] faces = new int[16];
+		int count;
+
+		void add(int f) {
+			if (count == faces.length)
+				faces = Arrays.copyOf(faces, count * 2);
+			faces[count ++] = f;
+		}
+	}
+
+}
@@ -3,18 +3,19 @@ package subdivider.ui;
 
 
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Random;
+import java.nio.FloatBuffer;
 
+import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLEventListener;
 import javax.media.opengl.glu.GLU;
 
+import com.jogamp.opengl.util.gl2.GLUT;
+
 import subdivider.QuadSubdivider;
 import subdivider.ui.util.EffectsManager;
-import subdivider.util.QuadFace;
+import subdivider.util.QuadMesh;
 import subdivider.util.math.Vector3f;
 
 
@@ -33,21 +34,63 @@ import subdivider.util.math.Vector3f;
  * NOTE: The light source is always looking with the camera (ie is not transformed) so you will always see
  * a lit side, this was intentional
  *
+ * The mesh is packed once (see MeshPacker) and uploaded to a vertex buffer on the graphics
+ * card the first time it is drawn, after that every frame draws it with one call
+ *
+ * Instead of one mesh, several subdivision levels can be kept on the graphics card (see
+ * setLevels), then every frame draws the coarsest level that differs less than a pixel 
+ * from the finest one (see LodSelector). A level that is drawn already is not packed or
+ * uploaded again when the levels are replaced, the new ones are uploaded one per frame
+ * while the old ones are still drawn, and only the graphics card keeps them after that
+ *
+ * Before drawing, the patches of the mesh that are outside the view or facing away
+ * are skipped on the CPU (see PatchCuller), only the rest is sent to the graphics card
+ *
+ * The time and vertex count of every frame are kept (see FrameStats), and can be
+ * drawn over the mesh
+ *
  */
 public class Renderer implements GLEventListener {
     
+    //projection, PreviewRenderer draws with the same one
+    static final float FIELD_OF_VIEW = 45.0f;
+    static final float NEAR = 1;
+    static final float FAR = 400;
+    //largest difference to the finest level a coarser level may have on the screen
+    private static final float MAX_ERROR_PIXELS = 1;
+    
+    //frames are drawn at most at the refresh rate, 60 Hz
+    private static final long FRAME_BUDGET = 1000000000L / 60;
+    private static final int STATS_WINDOW = 600; //frames
+    
     private GLU glu;
+    private GLUT glut;
+    private FrameStats stats;
+    private FrameTimer timer; //adds the frames to the stats once the graphics card is done
+    private volatile boolean overlay; //true to draw the statistics
     
-    private ArrayList<QuadFace> mesh;
-    private HashMap<Vector3f, Vector3f> normals;
+    private Level[] levels; //to draw, null for levels that are not drawn
+    private LodSelector lod; //null if there is only one level
+    //only changed on the OpenGL thread
+    private volatile Level[] uploadingLevels; //levels being uploaded, null if none
+    private volatile Level[] drawnLevels; //levels in the vertex buffers, null until the first upload
+    private LodSelector drawnLod;
+    private volatile PatchCuller drawnCuller; //of the level drawn last
+    private int[] firsts; //first vertex and vertex count of each range of visible patches
+    private int[] counts;
+    private int viewportHeight;
+    private float aspect;
     
     private Vector3f eyeLocation;
+    private FrameScheduler scheduler; //null until an Animator drives this renderer
 
-    public Renderer(ArrayList<QuadFace> mesh){
+    public Renderer(QuadMesh mesh){
     	eyeLocation = new Vector3f();
     	glu = new GLU();
-    	this.mesh = mesh;
-    	normals = QuadSubdivider.calculateNormals(mesh);
+    	glut = new GLUT();
+    	stats = new FrameStats(STATS_WINDOW, FRAME_BUDGET);
+    	timer = new FrameTimer(stats);
+    	setMesh(mesh, 0);
    }
     
     /**
@@ -55,31 +98,141 @@ public class Renderer implements GLEventListener {
      */
     public void display(GLAutoDrawable gLDrawable) {
         final GL2 gl = gLDrawable.getGL().getGL2();  
+        timer.begin(gl);
         gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT); //clear buffers
         gl.glMatrixMode(GL2.GL_MODELVIEW);
         gl.glLoadIdentity();	
 
         EffectsManager.getManager().updateLights(gl);
+        if (EffectsManager.getManager().updateTextures(gl)) //uploads textures a part per frame
+        	requestFrame();
         //eye positition is set by Animator class, it looks at 0, 0, 0
         glu.gluLookAt(eyeLocation.x, eyeLocation.y, eyeLocation.z, 0, 0, 0, 0, 1, 0);
         
-        gl.glPushMatrix();
-        gl.glBegin(GL2.GL_QUADS);
-        
-        Random rand = new Random(100);
-        
-        for (QuadFace f : mesh) {
-        	for (Vector3f v : f.getVertices()) {
-        		Vector3f norm = normals.get(v);
-        		gl.glColor3f(rand.nextFloat(), rand.nextFloat(), rand.nextFloat());
-        		gl.glNormal3f(norm.x, norm.y, norm.z);
-        		gl.glVertex3f(v.x, v.y, v.z);
-        	}
+        upload(gl);
+        if (drawnLevels == null) { //the first levels are still uploading
+        	timer.end(gl, 0);
+        	gl.glFlush();
+        	return;
+        }
+        int level = 0;
+        if (drawnLod != null)
+        	level = drawnLod.select(eyeLocation.x, eyeLocation.y, eyeLocation.z, 
+        			LodSelector.getPixelScale(getViewportHeight(), FIELD_OF_VIEW), MAX_ERROR_PIXELS);
+        PatchCuller culler = drawnLevels[level].culler;
+        int ranges = culler.cull(eyeLocation.x, eyeLocation.y, eyeLocation.z, FIELD_OF_VIEW, getAspect(), 
+        		NEAR, FAR, firsts, counts);
+        long vertices = 0;
+        for (int i = 0;i < ranges;i ++) { //faces to vertices
+        	firsts[i] *= 4;
+        	counts[i] *= 4;
+        	vertices += counts[i];
         }
-        gl.glEnd();
+        drawnCuller = culler;
+        
+        gl.glPushMatrix();
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, drawnLevels[level].buffer);
+        gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+        gl.glVertexPointer(3, GL.GL_FLOAT, MeshPacker.STRIDE, 0);
+        gl.glNormalPointer(GL.GL_FLOAT, MeshPacker.STRIDE, MeshPacker.NORMAL_OFFSET);
+        gl.glColorPointer(3, GL.GL_FLOAT, MeshPacker.STRIDE, MeshPacker.COLOR_OFFSET);
+        gl.glMultiDrawArrays(GL2.GL_QUADS, firsts, 0, counts, 0, ranges);
+        gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+        gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
         gl.glPopMatrix();
+        timer.end(gl, vertices);
+        
+        if (overlay)
+        	drawOverlay(gl);
         gl.glFlush();    
     }
+    
+    /**
+     * Draws the frame statistics in the top left corner
+     */
+    private void drawOverlay(GL2 gl) {
+    	gl.glDisable(GL2.GL_LIGHTING);
+    	gl.glDisable(GL2.GL_DEPTH_TEST);
+    	gl.glColor3f(1, 1, 1);
+    	String[] lines = stats.getSummary();
+    	for (int i = 0;i < lines.length;i ++) {
+    		gl.glWindowPos2i(10, getViewportHeight() - 20 - i * 16);
+    		glut.glutBitmapString(GLUT.BITMAP_HELVETICA_12, lines[i]);
+    	}
+    	gl.glEnable(GL2.GL_DEPTH_TEST);
+    	gl.glEnable(GL2.GL_LIGHTING);
+    }
+    
+    /**
+     * Copies the next packed level that is not on the graphics card yet to a vertex buffer,
+     * once all levels are there they are drawn instead of the old ones
+     */
+    private void upload(GL2 gl) {
+    	Level[] pending;
+    	LodSelector pendingLod;
+    	synchronized (this) { //the levels may be replaced by setLevels while drawing
+    		pending = levels;
+    		pendingLod = lod;
+    	}
+    	if (pending == drawnLevels)
+    		return;
+    	if (pending != uploadingLevels) { //replaced again before they were drawn
+    		if (uploadingLevels != null)
+    			release(gl, uploadingLevels, pending, drawnLevels);
+    		uploadingLevels = pending;
+    	}
+    	
+    	boolean uploaded = false;
+    	for (Level level : pending) {
+    		if (level == null || level.buffer != 0)
+    			continue;
+    		if (uploaded) { //the next one in the next frame
+    			requestFrame();
+    			return;
+    		}
+    		level.upload(gl);
+    		uploaded = true;
+    	}
+    	
+    	if (drawnLevels != null)
+    		release(gl, drawnLevels, pending, null);
+    	drawnLevels = pending;
+    	drawnLod = pendingLod;
+    	uploadingLevels = null;
+    	int patches = 0;
+    	for (Level level : drawnLevels) {
+    		if (level != null)
+    			patches = Math.max(patches, level.culler.getPatchCount());
+    	}
+    	firsts = new int[patches];
+    	counts = new int[patches];
+    }
+    
+    /**
+     * Deletes the vertex buffers of the levels that are in neither of the others
+     */
+    private static void release(GL2 gl, Level[] levels, Level[] keep, Level[] alsoKeep) {
+    	for (Level level : levels) {
+    		if (level != null && level.buffer != 0 && indexOf(keep, level) < 0 && indexOf(alsoKeep, level) < 0) {
+    			gl.glDeleteBuffers(1, new int[] { level.buffer }, 0);
+    			level.buffer = 0;
+    		}
+    	}
+    }
+    
+    private static int indexOf(Level[] levels, Level level) {
+    	if (levels != null) {
+    		for (int i = 0;i < levels.length;i ++) {
+    			if (levels[i] == level)
+    				return i;
+    		}
+    	}
+    	return -1;
+    }
  
     public void displayChanged(GLAutoDrawable gLDrawable, boolean modeChanged, boolean deviceChanged) {
     }
@@ -95,6 +248,7 @@ public class Renderer implements GLEventListener {
         gl.setSwapInterval(1); // enable v-synch @ 60fps
         
         gl.glEnable(GL2.GL_CULL_FACE);
+        timer.init(gl);
         
         gl.glColorMaterial (GL2.GL_FRONT_AND_BACK, GL2.GL_AMBIENT_AND_DIFFUSE);
         gl.glEnable (GL2.GL_COLOR_MATERIAL);
@@ -111,13 +265,177 @@ public class Renderer implements GLEventListener {
         gl.glViewport(0, 0, width, height);
         gl.glMatrixMode(GL2.GL_PROJECTION);
         gl.glLoadIdentity();
-        glu.gluPerspective(45.0f, (float) width / (float) height, 1f, 400);
+        glu.gluPerspective(FIELD_OF_VIEW, (float) width / (float) height, NEAR, FAR);
+        synchronized (this) {
+        	viewportHeight = height;
+        	aspect = (float) width / (float) height;
+        }
     }
  
-	public void dispose(GLAutoDrawable arg0) { }
+	public void dispose(GLAutoDrawable gLDrawable) {
+		//upload again if a new context is created
+		GL2 gl = gLDrawable.getGL().getGL2();
+		if (drawnLevels != null)
+			release(gl, drawnLevels, null, null);
+		if (uploadingLevels != null)
+			release(gl, uploadingLevels, null, null);
+		drawnLevels = uploadingLevels = null;
+		drawnLod = null;
+		timer.dispose(gl);
+	}
 
+	private synchronized int getViewportHeight() {
+		return viewportHeight;
+	}
+	
+	private synchronized float getAspect() {
+		return aspect;
+	}
+	
+	public FrameStats getFrameStats() {
+		return stats;
+	}
+	
+	public boolean isOverlay() {
+		return overlay;
+	}
+	
+	/**
+	 * @param overlay true to draw the frame statistics over the mesh, from the next frame on
+	 */
+	public void setOverlay(boolean overlay) {
+		this.overlay = overlay;
+	}
+	
+	/**
+	 * @return how many patches the last frame skipped, see PatchCuller
+	 */
+	public String getCullingStatistics() {
+		PatchCuller culler = drawnCuller;
+		return culler != null ? culler.getStatistics() : "Nothing drawn yet";
+	}
+	
 	public void setEyePosition(float x, float y, float z) {
 		eyeLocation.set(x, y, z);
 	}
 	
-}
+	/**
+	 * Replaces the mesh that is drawn, from the next frame on. The mesh is packed 
+	 * here, unless it is drawn already, the upload happens on the OpenGL thread
+	 * 
+	 * @param mesh
+	 * @param subdivisions how many times the mesh was subdivided from the first level that 
+	 * is available, see PatchCuller
+	 * @throws IllegalArgumentException if the mesh is too large to pack, see MeshPacker
+	 */
+	public void setMesh(QuadMesh mesh, int subdivisions) {
+		replace(new Level[] { getLevel(mesh, subdivisions) }, null);
+	}
+	
+	/**
+	 * Replaces the mesh that is drawn by several of its levels, from the next frame 
+	 * on every frame draws the level that is detailed enough for the distance. Only
+	 * the levels that are not drawn already are packed here, the upload happens on
+	 * the OpenGL thread
+	 * 
+	 * @param levels the base mesh followed by each of its subdivided levels, null for
+	 * levels that are not available
+	 * @throws IllegalArgumentException if a level is too large to pack, see MeshPacker
+	 */
+	public void setLevels(QuadMesh[] levels) {
+		Level[] packed = new Level[levels.length];
+		int first = -1; //first available level
+		for (int i = 0;i < levels.length;i ++) {
+			if (levels[i] == null)
+				continue;
+			if (first < 0)
+				first = i;
+			packed[i] = getLevel(levels[i], i - first);
+		}
+		replace(packed, new LodSelector(levels));
+	}
+	
+	/**
+	 * @return the level that is drawn (or being uploaded) already, or the mesh packed
+	 */
+	private Level getLevel(QuadMesh mesh, int subdivisions) {
+		Level[] latest;
+		synchronized (this) {
+			latest = levels;
+		}
+		for (Level[] levels : new Level[][] { latest, uploadingLevels, drawnLevels }) {
+			if (levels == null)
+				continue;
+			for (Level level : levels) {
+				if (level != null && level.mesh == mesh && level.subdivisions == subdivisions)
+					return level;
+			}
+		}
+		return new Level(mesh, subdivisions);
+	}
+	
+	private void replace(Level[] levels, LodSelector lod) {
+		synchronized (this) {
+			this.levels = levels;
+			this.lod = lod;
+		}
+		requestFrame();
+	}
+	
+	/**
+	 * @param scheduler asked for a frame whenever the mesh is replaced, or a texture is ready to upload
+	 */
+	public synchronized void setFrameScheduler(FrameScheduler scheduler) {
+		this.scheduler = scheduler;
+		EffectsManager.getManager().setDecodeListener(new Runnable() { //uploads decoded textures
+			public void run() {
+				requestFrame();
+			}
+		});
+	}
+	
+	private void requestFrame() {
+		FrameScheduler scheduler;
+		synchronized (this) {
+			scheduler = this.scheduler;
+		}
+		if (scheduler != null)
+			scheduler.requestFrame();
+	}
+	
+	/**
+	 * 
+	 * @author Nicholas
+	 *
+	 * One level of the mesh, packed until it is uploaded
+	 */
+	private static class Level {
+		
+		final QuadMesh mesh;
+		final int subdivisions;
+		final PatchCuller culler;
+		FloatBuffer packed; //null once only the graphics card keeps it
+		int buffer; //vertex buffer on the graphics card, 0 until uploaded
+		
+		Level(QuadMesh mesh, int subdivisions) {
+			this.mesh = mesh;
+			this.subdivisions = subdivisions;
+			packed = MeshPacker.pack(mesh, QuadSubdivider.calculateNormals(mesh));
+			culler = new PatchCuller(mesh, subdivisions);
+		}
+		
+		void upload(GL2 gl) {
+			if (packed == null) //uploaded before, to a context that is gone
+				packed = MeshPacker.pack(mesh, QuadSubdivider.calculateNormals(mesh));
+			int[] names = new int[1];
+			gl.glGenBuffers(1, names, 0);
+			buffer = names[0];
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+			gl.glBufferData(GL.GL_ARRAY_BUFFER, packed.limit() * 4L, packed.limit() > 0 ? packed : null, GL.GL_STATIC_DRAW);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			packed = null;
+		}
+		
+	}
+	
+}
\ No newline at end of file
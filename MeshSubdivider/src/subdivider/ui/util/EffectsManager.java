@@ -1,77 +1,308 @@
 package subdivider.ui.util;
 
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
+import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 
 import subdivider.util.math.Vector3f;
 
-import com.jogamp.opengl.util.texture.Texture;
-import com.jogamp.opengl.util.texture.TextureIO;
-
 
 /**
  * 
  * @author Nicholas
  *
  * Singleton class used to manage effects used by opengl (mainly textures, lights)
- * Textures are loaded using TextureIO, provided by the JOGL api, and are stored
- * in a hashmap, while lights are stored in an arraylist 
+ * Lights are stored in an arraylist.
+ * 
+ * Textures are loaded without holding up the frames: the image is decoded on a
+ * thread of its own (so it doesn't wait for, or hold up, a subdivision on the
+ * shared thread pool) straight into a direct buffer, and then uploaded on the OpenGL
+ * thread a few rows at a time, at most UPLOAD_BYTES per frame (see updateTextures).
+ * Uploaded textures are kept in a cache of at most the given amount of bytes, the
+ * least recently bound ones are deleted when it is full.
  *
  */
 public class EffectsManager {
 
+	//bytes of texture uploaded each frame, about a millisecond of bus time
+	private static final int UPLOAD_BYTES = 4 << 20;
+	private static final long DEFAULT_CACHE_BYTES = 256L << 20;
+
 	private static EffectsManager manager;
 	
-	private HashMap<String, Texture> textures;
+	private LinkedHashMap<String, CachedTexture> textures; //least recently bound first
+	private long cacheBytes; //of the uploaded textures
+	private long maxCacheBytes;
+	private Runnable decodeListener; //told when a texture is ready to upload, null if nobody listens
+	private ExecutorService decoder; //one texture at a time, the rest wait in its queue
 	private ArrayList<Light> lights;
 	
 	public EffectsManager() {
-		textures = new HashMap<String, Texture>();
+		textures = new LinkedHashMap<String, CachedTexture>(16, 0.75f, true);
+		maxCacheBytes = DEFAULT_CACHE_BYTES;
 		lights = new ArrayList<Light>();
+		decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Texture decoding");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
-	public static EffectsManager getManager() {
+	public static synchronized EffectsManager getManager() {
 		if (manager == null)
 			manager = new EffectsManager();
 		
 		return manager;
 	}
-		
+	
 	/**
-	 * Load a texture (must be png)
+	 * Starts loading a texture (any format ImageIO reads) in the background, it can
+	 * be bound once updateTextures uploaded all of it. Loading a texture that is
+	 * loading or loaded already does nothing
 	 * 
+	 * @param gl not used, the texture is uploaded by updateTextures
 	 * @param file path to file
 	 */
-	public void loadTexture(GL2 gl, String file)
-	{
-		try {
-		    ByteArrayOutputStream os = new ByteArrayOutputStream();
-		    ImageIO.write(ImageIO.read(new File(file)), "png", os);
-		    InputStream fis = new ByteArrayInputStream(os.toByteArray());
-		    textures.put(file, TextureIO.newTexture(fis, true, TextureIO.PNG));
-		    textures.get(file).enable(gl);
-		} catch (IOException ex) { ex.printStackTrace(); }
+	public void loadTexture(GL2 gl, String file) {
+		requestTexture(file);
+	}
+	
+	/**
+	 * Starts loading a texture in the background, see loadTexture
+	 * 
+	 * @param file path to file
+	 */
+	public synchronized void requestTexture(final String file) {
+		if (textures.get(file) != null) //now the most recently used, so it is not evicted first
+			return;
+		final CachedTexture texture = new CachedTexture();
+		textures.put(file, texture);
+		decoder.submit(new Runnable() {
+			public void run() {
+				ByteBuffer pixels = null;
+				int width = 0, height = 0;
+				Throwable error = null;
+				try {
+					BufferedImage image = ImageIO.read(new File(file));
+					if (image != null) { //null if no reader knows the format
+						width = image.getWidth();
+						height = image.getHeight();
+						pixels = decode(image);
+					}
+				} catch (Throwable ex) { //also a broken image or out of memory, the texture must still be forgotten
+					pixels = null;
+					error = ex;
+				}
+				if (pixels == null) {
+					System.out.println("Could not read texture: " + file + (error != null ? " (" + error + ")" : ""));
+					decoded(file, texture, null, 0, 0);
+				} else
+					decoded(file, texture, pixels, width, height);
+			}
+		});
+	}
+	
+	/**
+	 * @return rows of RGBA bytes from the bottom row up, like OpenGL expects them, or
+	 * null if the image is too large for one buffer
+	 */
+	private static ByteBuffer decode(BufferedImage image) {
+		int width = image.getWidth(), height = image.getHeight();
+		long bytes = width * (long) height * 4;
+		if (bytes > Integer.MAX_VALUE) {
+			System.out.println("Texture of " + width + "x" + height + " pixels is too large");
+			return null;
+		}
+		ByteBuffer pixels = ByteBuffer.allocateDirect((int) bytes);
+		int[] row = new int[width];
+		for (int y = height - 1;y >= 0;y --) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0;x < width;x ++) //ARGB to RGBA
+				pixels.putInt((row[x] << 8) | (row[x] >>> 24));
+		}
+		pixels.flip();
+		return pixels;
+	}
+	
+	/**
+	 * Keeps the decoded image for updateTextures, a texture that could not be read is
+	 * forgotten, so it is loaded again the next time it is requested
+	 */
+	private void decoded(String file, CachedTexture texture, ByteBuffer pixels, int width, int height) {
+		Runnable listener;
+		synchronized (this) {
+			if (pixels == null) {
+				if (textures.get(file) == texture)
+					textures.remove(file);
+				return;
+			}
+			texture.pixels = pixels;
+			texture.width = width;
+			texture.height = height;
+			listener = decodeListener;
+		}
+		if (listener != null)
+			listener.run();
 	}
 	
 	/**
-	 * Bind the texture for use, must be loaded first
+	 * @param listener run on a background thread whenever a texture is ready to be
+	 * uploaded, e.g. to ask for a frame so updateTextures is called
+	 */
+	public synchronized void setDecodeListener(Runnable listener) {
+		decodeListener = listener;
+	}
+	
+	/**
+	 * @param bytes most bytes the uploaded textures may take on the graphics card
+	 */
+	public synchronized void setCacheSize(long bytes) {
+		maxCacheBytes = bytes;
+	}
+	
+	/**
+	 * Uploads the decoded textures, at most UPLOAD_BYTES of them, and deletes the
+	 * textures that don't fit in the cache. Must be called on the OpenGL thread,
+	 * once per frame
+	 * 
+	 * @param gl
+	 * @return true if there is more to upload, so another frame is needed
+	 */
+	public synchronized boolean updateTextures(GL2 gl) {
+		int budget = UPLOAD_BYTES;
+		boolean more = false;
+		for (CachedTexture texture : textures.values()) {
+			if (texture.pixels == null || texture.isUploaded())
+				continue;
+			if (budget <= 0) {
+				more = true;
+				break;
+			}
+			budget -= texture.upload(gl, budget);
+			if (texture.isUploaded()) {
+				cacheBytes += texture.getBytes();
+				texture.pixels = null; //only the graphics card keeps it
+			} else
+				more = true;
+		}
+		evict(gl);
+		return more;
+	}
+	
+	/**
+	 * Deletes the least recently bound textures until the cache fits, the most
+	 * recent one always stays
+	 */
+	private void evict(GL2 gl) {
+		Iterator<Map.Entry<String, CachedTexture>> entries = textures.entrySet().iterator();
+		while (cacheBytes > maxCacheBytes && entries.hasNext()) {
+			CachedTexture texture = entries.next().getValue();
+			if (!texture.isUploaded() || !entries.hasNext())
+				continue;
+			gl.glDeleteTextures(1, new int[] { texture.name }, 0);
+			cacheBytes -= texture.getBytes();
+			entries.remove();
+		}
+	}
+	
+	/**
+	 * Bind the texture for use and turn on texturing, it is loaded first if it is not
+	 * in the cache. Call unbindTexture after the draws that use it
 	 * @param file file that should be bound
+	 * @return false if the texture is not uploaded yet (or could not be read), then nothing is bound
 	 */
-	public void bindTexture(GL2 gl, String file) {
-		Texture t = textures.get(file);
-		if (t != null)
-			t.bind(gl);
+	public synchronized boolean bindTexture(GL2 gl, String file) {
+		CachedTexture t = textures.get(file); //now the most recently bound
+		if (t == null) {
+			requestTexture(file);
+			return false;
+		}
+		if (!t.isUploaded())
+			return false;
+		gl.glBindTexture(GL.GL_TEXTURE_2D, t.name);
+		gl.glEnable(GL.GL_TEXTURE_2D);
+		return true;
+	}
+	
+	/**
+	 * Turns texturing off again after bindTexture, so later draws are not textured
+	 * @param gl
+	 */
+	public void unbindTexture(GL2 gl) {
+		gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+		gl.glDisable(GL.GL_TEXTURE_2D);
 	}
 	
+	/**
+	 * 
+	 * @author Nicholas
+	 *
+	 * Container class for a texture, while it is decoded, uploaded and after
+	 */
+	private static class CachedTexture {
+		
+		ByteBuffer pixels; //decoded image, null while decoding and once uploaded
+		int width;
+		int height;
+		
+		int name; //texture of OpenGL, 0 until the upload starts
+		int uploadedRows;
+		
+		boolean isUploaded() {
+			return name != 0 && uploadedRows == height;
+		}
+		
+		long getBytes() {
+			return width * (long) height * 4;
+		}
+		
+		/**
+		 * Uploads the next rows, at least one
+		 * 
+		 * @return bytes uploaded
+		 */
+		int upload(GL2 gl, int budget) {
+			if (name == 0) { //allocate the whole texture, the rows are filled in below
+				int[] names = new int[1];
+				gl.glGenTextures(1, names, 0);
+				name = names[0];
+				gl.glBindTexture(GL.GL_TEXTURE_2D, name);
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA, width, height, 0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, null);
+			} else
+				gl.glBindTexture(GL.GL_TEXTURE_2D, name);
+			
+			int rows = Math.min(height - uploadedRows, Math.max(1, budget / (width * 4)));
+			pixels.position(uploadedRows * width * 4);
+			gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, uploadedRows, width, rows, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, pixels);
+			uploadedRows += rows;
+			
+			if (uploadedRows == height) { //mipmaps once all of it is there
+				if (gl.isFunctionAvailable("glGenerateMipmap")) {
+					gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
+					gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR_MIPMAP_LINEAR);
+				} else
+					gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
+			}
+			gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+			return rows * width * 4;
+		}
+		
+	}
+		
 	/**
 	 * creates a light using the properties provided, so long as GL_MAX_LIGHTS
 	 * has not been surpassed
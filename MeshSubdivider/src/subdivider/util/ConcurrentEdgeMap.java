@@ -0,0 +1,99 @@
+package subdivider.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Nicholas
+ *
+ * Hash set of edge keys (see MeshTopology.edgeKey) that many threads can add to
+ * at the same time without locking. Keys are stored in an open addressing table,
+ * a thread claims a free slot with compareAndSet, and a key always stays in the
+ * slot it was put in, so the slot index can be used by the caller to keep more
+ * data about the edge in its own arrays.
+ *
+ * The table does not grow, it is sized for the amount of keys given when it is created.
+ * Up to twice that amount still fits, lookups just get slower as the table fills up.
+ * The largest table has 2^30 slots (an array can't hold 2^31), above 2^29 keys it is
+ * more than half full, and it can't hold more than 2^30 keys at all.
+ */
+class ConcurrentEdgeMap {
+
+	//slots hold key + 1, so a new table is empty without filling it
+	private static final long EMPTY = 0;
+	private static final int MAX_BITS = 30;
+
+	private AtomicLongArray keys;
+	private int mask;
+	private int shift;
+
+	/**
+	 * @param maxKeys the most keys that will be added
+	 * @throws IllegalArgumentException if that is more than the largest table holds
+	 */
+	public ConcurrentEdgeMap(int maxKeys) {
+		if (maxKeys > 1 << MAX_BITS)
+			throw new IllegalArgumentException(maxKeys + " edges are too many for the edge table");
+		int bits = 1;
+		while (bits < MAX_BITS && (1 << bits) < maxKeys * 2L) //keep it at most half full
+			bits ++;
+		keys = new AtomicLongArray(1 << bits);
+		mask = (1 << bits) - 1;
+		shift = 64 - bits;
+	}
+
+	public int getCapacity() {
+		return keys.length();
+	}
+
+	/**
+	 * @param slot
+	 * @return the key in the slot, or -1 if it is empty
+	 */
+	public long getKey(int slot) {
+		return keys.get(slot) - 1;
+	}
+
+	/**
+	 * Adds the key if it is not in the map yet
+	 *
+	 * @param key
+	 * @return the slot holding the key
+	 */
+	public int add(long key) {
+		long stored = key + 1;
+		int slot = hash(key);
+		while (true) {
+			long current = keys.get(slot);
+			if (current == stored)
+				return slot;
+			if (current == EMPTY) {
+				if (keys.compareAndSet(slot, EMPTY, stored))
+					return slot;
+				continue; //another thread took the slot, look at it again
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the slot holding the key, or -1 if it is not in the map
+	 */
+	public int find(long key) {
+		long stored = key + 1;
+		int slot = hash(key);
+		while (true) {
+			long current = keys.get(slot);
+			if (current == stored)
+				return slot;
+			if (current == EMPTY)
+				return -1;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int hash(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift); //fibonacci hashing, uses the high bits
+	}
+
+}
@@ -0,0 +1,89 @@
+package subdivider.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * @author Nicholas
+ *
+ * Fixed size array of floats with long indices, so it can hold more than
+ * Integer.MAX_VALUE values. Either a float array on the heap, or buffers
+ * outside of the heap, see MeshStorage.
+ */
+public abstract class FloatStore {
+
+	public abstract long size();
+
+	public abstract float get(long index);
+
+	public abstract void set(long index, float value);
+
+	/**
+	 * @return where the values are kept, for arrays that go with them
+	 */
+	public abstract MeshStorage getStorage();
+
+	/**
+	 * Float array on the heap, limited to the size of a Java array
+	 */
+	public static class Heap extends FloatStore {
+		private float[] values;
+
+		public Heap(float[] values) {
+			this.values = values;
+		}
+
+		public long size() {
+			return values.length;
+		}
+
+		public float get(long index) {
+			return values[(int) index];
+		}
+
+		public void set(long index, float value) {
+			values[(int) index] = value;
+		}
+
+		public MeshStorage getStorage() {
+			return MeshStorage.HEAP;
+		}
+	}
+
+	/**
+	 * Floats stored in a list of byte buffers (direct or mapped), each holding
+	 * 1 << MeshStorage.CHUNK_BITS floats, since one buffer is limited to 2GB
+	 */
+	public static class Buffers extends FloatStore {
+		private FloatBuffer[] chunks;
+		private long size;
+		private boolean mapped;
+
+		public Buffers(ByteBuffer[] buffers, long size) {
+			this.size = size;
+			mapped = buffers.length > 0 && buffers[0] instanceof MappedByteBuffer;
+			chunks = new FloatBuffer[buffers.length];
+			for (int i = 0;i < buffers.length;i ++)
+				chunks[i] = buffers[i].order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public float get(long index) {
+			return chunks[(int) (index >>> MeshStorage.CHUNK_BITS)].get((int) index & MeshStorage.CHUNK_MASK);
+		}
+
+		public void set(long index, float value) {
+			chunks[(int) (index >>> MeshStorage.CHUNK_BITS)].put((int) index & MeshStorage.CHUNK_MASK, value);
+		}
+
+		public MeshStorage getStorage() {
+			return mapped ? MeshStorage.MAPPED : MeshStorage.OFF_HEAP;
+		}
+	}
+
+}
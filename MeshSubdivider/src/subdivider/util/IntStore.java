@@ -0,0 +1,81 @@
+package subdivider.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * @author Nicholas
+ *
+ * Fixed size array of ints with long indices, so it can hold more than
+ * Integer.MAX_VALUE values. Either an int array on the heap, or buffers
+ * outside of the heap, see MeshStorage.
+ */
+public abstract class IntStore {
+
+	public abstract long size();
+
+	public abstract int get(long index);
+
+	public abstract void set(long index, int value);
+
+	/**
+	 * @param index
+	 * @return the value read as an unsigned int, so values up to 2^32 - 1 can be stored
+	 */
+	public long getUnsigned(long index) {
+		return get(index) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Int array on the heap, limited to the size of a Java array
+	 */
+	public static class Heap extends IntStore {
+		private int[] values;
+
+		public Heap(int[] values) {
+			this.values = values;
+		}
+
+		public long size() {
+			return values.length;
+		}
+
+		public int get(long index) {
+			return values[(int) index];
+		}
+
+		public void set(long index, int value) {
+			values[(int) index] = value;
+		}
+	}
+
+	/**
+	 * Ints stored in a list of byte buffers (direct or mapped), each holding
+	 * 1 << MeshStorage.CHUNK_BITS ints, since one buffer is limited to 2GB
+	 */
+	public static class Buffers extends IntStore {
+		private IntBuffer[] chunks;
+		private long size;
+
+		public Buffers(ByteBuffer[] buffers, long size) {
+			this.size = size;
+			chunks = new IntBuffer[buffers.length];
+			for (int i = 0;i < buffers.length;i ++)
+				chunks[i] = buffers[i].order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public int get(long index) {
+			return chunks[(int) (index >>> MeshStorage.CHUNK_BITS)].get((int) index & MeshStorage.CHUNK_MASK);
+		}
+
+		public void set(long index, int value) {
+			chunks[(int) (index >>> MeshStorage.CHUNK_BITS)].put((int) index & MeshStorage.CHUNK_MASK, value);
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package subdivider.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Nicholas
+ *
+ * Where the positions, faces and topology of subdivided meshes are kept.
+ *
+ * HEAP uses plain Java arrays, which are the fastest to access, but one array
+ * can hold at most Integer.MAX_VALUE values, and the garbage collector has to
+ * deal with them. OFF_HEAP allocates direct buffers outside of the heap, in
+ * chunks of 1GB, so a level can hold billions of values and the collector never
+ * copies or scans them. The amount of direct memory the JVM allows is set with
+ * -XX:MaxDirectMemorySize. MAPPED memory maps scratch files, so the operating
+ * system decides which parts stay in memory, and a level can be larger than the
+ * memory of the machine. The files are deleted as soon as they are mapped (or
+ * when the program exits, where that is not possible).
+ */
+public enum MeshStorage {
+
+	HEAP {
+		public FloatStore createFloats(long size) {
+			return new FloatStore.Heap(new float[checkHeapSize(size)]);
+		}
+
+		public IntStore createInts(long size) {
+			return new IntStore.Heap(new int[checkHeapSize(size)]);
+		}
+	},
+
+	OFF_HEAP {
+		public FloatStore createFloats(long size) {
+			return new FloatStore.Buffers(allocateDirect(size), size);
+		}
+
+		public IntStore createInts(long size) {
+			return new IntStore.Buffers(allocateDirect(size), size);
+		}
+	},
+
+	MAPPED {
+		public FloatStore createFloats(long size) {
+			return new FloatStore.Buffers(map(size), size);
+		}
+
+		public IntStore createInts(long size) {
+			return new IntStore.Buffers(map(size), size);
+		}
+	};
+
+	//values (floats or ints) per buffer, 1GB
+	static final int CHUNK_BITS = 28;
+	static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	//largest array most JVMs can allocate
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private static File scratchDirectory; //null for the default temporary directory
+
+	/**
+	 * @param size
+	 * @return an array of floats, all 0
+	 * @throws IllegalArgumentException if the storage can't hold that many values
+	 */
+	public abstract FloatStore createFloats(long size);
+
+	/**
+	 * @param size
+	 * @return an array of ints, all 0
+	 * @throws IllegalArgumentException if the storage can't hold that many values
+	 */
+	public abstract IntStore createInts(long size);
+
+	/**
+	 * @param directory where MAPPED creates its scratch files, null
+	 * for the default temporary directory
+	 */
+	public static void setScratchDirectory(File directory) {
+		scratchDirectory = directory;
+	}
+
+	/**
+	 * @return the directory MAPPED creates its scratch files in
+	 */
+	public static File getScratchDirectory() {
+		if (scratchDirectory == null)
+			return new File(System.getProperty("java.io.tmpdir"));
+		return scratchDirectory;
+	}
+
+	/**
+	 * @param size
+	 * @return true if an array of this size can be created on the heap
+	 */
+	public static boolean fitsArray(long size) {
+		return size <= MAX_ARRAY_SIZE;
+	}
+
+	private static int checkHeapSize(long size) {
+		if (size > MAX_ARRAY_SIZE)
+			throw new IllegalArgumentException("Mesh has " + size
+					+ " values, too many for heap storage, use off-heap storage");
+		return (int) size;
+	}
+
+	/**
+	 * Allocates direct buffers for the given amount of 4 byte values
+	 */
+	private static ByteBuffer[] allocateDirect(long size) {
+		ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+		for (int i = 0;i < chunks.length;i ++) {
+			long values = Math.min(1 << CHUNK_BITS, size - ((long) i << CHUNK_BITS));
+			chunks[i] = ByteBuffer.allocateDirect((int) values * 4);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Creates a scratch file for the given amount of 4 byte values, and maps it
+	 */
+	private static ByteBuffer[] map(long size) {
+		try {
+			File file = File.createTempFile("subdivider", ".scratch", scratchDirectory);
+			RandomAccessFile scratch = new RandomAccessFile(file, "rw");
+			try {
+				scratch.setLength(size * 4); //file reads as zeros
+				ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+				for (int i = 0;i < chunks.length;i ++) {
+					long offset = (long) i << CHUNK_BITS;
+					long values = Math.min(1 << CHUNK_BITS, size - offset);
+					chunks[i] = scratch.getChannel().map(FileChannel.MapMode.READ_WRITE, offset * 4, values * 4);
+				}
+				return chunks;
+			} finally { //the mappings stay valid, the space is freed once they are collected
+				scratch.close();
+				if (!file.delete())
+					file.deleteOnExit();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not create scratch file: " + e.getMessage());
+		}
+	}
+
+}
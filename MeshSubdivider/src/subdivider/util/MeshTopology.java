@@ -0,0 +1,286 @@
+package subdivider.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author Nicholas
+ *
+ * Connectivity of a QuadMesh. For every half edge (4 * face + corner) this holds
+ * the opposite half edge, and the index of the edge it belongs to, where both
+ * half edges of an edge share the same edge index. Both are stored as unsigned
+ * ints in IntStores, so a mesh can have up to 2^32 half edges (see MeshStorage).
+ *
+ * The topology of the base mesh is built in parallel by finding the half edges between
+ * the same two vertices, with a hashmap or by sorting (see Pairing). The topology of a
+ * subdivided mesh is derived from the topology of the mesh it came from (see
+ * QuadSubdivider), so no searching is required for it.
+ */
+public class MeshTopology {
+
+	/**
+	 * Ways of finding the twin of each half edge when building the topology
+	 */
+	public enum Pairing {
+		HASH, //look up the edges in a ConcurrentEdgeMap
+		SORT //radix sort the edges, twins end up next to each other
+	}
+
+	private IntStore twins;
+	private IntStore edges;
+	private long edgeCount;
+
+	public MeshTopology(int[] twins, int[] edges, int edgeCount) {
+		this(new IntStore.Heap(twins), new IntStore.Heap(edges), edgeCount);
+	}
+
+	public MeshTopology(IntStore twins, IntStore edges, long edgeCount) {
+		this.twins = twins;
+		this.edges = edges;
+		this.edgeCount = edgeCount;
+	}
+
+	public long getEdgeCount() {
+		return edgeCount;
+	}
+
+	public long getTwin(long halfEdge) {
+		return twins.getUnsigned(halfEdge);
+	}
+
+	public long getEdge(long halfEdge) {
+		return edges.getUnsigned(halfEdge);
+	}
+
+	public void setTwin(long halfEdge, long twin) {
+		twins.set(halfEdge, (int) twin);
+	}
+
+	public void setEdge(long halfEdge, long edge) {
+		edges.set(halfEdge, (int) edge);
+	}
+
+	/**
+	 * @param halfEdge
+	 * @return the next half edge around the same face
+	 */
+	public static long next(long halfEdge) {
+		return (halfEdge & ~3L) | ((halfEdge + 1) & 3);
+	}
+
+	/**
+	 * @param halfEdge
+	 * @return the previous half edge around the same face
+	 */
+	public static long prev(long halfEdge) {
+		return (halfEdge & ~3L) | ((halfEdge + 3) & 3);
+	}
+
+	/**
+	 * Packs the two vertices of an edge into one key, so both
+	 * half edges of an edge map to the same key
+	 */
+	static long edgeKey(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	/**
+	 * Builds the topology of a mesh, pairing the half edges by hashing
+	 * 
+	 * @see #build(QuadMesh, Pairing)
+	 */
+	public static MeshTopology build(QuadMesh mesh) {
+		return build(mesh, Pairing.HASH);
+	}
+	
+	/**
+	 * Builds the topology of a mesh by pairing every half edge with the half
+	 * edge that runs between the same vertices, this runs in O(n) time on all
+	 * processors. The mesh must be closed and every edge shared by exactly two
+	 * faces with the same winding, see MeshValidator for a full check of the mesh.
+	 * 
+	 * Edges are numbered in the order of their first half edge, so the result
+	 * does not depend on the threads or on the way the half edges were paired.
+	 *
+	 * @param mesh
+	 * @param pairing how twin half edges are found
+	 * @return
+	 * @throws IllegalArgumentException if an edge is not shared by exactly two faces,
+	 * 		or the faces have opposite winding
+	 */
+	public static MeshTopology build(QuadMesh mesh, Pairing pairing) {
+		if (mesh.getFaceCount() > Integer.MAX_VALUE / 4) //half edges of the base mesh are counted with ints
+			throw new IllegalArgumentException("Mesh has too many faces to build its topology");
+		
+		int[] twins = pairing == Pairing.SORT ? pairBySorting(mesh) : pairByHashing(mesh);
+		int[] edges = new int[twins.length];
+		int edgeCount = numberEdges(twins, edges);
+		return new MeshTopology(twins, edges, edgeCount);
+	}
+	
+	/**
+	 * Puts the half edges into a ConcurrentEdgeMap in parallel, each edge keeps
+	 * its two half edges in the arrays next to the map
+	 * 
+	 * @return the twin of every half edge
+	 */
+	private static int[] pairByHashing(final QuadMesh mesh) {
+		final int halfEdgeCount = mesh.getFaceCount() * 4;
+		final int[] twins = new int[halfEdgeCount];
+		//a closed mesh has half as many edges as half edges, there can't be more than twice that
+		final ConcurrentEdgeMap map = new ConcurrentEdgeMap(halfEdgeCount / 2 + 1);
+		final AtomicIntegerArray counts = new AtomicIntegerArray(map.getCapacity());
+		final int[] firstHalves = new int[map.getCapacity()];
+		final int[] secondHalves = new int[map.getCapacity()];
+		
+		//add every half edge to its edge
+		final int chunks = Parallel.getChunkCount(halfEdgeCount);
+		Parallel.forChunks(halfEdgeCount, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int h = first;h < last;h ++) {
+					int start = mesh.getVertex(h >> 2, h & 3);
+					int end = mesh.getVertex(h >> 2, (h + 1) & 3);
+					int slot = map.add(edgeKey(start, end));
+					int count = counts.getAndIncrement(slot);
+					if (count == 0)
+						firstHalves[slot] = h;
+					else if (count == 1)
+						secondHalves[slot] = h;
+					else
+						throw new IllegalArgumentException("Edge " + start + "-" + end
+								+ " is shared by more than two faces");
+				}
+			}
+		});
+		
+		//pair the half edges
+		final AtomicInteger boundaryEdges = new AtomicInteger();
+		Parallel.forChunks(halfEdgeCount, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int h = first;h < last;h ++) {
+					int start = mesh.getVertex(h >> 2, h & 3);
+					int slot = map.find(edgeKey(start, mesh.getVertex(h >> 2, (h + 1) & 3)));
+					if (counts.get(slot) != 2) { //no twin
+						boundaryEdges.incrementAndGet();
+						continue;
+					}
+					int twin = firstHalves[slot] == h ? secondHalves[slot] : firstHalves[slot];
+					checkWinding(mesh, h, twin);
+					twins[h] = twin;
+				}
+			}
+		});
+		checkClosed(boundaryEdges.get());
+		return twins;
+	}
+	
+	/**
+	 * Radix sorts the edge keys of all half edges in parallel, after which 
+	 * the two half edges of an edge are next to each other. Unlike hashing
+	 * this always uses the same memory, and reads it sequentially.
+	 * 
+	 * @return the twin of every half edge
+	 */
+	private static int[] pairBySorting(final QuadMesh mesh) {
+		final int halfEdgeCount = mesh.getFaceCount() * 4;
+		final long vertexCount = mesh.getVertexCount();
+		final long[] keys = new long[halfEdgeCount];
+		final int[] halves = new int[halfEdgeCount];
+		
+		//keys only need the bits for two vertex indices, fewer bits means fewer passes
+		final int chunks = Parallel.getChunkCount(halfEdgeCount);
+		Parallel.forChunks(halfEdgeCount, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int h = first;h < last;h ++) {
+					int a = mesh.getVertex(h >> 2, h & 3);
+					int b = mesh.getVertex(h >> 2, (h + 1) & 3);
+					keys[h] = a < b ? a * vertexCount + b : b * vertexCount + a;
+					halves[h] = h;
+				}
+			}
+		});
+		RadixSort.sort(keys, halves, 64 - Long.numberOfLeadingZeros(vertexCount * vertexCount));
+		
+		//pair the neighbours, each chunk handles the edges whose first half is in it
+		final int[] twins = new int[halfEdgeCount];
+		final AtomicInteger boundaryEdges = new AtomicInteger();
+		Parallel.forChunks(halfEdgeCount, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int i = first;i < last;i ++) {
+					if (i > 0 && keys[i] == keys[i - 1]) //not the first half
+						continue;
+					
+					int end = i + 1;
+					while (end < halfEdgeCount && keys[end] == keys[i])
+						end ++;
+					if (end - i == 1) { //no twin
+						boundaryEdges.incrementAndGet();
+					} else if (end - i > 2) {
+						throw new IllegalArgumentException("Edge " + keys[i] / vertexCount + "-" 
+								+ keys[i] % vertexCount + " is shared by more than two faces");
+					} else {
+						checkWinding(mesh, halves[i], halves[i + 1]);
+						twins[halves[i]] = halves[i + 1];
+						twins[halves[i + 1]] = halves[i];
+					}
+				}
+			}
+		});
+		checkClosed(boundaryEdges.get());
+		return twins;
+	}
+	
+	/**
+	 * Numbers the edges in the order of their first half edge, using a count
+	 * of the edges that start in each chunk, so it can be done in parallel
+	 * 
+	 * @param twins
+	 * @param edges set to the edge of every half edge
+	 * @return amount of edges
+	 */
+	private static int numberEdges(final int[] twins, final int[] edges) {
+		final int chunks = Parallel.getChunkCount(twins.length);
+		final int[] chunkEdges = new int[chunks];
+		Parallel.forChunks(twins.length, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int h = first;h < last;h ++)
+					if (h < twins[h]) //first half of this edge
+						chunkEdges[chunk] ++;
+			}
+		});
+		
+		int edgeCount = 0;
+		for (int i = 0;i < chunks;i ++) { //edges of a chunk start after those of the chunks before it
+			int count = chunkEdges[i];
+			chunkEdges[i] = edgeCount;
+			edgeCount += count;
+		}
+		
+		//the first half of each edge sets the number of both halves
+		Parallel.forChunks(twins.length, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				int edge = chunkEdges[chunk];
+				for (int h = first;h < last;h ++) {
+					if (h < twins[h]) {
+						edges[h] = edge;
+						edges[twins[h]] = edge ++;
+					}
+				}
+			}
+		});
+		return edgeCount;
+	}
+	
+	private static void checkWinding(QuadMesh mesh, int h, int twin) {
+		if (mesh.getVertex(twin >> 2, twin & 3) == mesh.getVertex(h >> 2, h & 3)) //both halves run the same way
+			throw new IllegalArgumentException("Faces " + (Math.min(h, twin) >> 2) + " and " 
+					+ (Math.max(h, twin) >> 2) + " have opposite winding");
+	}
+	
+	private static void checkClosed(int boundaryEdges) {
+		if (boundaryEdges > 0) //some half edges did not find a twin
+			throw new IllegalArgumentException("Mesh is not closed, it has "
+					+ boundaryEdges + " boundary edges");
+	}
+
+}
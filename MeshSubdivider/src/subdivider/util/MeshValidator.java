@@ -0,0 +1,161 @@
+package subdivider.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author Nicholas
+ *
+ * Checks that a mesh can be subdivided before any time is spent on it. The mesh
+ * must be closed, every edge shared by exactly two faces that run along it in
+ * opposite directions, no quad may be degenerate and every vertex must be used.
+ *
+ * All checks are done in parallel, with a few linear passes over the faces, the
+ * edges and the vertices. Edges are found with a ConcurrentEdgeMap.
+ */
+public class MeshValidator {
+
+	//amount of face or vertex indices listed for each kind of problem
+	private static final int MAX_EXAMPLES = 10;
+
+	/**
+	 * One kind of problem, counts how often it was found, and
+	 * remembers the first few indices where it was found (each listed once)
+	 */
+	private static class Problem {
+		private String description;
+		private AtomicInteger count = new AtomicInteger();
+		private ArrayList<Integer> examples = new ArrayList<Integer>();
+
+		public Problem(String description) {
+			this.description = description;
+		}
+
+		public void found(int index) {
+			if (count.incrementAndGet() <= MAX_EXAMPLES) {
+				synchronized (examples) {
+					examples.add(index);
+				}
+			}
+		}
+
+		public String toString() {
+			Collections.sort(examples);
+			StringBuilder text = new StringBuilder();
+			text.append(count.get()).append(' ').append(description);
+			for (int i = 0;i < examples.size();i ++)
+				if (i == 0 || !examples.get(i).equals(examples.get(i - 1)))
+					text.append(i == 0 ? " " : ", ").append(examples.get(i));
+			if (count.get() > examples.size())
+				text.append(", ...");
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Checks the mesh for everything that prevents it from being subdivided
+	 *
+	 * @param mesh
+	 * @return a description of each kind of problem found, with the indices
+	 * of the faces or vertices it was found at, empty if the mesh is fine
+	 */
+	public static ArrayList<String> validate(final QuadMesh mesh) {
+		final Problem degenerate = new Problem("degenerate quads (repeated vertices or no area), at faces");
+		final Problem boundary = new Problem("boundary edges (used by one face), at faces");
+		final Problem nonManifold = new Problem("edges shared by more than two faces, at faces");
+		final Problem winding = new Problem("edges whose faces have opposite winding, at faces");
+		final Problem isolated = new Problem("isolated vertices (not used by any face), vertices");
+
+		final int halfEdgeCount = mesh.getFaceCount() * 4;
+		//a closed mesh has half as many edges as half edges, there can't be more than twice that
+		final ConcurrentEdgeMap map = new ConcurrentEdgeMap(halfEdgeCount / 2 + 1);
+		final AtomicIntegerArray counts = new AtomicIntegerArray(map.getCapacity());
+		//first two half edges found for every edge
+		final int[] firstHalves = new int[map.getCapacity()];
+		final int[] secondHalves = new int[map.getCapacity()];
+		final boolean[] used = new boolean[mesh.getVertexCount()];
+
+		//faces, insert every half edge into the map
+		Parallel.forChunks(mesh.getFaceCount(), Parallel.getChunkCount(mesh.getFaceCount()), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int f = first;f < last;f ++) {
+					if (isDegenerate(mesh, f))
+						degenerate.found(f);
+
+					for (int i = 0;i < 4;i ++) {
+						int start = mesh.getVertex(f, i);
+						int end = mesh.getVertex(f, (i + 1) & 3);
+						used[start] = true; //only ever set to true, so threads can't disagree
+						if (start == end) //part of a degenerate quad, no edge
+							continue;
+
+						int slot = map.add(MeshTopology.edgeKey(start, end));
+						int count = counts.getAndIncrement(slot);
+						if (count == 0)
+							firstHalves[slot] = f * 4 + i;
+						else if (count == 1)
+							secondHalves[slot] = f * 4 + i;
+						else if (count == 2) //third face on this edge
+							nonManifold.found(f);
+					}
+				}
+			}
+		});
+
+		//edges, each one needs exactly two half edges in opposite directions
+		Parallel.forChunks(map.getCapacity(), Parallel.getChunkCount(map.getCapacity()), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int slot = first;slot < last;slot ++) {
+					int count = counts.get(slot);
+					if (count == 1) {
+						boundary.found(firstHalves[slot] >> 2);
+					} else if (count == 2) {
+						int a = firstHalves[slot];
+						int b = secondHalves[slot];
+						if (mesh.getVertex(a >> 2, a & 3) == mesh.getVertex(b >> 2, b & 3)) //same start vertex
+							winding.found(Math.max(a, b) >> 2);
+					}
+				}
+			}
+		});
+
+		//vertices
+		Parallel.forChunks(used.length, Parallel.getChunkCount(used.length), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				for (int v = first;v < last;v ++)
+					if (!used[v])
+						isolated.found(v);
+			}
+		});
+
+		ArrayList<String> problems = new ArrayList<String>();
+		Problem[] all = { boundary, nonManifold, winding, degenerate, isolated };
+		for (Problem problem : all)
+			if (problem.count.get() > 0)
+				problems.add(problem.toString());
+		return problems;
+	}
+
+	/**
+	 * @return true if the face uses a vertex twice, or has no area
+	 */
+	private static boolean isDegenerate(QuadMesh mesh, int f) {
+		for (int i = 0;i < 4;i ++)
+			for (int j = i + 1;j < 4;j ++)
+				if (mesh.getVertex(f, i) == mesh.getVertex(f, j))
+					return true;
+
+		//cross product of the diagonals, twice the area of the quad
+		int v0 = mesh.getVertex(f, 0), v1 = mesh.getVertex(f, 1);
+		int v2 = mesh.getVertex(f, 2), v3 = mesh.getVertex(f, 3);
+		float ax = mesh.getX(v2) - mesh.getX(v0), ay = mesh.getY(v2) - mesh.getY(v0), az = mesh.getZ(v2) - mesh.getZ(v0);
+		float bx = mesh.getX(v3) - mesh.getX(v1), by = mesh.getY(v3) - mesh.getY(v1), bz = mesh.getZ(v3) - mesh.getZ(v1);
+		float x = ay * bz - az * by;
+		float y = az * bx - ax * bz;
+		float z = ax * by - ay * bx;
+		return x == 0 && y == 0 && z == 0;
+	}
+
+}
@@ -0,0 +1,96 @@
+package subdivider.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author Nicholas
+ *
+ * Holds the thread pool shared by everything that does work in parallel,
+ * with one thread per processor. The threads are daemon threads, so they
+ * don't keep the program running once main is done.
+ */
+public class Parallel {
+
+	/**
+	 * Work on one chunk of a range, see forChunks
+	 */
+	public interface ChunkTask {
+		public void run(int chunk, int first, int last);
+	}
+
+	private static ExecutorService executor;
+
+	public static int getThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+				private int count;
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Subdivider worker " + count ++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * @param count size of the range
+	 * @return amount of chunks to split a range into, a few per thread
+	 * so threads that finish early can take more work
+	 */
+	public static int getChunkCount(int count) {
+		return Math.max(1, Math.min(count, getThreadCount() * 4));
+	}
+
+	/**
+	 * Splits 0 to count into the given amount of chunks of about the same size, and
+	 * runs the task on each of them on the thread pool, waiting until all are done.
+	 * Must not be called from a task running on the pool.
+	 *
+	 * @param count
+	 * @param chunks
+	 * @param task
+	 * @throws RuntimeException thrown by a task, after all tasks finished
+	 */
+	public static void forChunks(int count, int chunks, final ChunkTask task) {
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+		for (int i = 0;i < chunks;i ++) {
+			final int chunk = i;
+			final int first = (int) ((long) count * i / chunks);
+			final int last = (int) ((long) count * (i + 1) / chunks);
+			futures.add(getExecutor().submit(new Runnable() {
+				public void run() {
+					task.run(chunk, first, last);
+				}
+			}));
+		}
+
+		RuntimeException error = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (error == null)
+					error = e.getCause() instanceof RuntimeException
+							? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+			} catch (InterruptedException e) {
+				if (error == null)
+					error = new RuntimeException(e);
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+}
@@ -0,0 +1,555 @@
+package subdivider.util;
+
+import java.util.Arrays;
+
+/**
+ * @author Nicholas
+ *
+ * Bounding volume hierarchy over the faces of a subdivided mesh, to find the
+ * faces rays hit without testing every face.
+ *
+ * Subdividing keeps the faces made from the same base face next to each other
+ * (face f of a level has the children 4 * f to 4 * f + 3), so below every base
+ * face the hierarchy is already known: a node of depth d is a face of level d,
+ * and only its bounds have to be calculated, from the bounds of its 4 children.
+ * This is done for all nodes of a depth in parallel, from the leaves up. Above
+ * the base faces a small hierarchy is built with the surface area heuristic,
+ * binned by the centers of their bounds. The leaves hold the 4 faces of a face of
+ * the level before the last, so the deepest bounds are not stored.
+ *
+ * A quad is hit where one of its triangles 0, 1, 2 and 0, 2, 3 is, from both
+ * sides. findNearest finds the face closest to a point instead, with a distance
+ * given by the caller, for faces that stand for a surface other than the quad
+ * (the bounds of those surfaces are given to the constructor). Queries only
+ * read the hierarchy, so any amount of them can run at once, the batch queries
+ * run on the shared thread pool (see Parallel).
+ */
+public class QuadBVH {
+
+	/**
+	 * Distance from a point to what a face stands for, see findNearest
+	 */
+	public interface FaceDistance {
+		/**
+		 * @return the distance, anything from maxDistance on if it is not closer than that
+		 */
+		public float getDistance(int face, float x, float y, float z, float maxDistance);
+	}
+
+	private static final int BINS = 12;
+	private static final int MAX_BASE_FACES_PER_LEAF = 4;
+	private static final int STACK_SIZE = 256;
+
+	private QuadMesh mesh;
+	private float[] faceBounds; //min x, y, z and max x, y, z of every face, null to use the quads
+	private int leafDepth; //depth of the leaves below the base faces
+	private int leafFaces; //faces of the mesh in a leaf
+
+	private float[][] bounds; //min x, y, z and max x, y, z of every node of each depth below the base faces
+
+	//hierarchy over the base faces, children of a top node are its index + 1 and right
+	private float[] topBounds;
+	private int[] topRight; //index of the second child, -1 for leaves
+	private int[] topFirst; //first base face of a leaf in baseFaces
+	private int[] topCount;
+	private int[] baseFaces; //base faces, ordered so the faces of each leaf follow each other
+	private int topNodes;
+
+	/**
+	 * @param mesh
+	 * @param subdivisions how many times the mesh was subdivided from the base mesh (or any
+	 * earlier level), 0 for a mesh that was not subdivided
+	 * @throws IllegalArgumentException if the face count does not match the subdivisions,
+	 * or there are too many faces
+	 */
+	public QuadBVH(QuadMesh mesh, int subdivisions) {
+		this(mesh, subdivisions, null);
+	}
+
+	/**
+	 * @param mesh
+	 * @param subdivisions see above
+	 * @param faceBounds min x, y, z and max x, y, z of the surface each face stands for (see
+	 * findNearest), null for the bounds of the quads
+	 * @throws IllegalArgumentException see above
+	 */
+	public QuadBVH(final QuadMesh mesh, int subdivisions, float[] faceBounds) {
+		this.mesh = mesh;
+		this.faceBounds = faceBounds;
+		int baseFaceCount = mesh.getFaceCount() >> (2 * subdivisions);
+		if (subdivisions < 0 || (long) baseFaceCount << (2 * subdivisions) != mesh.getFaceCount())
+			throw new IllegalArgumentException("Mesh of " + mesh.getFaceCount() + " faces was not subdivided "
+					+ subdivisions + " times");
+		if (mesh.getFaceCount() > Integer.MAX_VALUE / 6)
+			throw new IllegalArgumentException("Mesh has " + mesh.getFaceCount() + " faces, too many for a BVH");
+		leafDepth = Math.max(0, subdivisions - 1);
+		leafFaces = 1 << (2 * (subdivisions - leafDepth));
+
+		//leaves, then every depth above from the one below it
+		bounds = new float[leafDepth + 1][];
+		for (int d = leafDepth;d >= 0;d --) {
+			final int depth = d;
+			final int nodes = baseFaceCount << (2 * d);
+			bounds[d] = new float[nodes * 6];
+			Parallel.forChunks(nodes, Parallel.getChunkCount(nodes), new Parallel.ChunkTask() {
+				public void run(int chunk, int first, int last) {
+					for (int node = first;node < last;node ++) {
+						if (depth == leafDepth)
+							calculateLeafBounds(node);
+						else
+							calculateNodeBounds(depth, node);
+					}
+				}
+			});
+		}
+
+		buildTop(baseFaceCount);
+	}
+
+	public QuadMesh getMesh() {
+		return mesh;
+	}
+
+	private void calculateLeafBounds(int node) {
+		float[] box = bounds[leafDepth];
+		empty(box, node);
+		for (int f = node * leafFaces;f < (node + 1) * leafFaces;f ++) {
+			if (faceBounds != null) {
+				include(box, node, faceBounds[f * 6], faceBounds[f * 6 + 1], faceBounds[f * 6 + 2],
+						faceBounds[f * 6 + 3], faceBounds[f * 6 + 4], faceBounds[f * 6 + 5]);
+				continue;
+			}
+			for (int i = 0;i < 4;i ++) {
+				int v = mesh.getVertex(f, i);
+				include(box, node, mesh.getX(v), mesh.getY(v), mesh.getZ(v), mesh.getX(v), mesh.getY(v), mesh.getZ(v));
+			}
+		}
+	}
+
+	private void calculateNodeBounds(int depth, int node) {
+		float[] box = bounds[depth];
+		float[] children = bounds[depth + 1];
+		empty(box, node);
+		for (int c = node * 4;c < node * 4 + 4;c ++)
+			include(box, node, children[c * 6], children[c * 6 + 1], children[c * 6 + 2],
+					children[c * 6 + 3], children[c * 6 + 4], children[c * 6 + 5]);
+	}
+
+	private static void empty(float[] box, int node) {
+		Arrays.fill(box, node * 6, node * 6 + 3, Float.MAX_VALUE);
+		Arrays.fill(box, node * 6 + 3, node * 6 + 6, -Float.MAX_VALUE);
+	}
+
+	private static void include(float[] box, int node, float minX, float minY, float minZ,
+			float maxX, float maxY, float maxZ) {
+		box[node * 6] = Math.min(box[node * 6], minX);
+		box[node * 6 + 1] = Math.min(box[node * 6 + 1], minY);
+		box[node * 6 + 2] = Math.min(box[node * 6 + 2], minZ);
+		box[node * 6 + 3] = Math.max(box[node * 6 + 3], maxX);
+		box[node * 6 + 4] = Math.max(box[node * 6 + 4], maxY);
+		box[node * 6 + 5] = Math.max(box[node * 6 + 5], maxZ);
+	}
+
+	private static float getArea(float[] box, int node) {
+		float x = box[node * 6 + 3] - box[node * 6], y = box[node * 6 + 4] - box[node * 6 + 1];
+		float z = box[node * 6 + 5] - box[node * 6 + 2];
+		return x * y + y * z + z * x;
+	}
+
+	/**
+	 * Builds the hierarchy over the bounds of the base faces (depth 0)
+	 */
+	private void buildTop(int baseFaceCount) {
+		baseFaces = new int[baseFaceCount];
+		for (int i = 0;i < baseFaceCount;i ++)
+			baseFaces[i] = i;
+		int maxNodes = Math.max(1, 2 * baseFaceCount - 1);
+		topBounds = new float[maxNodes * 6];
+		topRight = new int[maxNodes];
+		topFirst = new int[maxNodes];
+		topCount = new int[maxNodes];
+		float[] centers = new float[baseFaceCount * 3];
+		for (int i = 0;i < baseFaceCount;i ++) {
+			for (int k = 0;k < 3;k ++)
+				centers[i * 3 + k] = (bounds[0][i * 6 + k] + bounds[0][i * 6 + 3 + k]) / 2;
+		}
+		buildTop(0, baseFaceCount, centers);
+	}
+
+	/**
+	 * Adds the node of the base faces from first to last in baseFaces, and its children
+	 *
+	 * @return index of the node
+	 */
+	private int buildTop(int first, int last, float[] centers) {
+		int node = topNodes ++;
+		empty(topBounds, node);
+		float[] centerBox = new float[6];
+		empty(centerBox, 0);
+		for (int i = first;i < last;i ++) {
+			int f = baseFaces[i];
+			include(topBounds, node, bounds[0][f * 6], bounds[0][f * 6 + 1], bounds[0][f * 6 + 2],
+					bounds[0][f * 6 + 3], bounds[0][f * 6 + 4], bounds[0][f * 6 + 5]);
+			include(centerBox, 0, centers[f * 3], centers[f * 3 + 1], centers[f * 3 + 2],
+					centers[f * 3], centers[f * 3 + 1], centers[f * 3 + 2]);
+		}
+		topFirst[node] = first;
+		topCount[node] = last - first;
+		topRight[node] = -1;
+		if (last - first <= MAX_BASE_FACES_PER_LEAF)
+			return node;
+
+		//cheapest split over the bins of each axis, by area times faces on both sides
+		int bestAxis = -1, bestBin = 0;
+		float bestCost = getArea(topBounds, node) * (last - first);
+		float[] binBounds = new float[BINS * 6];
+		int[] binCounts = new int[BINS];
+		float[] side = new float[6];
+		for (int axis = 0;axis < 3;axis ++) {
+			float min = centerBox[axis], extent = centerBox[axis + 3] - min;
+			if (extent <= 0)
+				continue;
+			for (int b = 0;b < BINS;b ++)
+				empty(binBounds, b);
+			Arrays.fill(binCounts, 0);
+			for (int i = first;i < last;i ++) {
+				int f = baseFaces[i];
+				int b = getBin(centers[f * 3 + axis], min, extent);
+				binCounts[b] ++;
+				include(binBounds, b, bounds[0][f * 6], bounds[0][f * 6 + 1], bounds[0][f * 6 + 2],
+						bounds[0][f * 6 + 3], bounds[0][f * 6 + 4], bounds[0][f * 6 + 5]);
+			}
+			float[] leftCosts = new float[BINS]; //area times count of the bins up to each split
+			empty(side, 0);
+			int count = 0;
+			for (int b = 0;b < BINS - 1;b ++) {
+				count += binCounts[b];
+				include(side, 0, binBounds[b * 6], binBounds[b * 6 + 1], binBounds[b * 6 + 2],
+						binBounds[b * 6 + 3], binBounds[b * 6 + 4], binBounds[b * 6 + 5]);
+				leftCosts[b] = count == 0 ? 0 : getArea(side, 0) * count;
+			}
+			empty(side, 0);
+			count = 0;
+			for (int b = BINS - 1;b > 0;b --) {
+				count += binCounts[b];
+				include(side, 0, binBounds[b * 6], binBounds[b * 6 + 1], binBounds[b * 6 + 2],
+						binBounds[b * 6 + 3], binBounds[b * 6 + 4], binBounds[b * 6 + 5]);
+				float cost = leftCosts[b - 1] + (count == 0 ? 0 : getArea(side, 0) * count);
+				if (cost < bestCost && count != last - first && count != 0) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		int middle;
+		if (bestAxis >= 0) { //faces in bins before bestBin go left
+			middle = first;
+			for (int i = first;i < last;i ++) {
+				int f = baseFaces[i];
+				if (getBin(centers[f * 3 + bestAxis], centerBox[bestAxis], centerBox[bestAxis + 3] - centerBox[bestAxis]) < bestBin) {
+					baseFaces[i] = baseFaces[middle];
+					baseFaces[middle ++] = f;
+				}
+			}
+		} else { //no split is cheaper, or all centers are the same, split in the middle
+			middle = (first + last) / 2;
+		}
+
+		buildTop(first, middle, centers); //node + 1
+		topRight[node] = buildTop(middle, last, centers);
+		return node;
+	}
+
+	private static int getBin(float center, float min, float extent) {
+		return Math.min(BINS - 1, (int) ((center - min) / extent * BINS));
+	}
+
+	/**
+	 * Finds the closest face the ray hits
+	 *
+	 * @param originX
+	 * @param originY
+	 * @param originZ
+	 * @param directionX
+	 * @param directionY
+	 * @param directionZ
+	 * @param maxDistance hits further along the ray, in lengths of the direction, are ignored
+	 * @param distance where the distance of the hit is put, at 0, in lengths of the direction, may be null
+	 * @return the face hit, or -1 if the ray hits nothing
+	 */
+	public int intersect(float originX, float originY, float originZ, float directionX, float directionY,
+			float directionZ, float maxDistance, float[] distance) {
+		return trace(new float[] { originX, originY, originZ, directionX, directionY, directionZ }, 0,
+				maxDistance, false, distance, new int[STACK_SIZE * 2]);
+	}
+
+	/**
+	 * Finds the closest face each ray hits, in parallel
+	 *
+	 * @param rays origin x, y, z and direction x, y, z of each ray
+	 * @param count amount of rays
+	 * @param maxDistance hits further along a ray, in lengths of its direction, are ignored
+	 * @param faces filled with the face each ray hits, or -1
+	 * @param distances filled with the distance of each hit, in lengths of the direction, may be null
+	 */
+	public void intersect(final float[] rays, int count, final float maxDistance, final int[] faces,
+			final float[] distances) {
+		Parallel.forChunks(count, Parallel.getChunkCount(count), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				int[] stack = new int[STACK_SIZE * 2];
+				float[] distance = new float[1];
+				for (int r = first;r < last;r ++) {
+					faces[r] = trace(rays, r * 6, maxDistance, false, distance, stack);
+					if (distances != null)
+						distances[r] = faces[r] >= 0 ? distance[0] : Float.POSITIVE_INFINITY;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Finds for each ray if any face is hit before its maximum distance, in parallel.
+	 * Stops at the first hit, so it is faster than intersect
+	 *
+	 * @param rays origin x, y, z and direction x, y, z of each ray
+	 * @param count amount of rays
+	 * @param maxDistances of each ray, in lengths of its direction
+	 * @param occluded filled with true for rays that hit a face
+	 */
+	public void occluded(final float[] rays, int count, final float[] maxDistances, final boolean[] occluded) {
+		Parallel.forChunks(count, Parallel.getChunkCount(count), new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				int[] stack = new int[STACK_SIZE * 2];
+				for (int r = first;r < last;r ++)
+					occluded[r] = trace(rays, r * 6, maxDistances[r], true, null, stack) >= 0;
+			}
+		});
+	}
+
+	/**
+	 * Finds the face closest to the point, closest boxes first
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param maxDistance faces further than this are ignored
+	 * @param faceDistance distance from the point to a face, only called for faces whose
+	 * bounds are closer than the closest face so far
+	 * @return the closest face, or -1 if no face is closer than maxDistance
+	 */
+	public int findNearest(float x, float y, float z, float maxDistance, FaceDistance faceDistance) {
+		int[] stack = new int[STACK_SIZE * 2];
+		float[] distances = new float[4];
+		int[] order = new int[4];
+		float closest = maxDistance;
+		int nearest = -1;
+
+		int top = 0;
+		stack[top ++] = -1;
+		stack[top ++] = 0;
+		while (top > 0) {
+			if (top + 8 > stack.length) //deep hierarchy above the base faces
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			int node = stack[-- top];
+			int depth = stack[-- top];
+			if (depth < 0) { //above the base faces
+				if (getDistance(topBounds, node, x, y, z) >= closest)
+					continue;
+				if (topRight[node] >= 0) { //the closer child is walked first
+					boolean leftFirst = getDistance(topBounds, node + 1, x, y, z) <= getDistance(topBounds, topRight[node], x, y, z);
+					stack[top ++] = -1;
+					stack[top ++] = leftFirst ? topRight[node] : node + 1;
+					stack[top ++] = -1;
+					stack[top ++] = leftFirst ? node + 1 : topRight[node];
+				} else {
+					for (int i = topFirst[node] + topCount[node] - 1;i >= topFirst[node];i --) {
+						stack[top ++] = 0;
+						stack[top ++] = baseFaces[i];
+					}
+				}
+			} else if (getDistance(bounds[depth], node, x, y, z) >= closest) {
+				continue;
+			} else if (depth == leafDepth) { //faces
+				for (int f = node * leafFaces;f < (node + 1) * leafFaces;f ++) {
+					if (faceBounds != null && getDistance(faceBounds, f, x, y, z) >= closest)
+						continue;
+					float distance = faceDistance.getDistance(f, x, y, z, closest);
+					if (distance < closest) {
+						closest = distance;
+						nearest = f;
+					}
+				}
+			} else { //children by distance, the closest on top
+				float[] children = bounds[depth + 1];
+				int count = 0;
+				for (int c = node * 4;c < node * 4 + 4;c ++) {
+					float distance = getDistance(children, c, x, y, z);
+					if (distance >= closest)
+						continue;
+					int i = count ++;
+					for (;i > 0 && distances[i - 1] < distance;i --) { //furthest first
+						distances[i] = distances[i - 1];
+						order[i] = order[i - 1];
+					}
+					distances[i] = distance;
+					order[i] = c;
+				}
+				for (int i = 0;i < count;i ++) {
+					stack[top ++] = depth + 1;
+					stack[top ++] = order[i];
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * @return distance from the point to the box, 0 inside it
+	 */
+	private static float getDistance(float[] box, int node, float x, float y, float z) {
+		float dx = Math.max(0, Math.max(box[node * 6] - x, x - box[node * 6 + 3]));
+		float dy = Math.max(0, Math.max(box[node * 6 + 1] - y, y - box[node * 6 + 4]));
+		float dz = Math.max(0, Math.max(box[node * 6 + 2] - z, z - box[node * 6 + 5]));
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Walks the hierarchy, closest boxes first. The stack holds pairs of depth (-1 for
+	 * the nodes above the base faces) and node
+	 */
+	private int trace(float[] rays, int ray, float maxDistance, boolean anyHit, float[] distance, int[] stack) {
+		float ox = rays[ray], oy = rays[ray + 1], oz = rays[ray + 2];
+		float dx = rays[ray + 3], dy = rays[ray + 4], dz = rays[ray + 5];
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		float closest = maxDistance;
+		int hit = -1;
+
+		int top = 0;
+		stack[top ++] = -1;
+		stack[top ++] = 0;
+		float[] entries = new float[4];
+		int[] order = new int[4];
+		while (top > 0) {
+			if (top + 8 > stack.length) //deep hierarchy above the base faces
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			int node = stack[-- top];
+			int depth = stack[-- top];
+			if (depth < 0) { //above the base faces
+				if (getEntry(topBounds, node, ox, oy, oz, ix, iy, iz, closest) >= closest) //misses are infinite, so they are skipped too
+					continue;
+				if (topRight[node] >= 0) { //the children, the left one is walked first
+					stack[top ++] = -1;
+					stack[top ++] = topRight[node];
+					stack[top ++] = -1;
+					stack[top ++] = node + 1;
+				} else {
+					for (int i = topFirst[node] + topCount[node] - 1;i >= topFirst[node];i --) {
+						stack[top ++] = 0;
+						stack[top ++] = baseFaces[i];
+					}
+				}
+			} else if (getEntry(bounds[depth], node, ox, oy, oz, ix, iy, iz, closest) >= closest) {
+				continue;
+			} else if (depth == leafDepth) { //faces
+				for (int f = node * leafFaces;f < (node + 1) * leafFaces;f ++) {
+					float t = intersectFace(f, ox, oy, oz, dx, dy, dz, closest);
+					if (t < closest) {
+						closest = t;
+						hit = f;
+						if (anyHit)
+							return hit;
+					}
+				}
+			} else { //children by the distance they are entered at, the closest on top
+				float[] children = bounds[depth + 1];
+				int count = 0;
+				for (int c = node * 4;c < node * 4 + 4;c ++) {
+					float entry = getEntry(children, c, ox, oy, oz, ix, iy, iz, closest);
+					if (entry >= closest)
+						continue;
+					int i = count ++;
+					for (;i > 0 && entries[i - 1] < entry;i --) { //furthest first
+						entries[i] = entries[i - 1];
+						order[i] = order[i - 1];
+					}
+					entries[i] = entry;
+					order[i] = c;
+				}
+				for (int i = 0;i < count;i ++) {
+					stack[top ++] = depth + 1;
+					stack[top ++] = order[i];
+				}
+			}
+		}
+		if (hit >= 0 && distance != null)
+			distance[0] = closest;
+		return hit;
+	}
+
+	/**
+	 * @return the distance the ray enters the box at (0 if it starts inside), or
+	 * infinity if it misses the box or enters it after maxDistance
+	 */
+	private static float getEntry(float[] box, int node, float ox, float oy, float oz,
+			float ix, float iy, float iz, float maxDistance) {
+		float near = 0, far = maxDistance;
+		for (int axis = 0;axis < 3;axis ++) {
+			float origin = axis == 0 ? ox : axis == 1 ? oy : oz;
+			float inverse = axis == 0 ? ix : axis == 1 ? iy : iz;
+			float t1 = (box[node * 6 + axis] - origin) * inverse;
+			float t2 = (box[node * 6 + 3 + axis] - origin) * inverse;
+			if (t1 > t2) {
+				float swap = t1;
+				t1 = t2;
+				t2 = swap;
+			}
+			//NaN, from a ray in the plane of a side, leaves the range as it is
+			if (t1 > near)
+				near = t1;
+			if (t2 < far)
+				far = t2;
+		}
+		return near <= far ? near : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the distance the ray hits the face at, or infinity if it does not before maxDistance
+	 */
+	private float intersectFace(int f, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance) {
+		int v0 = mesh.getVertex(f, 0);
+		float t = Float.POSITIVE_INFINITY;
+		for (int i = 1;i < 3;i ++) {
+			int v1 = mesh.getVertex(f, i), v2 = mesh.getVertex(f, i + 1);
+			t = Math.min(t, intersectTriangle(v0, v1, v2, ox, oy, oz, dx, dy, dz));
+		}
+		return t < maxDistance ? t : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Moller Trumbore, from both sides
+	 */
+	private float intersectTriangle(int v0, int v1, int v2, float ox, float oy, float oz,
+			float dx, float dy, float dz) {
+		float x0 = mesh.getX(v0), y0 = mesh.getY(v0), z0 = mesh.getZ(v0);
+		float e1x = mesh.getX(v1) - x0, e1y = mesh.getY(v1) - y0, e1z = mesh.getZ(v1) - z0;
+		float e2x = mesh.getX(v2) - x0, e2y = mesh.getY(v2) - y0, e2z = mesh.getZ(v2) - z0;
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float determinant = e1x * px + e1y * py + e1z * pz;
+		if (determinant == 0) //parallel to the triangle
+			return Float.POSITIVE_INFINITY;
+		float inverse = 1 / determinant;
+		float sx = ox - x0, sy = oy - y0, sz = oz - z0;
+		float u = (sx * px + sy * py + sz * pz) * inverse;
+		if (u < 0 || u > 1)
+			return Float.POSITIVE_INFINITY;
+		float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inverse;
+		if (v < 0 || u + v > 1)
+			return Float.POSITIVE_INFINITY;
+		float t = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+		return t >= 0 ? t : Float.POSITIVE_INFINITY;
+	}
+
+}
@@ -0,0 +1,173 @@
+package subdivider.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import subdivider.util.math.Vector3f;
+
+/**
+ * @author Nicholas
+ *
+ * Index based representation of a quad mesh. The positions of all the
+ * vertices are stored in one float array (x, y, z for each vertex) and every
+ * face holds 4 indices into it, so a vertex shared by several faces is only
+ * stored once. The arrays are FloatStore and IntStore, so they can be kept
+ * off the heap and hold more than Integer.MAX_VALUE values (see MeshStorage).
+ *
+ * Half edges are implicit, half edge 4 * face + corner runs from the vertex
+ * at that corner to the vertex at the next corner of the same face. Which
+ * half edges are opposite each other is stored in the MeshTopology once it
+ * has been built.
+ */
+public class QuadMesh {
+
+	private FloatStore positions;
+	private IntStore quads;
+	private int vertexCount;
+	private int faceCount;
+
+	private MeshTopology topology;
+
+	public QuadMesh(float[] positions, int vertexCount, int[] quads, int faceCount) {
+		this(new FloatStore.Heap(positions), vertexCount, new IntStore.Heap(quads), faceCount);
+	}
+
+	public QuadMesh(FloatStore positions, int vertexCount, IntStore quads, int faceCount) {
+		this.positions = positions;
+		this.vertexCount = vertexCount;
+		this.quads = quads;
+		this.faceCount = faceCount;
+	}
+
+	/**
+	 * @return where the positions are kept, see QuadSubdivider.calculateNormals
+	 */
+	public MeshStorage getStorage() {
+		return positions.getStorage();
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	public float getX(int vertex) {
+		return positions.get(vertex * 3L);
+	}
+
+	public float getY(int vertex) {
+		return positions.get(vertex * 3L + 1);
+	}
+
+	public float getZ(int vertex) {
+		return positions.get(vertex * 3L + 2);
+	}
+
+	public void setPosition(int vertex, float x, float y, float z) {
+		positions.set(vertex * 3L, x);
+		positions.set(vertex * 3L + 1, y);
+		positions.set(vertex * 3L + 2, z);
+	}
+
+	/**
+	 * @param face
+	 * @param corner 0 to 3
+	 * @return the index of the vertex at the given corner of the face
+	 */
+	public int getVertex(int face, int corner) {
+		return quads.get(face * 4L + corner);
+	}
+
+	/**
+	 * @param halfEdge
+	 * @return the index of the vertex the half edge starts at
+	 */
+	public int getStartVertex(long halfEdge) {
+		return quads.get(halfEdge); //4 * face + corner, same as the half edge
+	}
+
+	public void setVertex(int face, int corner, int vertex) {
+		quads.set(face * 4L + corner, vertex);
+	}
+
+	/**
+	 * @return bytes used by the positions, faces and topology (if built) of the mesh
+	 */
+	public long getSizeInBytes() {
+		if (topology == null)
+			return vertexCount * 12L + faceCount * 16L;
+		return getSizeInBytes(vertexCount, faceCount);
+	}
+
+	/**
+	 * @param vertexCount
+	 * @param faceCount
+	 * @return bytes used by a mesh of this size with its topology, 3 floats per vertex,
+	 * and 4 vertices, twins and edges per face
+	 */
+	public static long getSizeInBytes(long vertexCount, long faceCount) {
+		return vertexCount * 12 + faceCount * 48;
+	}
+
+	public MeshTopology getTopology() {
+		return topology;
+	}
+
+	public void setTopology(MeshTopology topology) {
+		this.topology = topology;
+	}
+
+	/**
+	 * Converts a list of QuadFaces to an indexed mesh, vertices
+	 * that are equal (see Vector3f.equals) are merged into one vertex.
+	 *
+	 * @param faces
+	 * @return
+	 */
+	public static QuadMesh fromFaces(ArrayList<QuadFace> faces) {
+		HashMap<Vector3f, Integer> indices = new HashMap<Vector3f, Integer>();
+		int[] quads = new int[faces.size() * 4];
+		float[] positions = new float[faces.size() * 4 * 3]; //worst case, no shared vertices
+		int vertexCount = 0;
+		for (int f = 0;f < faces.size();f ++) {
+			Vector3f[] vertices = faces.get(f).vertices;
+			for (int i = 0;i < 4;i ++) {
+				Integer index = indices.get(vertices[i]);
+				if (index == null) { //first time we see this vertex
+					index = vertexCount ++;
+					indices.put(vertices[i], index);
+					positions[index * 3] = vertices[i].x;
+					positions[index * 3 + 1] = vertices[i].y;
+					positions[index * 3 + 2] = vertices[i].z;
+				}
+				quads[f * 4 + i] = index;
+			}
+		}
+
+		return new QuadMesh(positions, vertexCount, quads, faces.size());
+	}
+
+	/**
+	 * Converts this mesh back to a list of QuadFaces, every face
+	 * gets its own copy of its vertices
+	 *
+	 * @return
+	 */
+	public ArrayList<QuadFace> toFaces() {
+		ArrayList<QuadFace> faces = new ArrayList<QuadFace>(faceCount);
+		for (int f = 0;f < faceCount;f ++) {
+			Vector3f[] vertices = new Vector3f[4];
+			for (int i = 0;i < 4;i ++) {
+				int v = getVertex(f, i);
+				vertices[i] = new Vector3f(getX(v), getY(v), getZ(v));
+			}
+			faces.add(new QuadFace(vertices));
+		}
+
+		return faces;
+	}
+
+}
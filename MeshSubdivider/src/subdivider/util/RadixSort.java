@@ -0,0 +1,98 @@
+package subdivider.util;
+
+import java.util.Arrays;
+
+/**
+ * @author Nicholas
+ *
+ * Parallel least significant digit radix sort of long keys, each carrying an int value.
+ * Every pass counts the digits of each chunk of the array in parallel, turns the counts
+ * into the position each chunk writes its keys to, and then moves the keys in parallel.
+ * The sort is stable, keys that are equal keep their order.
+ *
+ * Memory use is fixed, one extra array for the keys and one for the values, and all
+ * reads are sequential, so it does not depend on how the keys are distributed.
+ */
+class RadixSort {
+
+	private static final int DIGIT_BITS = 11;
+	private static final int RADIX = 1 << DIGIT_BITS;
+
+	/**
+	 * Sorts the keys, and moves the values with them
+	 *
+	 * @param keys keys that are not negative
+	 * @param values
+	 * @param bits amount of low bits used by the keys, higher bits are ignored
+	 */
+	public static void sort(long[] keys, int[] values, int bits) {
+		final int n = keys.length;
+		final int chunks = Parallel.getChunkCount(n);
+		final int[][] offsets = new int[chunks][RADIX];
+		long[] keyBuffer = new long[n];
+		int[] valueBuffer = new int[n];
+
+		long[] fromKeys = keys, toKeys = keyBuffer;
+		int[] fromValues = values, toValues = valueBuffer;
+		for (int shift = 0;shift < bits;shift += DIGIT_BITS) {
+			if (!sortDigit(fromKeys, fromValues, toKeys, toValues, shift, chunks, offsets))
+				continue; //all keys had the same digit, nothing moved
+
+			long[] keySwap = fromKeys; //sorted by this digit, sort the result by the next one
+			fromKeys = toKeys;
+			toKeys = keySwap;
+			int[] valueSwap = fromValues;
+			fromValues = toValues;
+			toValues = valueSwap;
+		}
+
+		if (fromKeys != keys) { //result ended up in the buffers
+			System.arraycopy(fromKeys, 0, keys, 0, n);
+			System.arraycopy(fromValues, 0, values, 0, n);
+		}
+	}
+
+	/**
+	 * Moves the keys and values into the to arrays, sorted by the digit at shift
+	 *
+	 * @return false if all keys have the same digit, then nothing is moved
+	 */
+	private static boolean sortDigit(final long[] fromKeys, final int[] fromValues,
+			final long[] toKeys, final int[] toValues, final int shift, int chunks, final int[][] offsets) {
+		final int n = fromKeys.length;
+		Parallel.forChunks(n, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				int[] counts = offsets[chunk];
+				Arrays.fill(counts, 0);
+				for (int i = first;i < last;i ++)
+					counts[(int) (fromKeys[i] >>> shift) & (RADIX - 1)] ++;
+			}
+		});
+
+		//keys with a smaller digit come first, and for the same digit earlier chunks first
+		int position = 0;
+		for (int digit = 0;digit < RADIX;digit ++) {
+			int digitStart = position;
+			for (int chunk = 0;chunk < chunks;chunk ++) {
+				int count = offsets[chunk][digit];
+				offsets[chunk][digit] = position;
+				position += count;
+			}
+			if (position - digitStart == n)
+				return false;
+		}
+
+		Parallel.forChunks(n, chunks, new Parallel.ChunkTask() {
+			public void run(int chunk, int first, int last) {
+				int[] positions = offsets[chunk];
+				for (int i = first;i < last;i ++) {
+					int p = positions[(int) (fromKeys[i] >>> shift) & (RADIX - 1)] ++;
+					toKeys[p] = fromKeys[i];
+					toValues[p] = fromValues[i];
+				}
+			}
+		});
+		return true;
+	}
+
+}